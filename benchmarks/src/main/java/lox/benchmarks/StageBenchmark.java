@@ -0,0 +1,106 @@
+package lox.benchmarks;
+
+import lox.ASTParser;
+import lox.Analyzer;
+import lox.Interpreter;
+import lox.decl.Declaration;
+import lox.opt.Inliner;
+import lox.opt.Optimizer;
+import lox.tokens.Symbol;
+import lox.tokens.TokenBuffer;
+import lox.tokens.TokenScanner;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures each stage of running a script on its own: scanning, parsing, analyzing, and
+ * interpreting the tree. Each stage gets the output of the previous ones, prepared once
+ * per fork, so only the stage itself is measured. The Analyzer is the exception, since
+ * it changes the tree, so it gets a freshly parsed one before every call.
+ *
+ * The workloads are the scripts in resources/workloads, which leave their outcome in the
+ * global "result" instead of printing it. The interpreter runs them as the jlox command
+ * does by default, after the Optimizer, without memoizing or compiling any function.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g", "-Xss8m"})
+@State(Scope.Thread)
+public class StageBenchmark {
+
+    @Param({"fib", "loops", "strings", "closures", "calls"})
+    public String workload;
+
+    private String source;
+    private TokenBuffer tokens;
+    private List<Declaration> program;
+    private Interpreter interpreter;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        source = load(workload);
+        tokens = new TokenScanner(source).scanTokens();
+        program = new ASTParser(tokens).parseTokens();
+        new Analyzer().resolve(program);
+        program = new Optimizer(new Inliner(16)).optimize(program);
+        new Analyzer().resolve(program);
+
+        // The same interpreter runs the program every time, so that the cells of its globals stay cached in the tree
+        interpreter = new Interpreter();
+    }
+
+    @Benchmark
+    public TokenBuffer scan() {
+        return new TokenScanner(source).scanTokens();
+    }
+
+    @Benchmark
+    public List<Declaration> parse() {
+        return new ASTParser(tokens).parseTokens();
+    }
+
+    @Benchmark
+    public List<Declaration> analyze(ParsedTree parsed) {
+        new Analyzer().resolve(parsed.tree);
+        return parsed.tree;
+    }
+
+    @Benchmark
+    public Object interpret() {
+        interpreter.interpret(program);
+        return interpreter.getGlobals().findCell(Symbol.of("result")).value;
+    }
+
+    /**
+     * A tree that hasn't been analyzed yet, parsed again before every call to analyze(), since an
+     * analyzed tree isn't what the Analyzer gets when running a script. This is its own state so
+     * that the other benchmarks aren't interrupted by the setup before every call.
+     */
+    @State(Scope.Thread)
+    public static class ParsedTree {
+        private List<Declaration> tree;
+
+        @Setup(Level.Invocation)
+        public void parse(StageBenchmark stages) {
+            tree = new ASTParser(stages.tokens).parseTokens();
+        }
+    }
+
+    private static String load(String workload) {
+        try(var in = StageBenchmark.class.getResourceAsStream("/workloads/" + workload + ".lox")) {
+            if(in == null) {
+                throw new IllegalArgumentException("Unknown workload: " + workload);
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
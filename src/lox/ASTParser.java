@@ -3,7 +3,9 @@ package lox;
 import lox.expr.*;
 import lox.stmt.*;
 import lox.decl.*;
+import lox.tokens.Symbol;
 import lox.tokens.Token;
+import lox.tokens.TokenBuffer;
 import lox.tokens.TokenType;
 
 import java.util.ArrayList;
@@ -14,12 +16,26 @@ import static lox.tokens.TokenType.*;
 public class ASTParser {
 
     public static class ParseError extends RuntimeException { }
-    final List<Token> tokens;
+
+    // Precedence of binary operators, from loosest to tightest. Tokens that
+    // are not binary operators have a precedence of 0, which stops any chain.
+    private static final int PREC_OR = 1;
+    private static final int PREC_AND = 2;
+    private static final int PREC_EQUALITY = 3;
+    private static final int PREC_COMPARISON = 4;
+    private static final int PREC_TERM = 5;
+    private static final int PREC_FACTOR = 6;
+
+    // Precedences indexed by the ordinal of the token type
+    private static final byte[] PRECEDENCES = new byte[TokenType.values().length];
+
+    final TokenBuffer tokens;
     int current;
 
-    public ASTParser(List<Token> tokens) {
+    public ASTParser(TokenBuffer tokens) {
         this.tokens = tokens;
         this.current = 0;
+        tokens.ensureScanned(0);
     }
 
     public List<Declaration> parseTokens() {
@@ -33,6 +49,22 @@ public class ASTParser {
         return declarations;
     }
 
+    /** Whether there are declarations left to be parsed with parseNextDeclaration() */
+    public boolean hasNextDeclaration() {
+        return !isAtEnd();
+    }
+
+    /**
+     * Parses the next top-level declaration only, returning null if it has a syntax error.
+     * The tokens of the previous declarations are discarded, so that when the tokens are
+     * streamed, only the ones of the declaration being parsed are kept in memory.
+     */
+    public Declaration parseNextDeclaration() {
+        tokens.discardBefore(current);
+        current = 0;
+        return parseDeclaration();
+    }
+
     /////////////////////////////////////////////////////////////////////////////////////////////////////////////////
     /// Recursive parsing methods for different levels of precedence
     /// First, declaration parsers
@@ -43,6 +75,8 @@ public class ASTParser {
                 return parseVariableDecl();
             } else if(match(FN)) {
                 return parseFunctionDecl("function");
+            } else if(match(IMPORT)) {
+                return parseImportDecl();
             }
 
             return parseStatementDecl();
@@ -54,7 +88,7 @@ public class ASTParser {
 
     private Declaration parseVariableDecl() {
         // The LET token has been consumed by the call to parseVariableDecl()
-        var identifier = consumeExpectedOrError(IDENTIFIER, "Expected identifier after 'let'");
+        var identifier = tokens.token(consumeExpectedOrError(IDENTIFIER, "Expected identifier after 'let'"));
         Expression value = null;
         if(match(EQUAL)) {
             value = parseExpression();
@@ -65,13 +99,13 @@ public class ASTParser {
 
     private Declaration parseFunctionDecl(String kind) {
         // FN has already been consumed
-        var identifier = consumeExpectedOrError(IDENTIFIER, "Expected " + kind + " name");
+        var identifier = tokens.token(consumeExpectedOrError(IDENTIFIER, "Expected " + kind + " name"));
         consumeExpectedOrError(LEFT_PAREN, "Expected '(' after " + kind + " name");
 
         List<Token> parameters = new ArrayList<>();
         if(!match(RIGHT_PAREN)) {
             do {
-                var param = consumeExpectedOrError(IDENTIFIER, "Expected parameter name");
+                var param = tokens.token(consumeExpectedOrError(IDENTIFIER, "Expected parameter name"));
                 parameters.add(param);
             } while(match(COMMA));
             consumeExpectedOrError(RIGHT_PAREN, "Expected ')' after parameter list");
@@ -84,6 +118,14 @@ public class ASTParser {
         return new FunctionDecl(identifier, parameters, body);
     }
 
+    private Declaration parseImportDecl() {
+        // IMPORT has already been consumed
+        var keyword = previousToken();
+        var path = tokens.token(consumeExpectedOrError(STRING, "Expected module path after 'import'"));
+        consumeExpectedOrError(SEMICOLON, "Expected semicolon after import");
+        return new ImportDecl(keyword, path);
+    }
+
     private Declaration parseStatementDecl() {
         var stmt = parseStatement();
         return new StatementDecl(stmt);
@@ -175,7 +217,7 @@ public class ASTParser {
         }
 
         Expression update = null;
-        if(peekNextToken().getType() != RIGHT_PAREN) {
+        if(peekType() != RIGHT_PAREN) {
             update = parseExpression();
         }
 
@@ -183,10 +225,12 @@ public class ASTParser {
 
         Statement body = parseStatement();
 
-        // De-sugar the elements into a while. First, put the update at the end of the body
-        var updateDecl = new StatementDecl(new ExpressionStmt(update));
-        var bodyDecl = new StatementDecl(body);
-        body = new Block(Arrays.asList(bodyDecl, updateDecl));
+        // De-sugar the elements into a while. First, put the update at the end of the body, if it exists
+        if(update != null) {
+            var updateDecl = new StatementDecl(new ExpressionStmt(update));
+            var bodyDecl = new StatementDecl(body);
+            body = new Block(Arrays.asList(bodyDecl, updateDecl));
+        }
 
         // Then, construct the while with the given condition. If there is no condition,
         // provide "true" for an infinite loop.
@@ -213,7 +257,7 @@ public class ASTParser {
     private ArrayList<Declaration> parseBlock() {
         var declarations = new ArrayList<Declaration>();
 
-        while(peekNextToken().getType() != RIGHT_BRACE && !isAtEnd()) {
+        while(peekType() != RIGHT_BRACE && !isAtEnd()) {
             declarations.add(parseDeclaration());
         }
 
@@ -229,9 +273,10 @@ public class ASTParser {
     }
 
     private Expression parseAssignment() {
-        var leftSide = parseOr();
+        var leftSide = parseBinary(PREC_OR);
 
-        if(match(EQUAL, PLUS_EQUAL, MINUS_EQUAL, ASTERISK_EQUAL, SLASH_EQUAL)) {
+        if(isAssignmentOperator(peekType())) {
+            consumeNextToken();
             // We can only generate an Assignment expression if whatever is on the
             // left side is an expression that we can assign to. Also, we consume
             // the entire right side before checking, to avoid leaving the parser
@@ -241,7 +286,10 @@ public class ASTParser {
 
             if(leftSide instanceof VariableExpr) {
                 var target = ((VariableExpr) leftSide).identifier;
-                return new AssignmentExpr(target, operator, value);
+                if(operator.getType() != EQUAL) {
+                    value = desugarOperationAndAssignment(target, operator, value);
+                }
+                return new AssignmentExpr(target, value);
             } else {
                 Lox.error(previousToken(), "Invalid target for assignment");
             }
@@ -250,80 +298,46 @@ public class ASTParser {
         return leftSide;
     }
 
-    private Expression parseOr() {
-        var expr = parseAnd();
-
-        while(match(OR)) {
-            var operator = previousToken();
-            var rightSide = parseAnd();
-            expr = new LogicalExpr(expr, operator, rightSide);
-        }
-
-        return expr;
-    }
-
-    private Expression parseAnd() {
-        var expr = parseEquality();
-
-        while(match(AND)) {
-            var operator = previousToken();
-            var rightSide = parseEquality();
-            expr = new LogicalExpr(expr, operator, rightSide);
-        }
-
-        return expr;
-    }
-
-    private Expression parseEquality() {
-        var expr = parseComparison();
-
-        while(match(EQUAL_EQUAL, NOT_EQUAL)) {
-            var operator = previousToken();
-            var rightSide = parseComparison();
-            expr = new BinaryExpr(expr, operator, rightSide);
-        }
-
-        return expr;
-    }
-
-    private Expression parseComparison() {
-        var expr = parseTerm();
-
-        while(match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
-            var operator = previousToken();
-            var rightSide = parseTerm();
-            expr = new BinaryExpr(expr, operator, rightSide);
-        }
-
-        return expr;
-    }
-
-    private Expression parseTerm() {
-        var expr = parseFactor();
+    // De-sugars operation and assignment (+= -= *= /=) into the corresponding binary expression
+    // on the target, i.e., the right side of "a += b" becomes "a + b". The resulting binary
+    // operator keeps the line of the original one, so that runtime errors are reported there.
+    private Expression desugarOperationAndAssignment(Token target, Token operator, Expression value) {
+        var binaryOpType = switch(operator.getType()) {
+            case PLUS_EQUAL -> PLUS;
+            case MINUS_EQUAL -> MINUS;
+            case ASTERISK_EQUAL -> ASTERISK;
+            case SLASH_EQUAL -> SLASH;
+            default -> throw new IllegalStateException("Unsupported assignment operator: " + operator);
+        };
 
-        while(match(MINUS, PLUS)) {
-            var operator = previousToken();
-            var rightSide = parseFactor();
-            expr = new BinaryExpr(expr, operator, rightSide);
-        }
-
-        return expr;
+        var binaryOp = new Token(binaryOpType, operator.getLexeme(), null, operator.getLine());
+        return new BinaryExpr(new VariableExpr(target), binaryOp, value);
     }
 
-    private Expression parseFactor() {
+    // Parses a chain of binary operators whose precedence is at least the given one. All of them
+    // are left-associative, so the right side of each operator only takes tighter operators.
+    private Expression parseBinary(int minPrecedence) {
         var expr = parseUnary();
 
-        while(match(SLASH, ASTERISK, PERCENT)) {
+        while(true) {
+            var precedence = PRECEDENCES[tokens.typeOrdinal(current)];
+            if(precedence < minPrecedence) {
+                return expr;
+            }
+
+            consumeNextToken();
             var operator = previousToken();
-            var rightSide = parseUnary();
-            expr = new BinaryExpr(expr, operator, rightSide);
+            var rightSide = parseBinary(precedence + 1);
+            expr = precedence <= PREC_AND ?
+                    new LogicalExpr(expr, operator, rightSide) :
+                    new BinaryExpr(expr, operator, rightSide);
         }
-
-        return expr;
     }
 
     private Expression parseUnary() {
-        if(match(NOT, MINUS)) {
+        var type = peekType();
+        if(type == NOT || type == MINUS) {
+            consumeNextToken();
             var operator = previousToken();
             var rightSide = parseUnary();
             return new UnaryExpr(operator, rightSide);
@@ -348,28 +362,35 @@ public class ASTParser {
     }
 
     private Expression parsePrimary() {
-        if(match(TRUE)) return new LiteralExpr(true);
-        if(match(FALSE)) return new LiteralExpr(false);
-        if(match(NULL)) return new LiteralExpr(null);
-
-        if(match(STRING, NUMBER)) {
-            var literal = previousToken().getLiteral();
-            return new LiteralExpr(literal);
-        }
-
-        if(match(LEFT_PAREN)) {
-            var expr = parseExpression();
-            consumeExpectedOrError(RIGHT_PAREN, "Missing closing parenthesis");
-            return new GroupExpr(expr);
-        }
-
-        if(match(IDENTIFIER)) {
-            var ident = previousToken();
-            return new VariableExpr(ident);
+        switch(peekType()) {
+            case TRUE: consumeNextToken(); return new LiteralExpr(true);
+            case FALSE: consumeNextToken(); return new LiteralExpr(false);
+            case NULL: consumeNextToken(); return new LiteralExpr(null);
+
+            case STRING:
+            case NUMBER:
+                consumeNextToken();
+                var literal = tokens.value(current - 1);
+                return new LiteralExpr(literal);
+
+            case LEFT_PAREN:
+                consumeNextToken();
+                var expr = parseExpression();
+                consumeExpectedOrError(RIGHT_PAREN, "Missing closing parenthesis");
+                return new GroupExpr(expr);
+
+            case IDENTIFIER:
+                consumeNextToken();
+                var ident = previousToken();
+                if(match(DOT)) {
+                    ident = parseQualifiedName(ident);
+                }
+                return new VariableExpr(ident);
+
+            default:
+                // Unexpected token
+                throw createError(peekNextToken(), "Unexpected token");
         }
-
-        // Unexpected token
-        throw createError(peekNextToken(), "Unexpected token");
     }
 
     // Synchronizes the state of the parser after a syntax error, discarding tokens
@@ -378,9 +399,9 @@ public class ASTParser {
         consumeNextToken();
 
         while(!isAtEnd()) {
-            if(previousToken().getType() == SEMICOLON) break;
+            if(tokens.type(current - 1) == SEMICOLON) break;
 
-            switch(peekNextToken().getType()) {
+            switch(peekType()) {
                 case CLASS:
                 case FN:
                 case LET:
@@ -398,6 +419,14 @@ public class ASTParser {
     //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
     /// Aux general methods
 
+    // Parses the name of a global of a module after the namespace and the dot have been consumed.
+    // It becomes a single identifier such as "math.sqrt", which is how the module's global is named.
+    private Token parseQualifiedName(Token namespace) {
+        var name = tokens.token(consumeExpectedOrError(IDENTIFIER, "Expected name after '.'"));
+        var qualified = Symbol.of(namespace.getLexeme() + "." + name.getLexeme());
+        return new Token(IDENTIFIER, qualified, namespace.getLine());
+    }
+
     // Parses the arguments of a call after the left parens has been consumed.
     // Receives the callee expression and returns a Call to said expression.
     private Expression finalizeCall(Expression callee) {
@@ -420,44 +449,72 @@ public class ASTParser {
 
     //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
     /// Aux navigation methods
+    //
+    // Tokens are referred to by their position in the buffer, and only turned into
+    // Token objects when they are stored in the tree or an error is reported at them.
+
     private boolean isAtEnd() {
-        return peekNextToken().getType() == EOF;
+        return peekType() == EOF;
+    }
+
+    private TokenType peekType() {
+        return tokens.type(current);
     }
 
     private Token peekNextToken() {
-        return tokens.get(current);
+        return tokens.token(current);
     }
 
     private Token previousToken() {
-        return tokens.get(current - 1);
+        return tokens.token(current - 1);
     }
 
-    private Token consumeNextToken() {
-        if(isAtEnd()) return tokens.get(current);
-        return tokens.get(current++);
+    private void consumeNextToken() {
+        if(!isAtEnd()) {
+            current++;
+            tokens.ensureScanned(current);
+        }
     }
 
-    private Token consumeExpectedOrError(TokenType expected, String errorMsg) {
-        var nextToken = peekNextToken();
-        if(nextToken.getType() == expected) {
-            return consumeNextToken();
+    // Returns the position of the consumed token
+    private int consumeExpectedOrError(TokenType expected, String errorMsg) {
+        if(peekType() == expected) {
+            consumeNextToken();
+            return current - 1;
         } else {
-            throw createError(nextToken, errorMsg);
+            throw createError(peekNextToken(), errorMsg);
         }
     }
 
-    private boolean match(TokenType... types) {
-        var nextToken = peekNextToken();
-        var typeMatched = Arrays.stream(types).anyMatch(t -> t == nextToken.getType());
-
-        if(typeMatched) {
+    private boolean match(TokenType type) {
+        if(peekType() == type) {
             consumeNextToken();
+            return true;
         }
-        return typeMatched;
+        return false;
+    }
+
+    private static boolean isAssignmentOperator(TokenType type) {
+        return type == EQUAL || type == PLUS_EQUAL || type == MINUS_EQUAL || type == ASTERISK_EQUAL || type == SLASH_EQUAL;
     }
 
     private static ParseError createError(Token token, String errorMsg) {
         Lox.error(token, errorMsg);
         return new ParseError();
     }
+
+    static {
+        setPrecedence(PREC_OR, OR);
+        setPrecedence(PREC_AND, AND);
+        setPrecedence(PREC_EQUALITY, EQUAL_EQUAL, NOT_EQUAL);
+        setPrecedence(PREC_COMPARISON, GREATER, GREATER_EQUAL, LESS, LESS_EQUAL);
+        setPrecedence(PREC_TERM, MINUS, PLUS);
+        setPrecedence(PREC_FACTOR, SLASH, ASTERISK, PERCENT);
+    }
+
+    private static void setPrecedence(int precedence, TokenType... types) {
+        for(TokenType type : types) {
+            PRECEDENCES[type.ordinal()] = (byte) precedence;
+        }
+    }
 }
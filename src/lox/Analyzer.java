@@ -2,35 +2,47 @@ package lox;
 
 import lox.decl.Declaration;
 import lox.decl.FunctionDecl;
+import lox.decl.ImportDecl;
 import lox.decl.StatementDecl;
 import lox.decl.VariableDecl;
 import lox.expr.*;
 import lox.stmt.*;
+import lox.tokens.Symbol;
 import lox.tokens.Token;
 import lox.visitors.DeclarationVisitor;
 import lox.visitors.ExpressionVisitor;
 import lox.visitors.StatementVisitor;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 
+import static lox.tokens.TokenType.IDENTIFIER;
+import static lox.tokens.TokenType.MINUS;
+
 enum FuncType { NONE, FUNCTION }
 
 /** Implements different static analyses, such as variable resolution and keyword validity checks */
 public class Analyzer implements ExpressionVisitor<Void>, StatementVisitor<Void>, DeclarationVisitor<Void> {
 
-    private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private final Stack<Scope> scopes = new Stack<>();
 
     // State variables to keep track of the current branch,
     // to check for the validity of returns and breaks
     private boolean isInLoop;
     private FuncType funcType;
+    private FunctionDecl currentFunction;
+
+    // When analyzing a module, the globals that it declares, which are renamed to "namespace.name"
+    // wherever they're used in it, so that they don't clash with the globals of other modules
+    private String namespace = null;
+    private final Set<Symbol> moduleGlobals = new HashSet<>();
 
-    public Analyzer(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    public Analyzer() {
         this.isInLoop = false;
         this.funcType = FuncType.NONE;
     }
@@ -53,47 +65,145 @@ public class Analyzer implements ExpressionVisitor<Void>, StatementVisitor<Void>
         }
     }
 
+    /** Resolves the declarations of a module, qualifying its globals with the given namespace */
+    public void resolveModule(String namespace, List<Declaration> decls) {
+        this.namespace = namespace;
+        for(Declaration decl : decls) {
+            if(decl instanceof VariableDecl varDecl) {
+                moduleGlobals.add(varDecl.identifier.getSymbol());
+            } else if(decl instanceof FunctionDecl funcDecl) {
+                moduleGlobals.add(funcDecl.identifier.getSymbol());
+            }
+        }
+
+        resolve(decls);
+    }
+
     ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
     // Aux methods
+
+    // A local scope keeps track of the slot assigned to each variable declared in it,
+    // as well as whether said variable has been fully defined yet.
+    // Variables declared with "let" also keep their declaration, to track how they're used,
+    // and the scope keeps the function it belongs to, to know when they're captured.
+    private static class Scope {
+        final Map<Symbol, Integer> slots = new HashMap<>();
+        final Map<Symbol, Boolean> defined = new HashMap<>();
+        final Map<Symbol, VariableDecl> varDecls = new HashMap<>();
+        final FunctionDecl function;
+        int size = 0;
+
+        Scope(FunctionDecl function) {
+            this.function = function;
+        }
+    }
+
+    // Location of a resolved local variable: how many environments up the chain, and which slot.
+    // The declaration is null unless the variable was declared with "let". Captured variables
+    // belong to a function other than the current one.
+    private record LocalVar(int depth, int slot, VariableDecl decl, boolean isCaptured) { }
+
     private void startScope() {
-        this.scopes.push(new HashMap<>());
+        this.scopes.push(new Scope(this.currentFunction));
     }
 
-    private void endScope() {
-        this.scopes.pop();
+    // Closes the current scope and returns the number of slots that the
+    // environment for that scope must have at runtime
+    private int endScope() {
+        return this.scopes.pop().size;
     }
 
     // Declares a variable in the current scope, but marks it as uninitialized
-    // to wait for its associated value to be resolved
-    private void declare(Token var) {
-        if(!scopes.empty()) {
-            scopes.peek().put(var.getLexeme(), false);
+    // to wait for its associated value to be resolved. Returns the slot assigned
+    // to the variable, or -1 if it's a global variable.
+    // Re-declaring a name in the same scope reuses its slot, so that it's still the same
+    // variable for the closures that captured it, and the new declaration assigns it.
+    private int declare(Token var) {
+        if(scopes.empty()) {
+            return -1;
         }
+
+        var scope = scopes.peek();
+        var name = var.getSymbol();
+        var slot = scope.slots.get(name);
+        if(slot != null) {
+            var previous = scope.varDecls.get(name);
+            if(previous != null) {
+                previous.assignments++;
+            }
+        } else {
+            slot = scope.size++;
+            scope.slots.put(name, slot);
+        }
+        scope.defined.put(name, false);
+        return slot;
+    }
+
+    // Function parameters always take the first slots, one each, even if they repeat a name
+    private void declareParameter(Token param) {
+        var scope = scopes.peek();
+        scope.slots.put(param.getSymbol(), scope.size++);
+        scope.defined.put(param.getSymbol(), true);
+    }
+
+    private boolean isDeclaredInScope(Token var) {
+        return !scopes.empty() && scopes.peek().slots.containsKey(var.getSymbol());
     }
 
     // Fully defines a previously declared variable, making it available for later use
     private void define(Token var) {
         if(!scopes.empty()) {
-            scopes.peek().put(var.getLexeme(), true);
+            scopes.peek().defined.put(var.getSymbol(), true);
         }
     }
 
     // Tries to look up the occurrence of a local variable in the current scopes, starting with
-    // the innermost one. If the check succeeds, it informs the interpreter of the nested depth
-    // of said variable. If it fails, it is assumed to be a global variable and the check is
-    // performed at runtime instead.
-    private void resolveLocalVar(Expression expr, Token varToken) {
-        String name = varToken.getLexeme();
+    // the innermost one. If the check succeeds, it returns the nested depth and the slot of
+    // said variable. If it fails, it returns null, and the variable is assumed to be
+    // a global variable whose check is performed at runtime instead.
+    private LocalVar resolveLocalVar(Token varToken) {
+        var name = varToken.getSymbol();
         int i = this.scopes.size() - 1;
 
         while(i >= 0) {
-            if(this.scopes.get(i).containsKey(name)) {
+            var scope = this.scopes.get(i);
+            var slot = scope.slots.get(name);
+            if(slot != null) {
                 var depth = this.scopes.size() - 1 - i;
-                this.interpreter.addLocalResolution(expr, depth);
-                break;
+                var decl = scope.varDecls.get(name);
+                var isCaptured = scope.function != this.currentFunction;
+                if(decl != null && isCaptured) {
+                    decl.isCaptured = true;
+                }
+                return new LocalVar(depth, slot, decl, isCaptured);
             }
             i--;
         }
+
+        return null;
+    }
+
+    // The current function is pure as long as it only assigns its own variables, only reads them or
+    // globals, and only calls functions stored in globals. Whether those globals hold pure functions
+    // and values that don't change is only known at runtime, so their names are recorded instead.
+    private void markImpure() {
+        if(this.currentFunction != null) {
+            this.currentFunction.isPure = false;
+        }
+    }
+
+    // Global names declared by the module being analyzed are replaced by their qualified names
+    private Token qualifyGlobal(Token var) {
+        if(namespace == null || !moduleGlobals.contains(var.getSymbol())) {
+            return var;
+        }
+        return new Token(IDENTIFIER, Symbol.of(namespace + "." + var.getLexeme()), var.getLine());
+    }
+
+    private void recordGlobalRead(Token var) {
+        if(this.currentFunction != null && !this.currentFunction.globalReads.contains(var.getSymbol())) {
+            this.currentFunction.globalReads.add(var.getSymbol());
+        }
     }
 
     ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -101,7 +211,18 @@ public class Analyzer implements ExpressionVisitor<Void>, StatementVisitor<Void>
 
     @Override
     public Void visitVariableDecl(VariableDecl decl) {
-        declare(decl.identifier);
+        if(scopes.empty()) {
+            decl.identifier = qualifyGlobal(decl.identifier);
+        }
+        // Uses of a re-declared variable are still tracked by its first declaration, if any
+        var isRedeclaration = isDeclaredInScope(decl.identifier);
+        decl.slot = declare(decl.identifier);
+        decl.assignments = 0;
+        decl.isCaptured = false;
+        if(decl.slot >= 0 && !isRedeclaration) {
+            scopes.peek().varDecls.put(decl.identifier.getSymbol(), decl);
+        }
+
         if(decl.value != null) {
             resolve(decl.value);
         }
@@ -117,13 +238,26 @@ public class Analyzer implements ExpressionVisitor<Void>, StatementVisitor<Void>
 
     @Override
     public Void visitFunctionDecl(FunctionDecl decl) {
-        declare(decl.identifier);
+        if(this.currentFunction != null) {
+            this.currentFunction.hasInnerFunctions = true;
+        }
+        // Inner functions are closures over the state of the current function, which can't be memoized
+        markImpure();
+        decl.isPure = true;
+        decl.globalReads = new ArrayList<>();
+
+        if(scopes.empty()) {
+            decl.identifier = qualifyGlobal(decl.identifier);
+        }
+        decl.slot = declare(decl.identifier);
         define(decl.identifier);
 
+        var previousFunction = this.currentFunction;
+        this.currentFunction = decl;
+
         startScope();
         for(Token param : decl.parameters) {
-            declare(param);
-            define(param);
+            declareParameter(param);
         }
 
         // Function declarations reset the flag for being inside a loop,
@@ -141,21 +275,39 @@ public class Analyzer implements ExpressionVisitor<Void>, StatementVisitor<Void>
 
         this.isInLoop = previousInLoop;
         this.funcType = previousFuncType;
-        endScope();
+        decl.body.scopeSize = endScope();
+        this.currentFunction = previousFunction;
 
         return null;
     }
 
+    @Override
+    public Void visitImportDecl(ImportDecl decl) {
+        // The modules are loaded before the program runs, which can only be done for top-level imports
+        if(!scopes.empty()) {
+            Lox.error(decl.keyword, "Imports are only allowed at the top level.");
+        }
+        return null;
+    }
+
     @Override
     public Void visitBinaryExpr(BinaryExpr binaryExpr) {
         resolve(binaryExpr.leftSide);
         resolve(binaryExpr.rightSide);
+
+        // Arithmetic operators always produce numbers. The plus operator does too if any of
+        // its operands is a number, since adding a number to anything else is an error.
+        binaryExpr.isNumeric = switch(binaryExpr.operator.getType()) {
+            case MINUS, ASTERISK, SLASH, PERCENT -> true;
+            case PLUS -> binaryExpr.leftSide.isNumeric || binaryExpr.rightSide.isNumeric;
+            default -> false;
+        };
         return null;
     }
 
     @Override
     public Void visitLiteralExpr(LiteralExpr literalExpr) {
-        // Nothing to do.
+        literalExpr.isNumeric = literalExpr.literal instanceof Double;
         return null;
     }
 
@@ -169,12 +321,27 @@ public class Analyzer implements ExpressionVisitor<Void>, StatementVisitor<Void>
     @Override
     public Void visitUnaryExpr(UnaryExpr unaryExpr) {
         resolve(unaryExpr.rightSide);
+        unaryExpr.isNumeric = unaryExpr.operator.getType() == MINUS;
+        return null;
+    }
+
+    @Override
+    public Void visitInlinedCallExpr(InlinedCallExpr inlinedCallExpr) {
+        resolve(inlinedCallExpr.call);
+        resolve(inlinedCallExpr.body);
+        return null;
+    }
+
+    @Override
+    public Void visitCounterExpr(CounterExpr counterExpr) {
+        counterExpr.isNumeric = true;
         return null;
     }
 
     @Override
     public Void visitGrouping(GroupExpr groupExpr) {
         resolve(groupExpr.expr);
+        groupExpr.isNumeric = groupExpr.expr.isNumeric;
         return null;
     }
 
@@ -183,22 +350,46 @@ public class Analyzer implements ExpressionVisitor<Void>, StatementVisitor<Void>
         // First, check that the same variable in this scope isn't in an
         // uninitialized state, which would mean that it's being used
         // in its own initialization
-        var varName = varExpr.identifier.getLexeme();
+        var varName = varExpr.identifier.getSymbol();
 
         // We check explicitly against "false" to guard against .get() returning null
         // if it's not yet defined
-        if(!scopes.isEmpty() && scopes.peek().get(varName) == Boolean.FALSE) {
+        if(!scopes.isEmpty() && scopes.peek().defined.get(varName) == Boolean.FALSE) {
             Lox.error(varExpr.identifier, "Can't use a variable in its own initializer.");
         }
 
-        resolveLocalVar(varExpr, varExpr.identifier);
+        var local = resolveLocalVar(varExpr.identifier);
+        if(local != null) {
+            varExpr.depth = local.depth();
+            varExpr.slot = local.slot();
+            varExpr.declaration = local.decl();
+            if(local.isCaptured()) {
+                markImpure();
+            }
+        } else {
+            varExpr.identifier = qualifyGlobal(varExpr.identifier);
+            recordGlobalRead(varExpr.identifier);
+        }
         return null;
     }
 
     @Override
     public Void visitAssignmentExpr(AssignmentExpr assignExpr) {
         resolve(assignExpr.rightSide);
-        resolveLocalVar(assignExpr, assignExpr.target);
+        var local = resolveLocalVar(assignExpr.target);
+        if(local != null) {
+            assignExpr.depth = local.depth();
+            assignExpr.slot = local.slot();
+            if(local.decl() != null) {
+                local.decl().assignments++;
+            }
+        } else {
+            assignExpr.target = qualifyGlobal(assignExpr.target);
+        }
+
+        if(local == null || local.isCaptured()) {
+            markImpure();
+        }
         return null;
     }
 
@@ -208,6 +399,10 @@ public class Analyzer implements ExpressionVisitor<Void>, StatementVisitor<Void>
         for(Expression arg : callExpr.args) {
             resolve(arg);
         }
+
+        if(!(callExpr.callee instanceof VariableExpr varExpr) || varExpr.depth >= 0) {
+            markImpure();
+        }
         return null;
     }
 
@@ -230,6 +425,9 @@ public class Analyzer implements ExpressionVisitor<Void>, StatementVisitor<Void>
         if(stmt.value != null) {
             resolve(stmt.value);
         }
+
+        // Returning the result of a call is a tail call, nothing is left to do in this function afterwards
+        stmt.isTailCall = this.funcType != FuncType.NONE && stmt.value instanceof CallExpr;
         return null;
     }
 
@@ -259,15 +457,36 @@ public class Analyzer implements ExpressionVisitor<Void>, StatementVisitor<Void>
         return null;
     }
 
+    @Override
+    public Void visitCountedLoopStmt(CountedLoopStmt stmt) {
+        // The counter isn't stored in any environment, and reads of it are
+        // already CounterExprs, so it doesn't need to be declared anywhere
+        resolve(stmt.start);
+        resolve(stmt.limit);
+        var previousInLoop = this.isInLoop;
+        this.isInLoop = true;
+        resolve(stmt.body);
+        this.isInLoop = previousInLoop;
+        return null;
+    }
+
     @Override
     public Void visitBlock(Block block) {
+        // Blocks that don't declare anything don't need their own environment,
+        // and their contents are resolved as part of the enclosing scope
+        block.hasScope = block.decls.stream().anyMatch(d -> !(d instanceof StatementDecl));
+        if(!block.hasScope) {
+            resolve(block.decls);
+            return null;
+        }
+
         startScope();
 
         for(Declaration decl : block.decls) {
             resolve(decl);
         }
 
-        endScope();
+        block.scopeSize = endScope();
         return null;
     }
 }
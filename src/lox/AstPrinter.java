@@ -0,0 +1,183 @@
+package lox;
+
+import lox.decl.Declaration;
+import lox.decl.FunctionDecl;
+import lox.decl.StatementDecl;
+import lox.decl.VariableDecl;
+import lox.expr.*;
+import lox.stmt.*;
+import lox.tokens.Token;
+import lox.visitors.DeclarationVisitor;
+import lox.visitors.ExpressionVisitor;
+import lox.visitors.StatementVisitor;
+
+import java.util.List;
+
+/**
+ * Prints a tree as nested S-expressions, with one statement per line.
+ * Used to inspect what the Optimizer does to a program.
+ */
+public class AstPrinter implements ExpressionVisitor<String>, StatementVisitor<String>, DeclarationVisitor<String> {
+
+    private int indent = 0;
+
+    public String print(List<Declaration> decls) {
+        var builder = new StringBuilder();
+        for(Declaration decl : decls) {
+            builder.append(decl.accept(this)).append('\n');
+        }
+        return builder.toString();
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Declaration visitors
+
+    @Override
+    public String visitVariableDecl(VariableDecl decl) {
+        var value = decl.value == null ? "" : " " + decl.value.accept(this);
+        return "(let " + decl.identifier.getLexeme() + value + ")";
+    }
+
+    @Override
+    public String visitStatementDecl(StatementDecl decl) {
+        return decl.stmt.accept(this);
+    }
+
+    @Override
+    public String visitFunctionDecl(FunctionDecl decl) {
+        var params = decl.parameters.stream().map(Token::getLexeme).toList();
+        return "(fn " + decl.identifier.getLexeme() + " (" + String.join(" ", params) + ")"
+                + nested(decl.body.decls) + ")";
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Statement visitors
+
+    @Override
+    public String visitBlock(Block block) {
+        return "(block" + nested(block.decls) + ")";
+    }
+
+    @Override
+    public String visitBreakStmt(BreakStmt stmt) {
+        return "(break)";
+    }
+
+    @Override
+    public String visitReturnStmt(ReturnStmt stmt) {
+        return stmt.value == null ? "(return)" : "(return " + stmt.value.accept(this) + ")";
+    }
+
+    @Override
+    public String visitIfStmt(IfStmt stmt) {
+        var result = "(if " + stmt.condition.accept(this) + nested(stmt.trueBranch);
+        if(stmt.falseBranch != null) {
+            result += nested(stmt.falseBranch);
+        }
+        return result + ")";
+    }
+
+    @Override
+    public String visitWhileStmt(WhileStmt stmt) {
+        return "(while " + stmt.condition.accept(this) + nested(stmt.body) + ")";
+    }
+
+    @Override
+    public String visitCountedLoopStmt(CountedLoopStmt stmt) {
+        return "(for " + stmt.variable.getLexeme() + " " + stmt.start.accept(this)
+                + " (" + stmt.comparison.getLexeme() + " " + stmt.limit.accept(this) + ")"
+                + " (step " + stmt.step + ")" + nested(stmt.body) + ")";
+    }
+
+    @Override
+    public String visitExpressionStmt(ExpressionStmt stmt) {
+        return stmt.expr.accept(this);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Expression visitors
+
+    @Override
+    public String visitBinaryExpr(BinaryExpr binaryExpr) {
+        return parenthesize(binaryExpr.operator.getLexeme(), binaryExpr.leftSide, binaryExpr.rightSide);
+    }
+
+    @Override
+    public String visitLiteralExpr(LiteralExpr literalExpr) {
+        if(literalExpr.literal instanceof CharSequence string) {
+            return "\"" + string + "\"";
+        }
+        return String.valueOf(literalExpr.literal);
+    }
+
+    @Override
+    public String visitLogicalExpr(LogicalExpr logicalExpr) {
+        return parenthesize(logicalExpr.operator.getLexeme(), logicalExpr.leftSide, logicalExpr.rightSide);
+    }
+
+    @Override
+    public String visitUnaryExpr(UnaryExpr unaryExpr) {
+        return parenthesize(unaryExpr.operator.getLexeme(), unaryExpr.rightSide);
+    }
+
+    @Override
+    public String visitGrouping(GroupExpr groupExpr) {
+        return parenthesize("group", groupExpr.expr);
+    }
+
+    @Override
+    public String visitVariableExpr(VariableExpr varExpr) {
+        return varExpr.identifier.getLexeme();
+    }
+
+    @Override
+    public String visitAssignmentExpr(AssignmentExpr assignExpr) {
+        return "(= " + assignExpr.target.getLexeme() + " " + assignExpr.rightSide.accept(this) + ")";
+    }
+
+    @Override
+    public String visitCounterExpr(CounterExpr counterExpr) {
+        return counterExpr.identifier.getLexeme();
+    }
+
+    @Override
+    public String visitInlinedCallExpr(InlinedCallExpr inlinedCallExpr) {
+        var name = inlinedCallExpr.function.identifier.getLexeme();
+        return "(inlined " + name + " " + inlinedCallExpr.body.accept(this) + ")";
+    }
+
+    @Override
+    public String visitCallExpr(CallExpr callExpr) {
+        var builder = new StringBuilder("(call ").append(callExpr.callee.accept(this));
+        for(Expression arg : callExpr.args) {
+            builder.append(' ').append(arg.accept(this));
+        }
+        return builder.append(')').toString();
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Auxiliary private methods
+
+    private String parenthesize(String name, Expression... exprs) {
+        var builder = new StringBuilder("(").append(name);
+        for(Expression expr : exprs) {
+            builder.append(' ').append(expr.accept(this));
+        }
+        return builder.append(')').toString();
+    }
+
+    // Prints statements in their own lines, indented one level deeper than the current one
+    private String nested(Statement stmt) {
+        return nested(List.of(new StatementDecl(stmt)));
+    }
+
+    private String nested(List<Declaration> decls) {
+        indent++;
+        var builder = new StringBuilder();
+        for(Declaration decl : decls) {
+            builder.append('\n').append("  ".repeat(indent)).append(decl.accept(this));
+        }
+        indent--;
+        return builder.toString();
+    }
+}
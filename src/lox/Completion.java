@@ -0,0 +1,13 @@
+package lox;
+
+/**
+ * Signal returned by the Interpreter after executing a statement or declaration,
+ * telling the enclosing loop or function how control flow must continue.
+ * When the completion is RETURN, the returned value is held by the Interpreter
+ * until the function call that is being returned from collects it.
+ * TAIL_CALL works the same way, but what's held is a call that the function
+ * being returned from must make in its place.
+ */
+public enum Completion {
+    NORMAL, BREAK, RETURN, TAIL_CALL
+}
@@ -1,81 +1,98 @@
 package lox;
 
+import lox.tokens.Symbol;
 import lox.tokens.Token;
 
+import java.util.Collection;
 import java.util.HashMap;
 
+/**
+ * An Environment stores the values of the variables in a given scope.
+ * The global environment keeps a cell per variable name, since globals are looked
+ * up at runtime. Local environments instead store their variables in a fixed-size
+ * array, using the slots that the Analyzer assigned to each local declaration.
+ */
 public class Environment {
-    private final HashMap<String, Object> variables;
-    // The parent/outer environment, which is queried when a variable identifier
-    // doesn't exist in this one
+    private final HashMap<Symbol, GlobalCell> cells;
+    private final Object[] slots;
+    // The parent/outer environment, which holds the variables of the enclosing scope
     private final Environment outer;
 
     public Environment() {
-        this.variables = new HashMap<>();
+        this.cells = new HashMap<>();
+        this.slots = null;
         this.outer = null;
     }
 
-    public Environment(Environment outer) {
-        this.variables = new HashMap<>();
+    public Environment(Environment outer, int size) {
+        this.cells = null;
+        this.slots = new Object[size];
         this.outer = outer;
     }
 
     /**
-     * Declares a new variable, with a (maybe null) initial value.
+     * Declares a new global variable, with a (maybe null) initial value.
      * It is allowed to re-declare an existing variable, in that case,
-     * it simply shadows the same name in outer environments.
+     * its existing cell is reused so that cached references remain valid.
      */
-    public void declare(String name, Object value) {
-        variables.put(name, value);
+    public void declare(Symbol name, Object value) {
+        var cell = cells.get(name);
+        if(cell == null) {
+            cells.put(name, new GlobalCell(this, name.name, value));
+        } else {
+            cell.set(value);
+        }
     }
 
     /**
-     * Assigns a new value to an existing variable denoted by a token.
-     * If the variable does not exist in the current environment,
-     * this method recursively tries to carry out the operation in
-     * outer environments. If it is not found in any environment,
-     * this will throw a RuntimeError.
+     * Defines a local variable in the given slot of this environment.
      */
-    public void assign(Token varToken, Object value) {
-        var name = varToken.getLexeme();
-
-        if(variables.containsKey(name)) {
-            // If it's found in this environment, reassign here
-            variables.put(name, value);
-        } else if(outer != null) {
-            // If not found but there is an outer environment, try there
-            outer.assign(varToken, value);
-        } else {
-            // No luck and no more enclosing environments, throw an error
-            throw new RuntimeError("Undefined variable '" + name + "'", varToken);
-        }
+    public void define(int slot, Object value) {
+        slots[slot] = value;
     }
 
-    public void assignAt(Token varToken, Object value, int depth) {
-        ancestor(depth).assign(varToken, value);
+    public void assignAt(int depth, int slot, Object value) {
+        ancestor(depth).slots[slot] = value;
     }
 
     /**
-     * Retrieves the value of a given variable token, trying outer environments recursively.
-     * If the variable does not exist, this will throw a RuntimeError.
+     * Retrieves the cell of the global variable denoted by a token.
+     * If the variable has not been declared, this will throw a RuntimeError.
      */
-    public Object get(Token varToken) {
-        var name = varToken.getLexeme();
-
-        if(variables.containsKey(name)) {
-            // If it's found in this environment, return it here
-            return variables.get(name);
-        } else if(outer != null) {
-            // If not found but there is an outer environment, try there
-            return outer.get(varToken);
-        } else {
-            // No luck and no more enclosing environments, throw an error
-            throw new RuntimeError("Undefined variable '" + name + "'", varToken);
+    public GlobalCell getCell(Token varToken) {
+        var cell = cells.get(varToken.getSymbol());
+        if(cell == null) {
+            throw new RuntimeError("Undefined variable '" + varToken.getLexeme() + "'", varToken);
         }
+        return cell;
+    }
+
+    /** Whether a cell, which may be null, is one of the cells of this global environment */
+    public boolean owns(GlobalCell cell) {
+        return cell != null && cell.owner == this;
+    }
+
+    /** Retrieves the cell of a global variable by its name, or null if it has not been declared */
+    public GlobalCell findCell(Symbol name) {
+        return cells.get(name);
+    }
+
+    public Object getAt(int depth, int slot) {
+        return ancestor(depth).slots[slot];
+    }
+
+    /** The cells of all the global variables, for the global environment only */
+    public Collection<GlobalCell> getCells() {
+        return cells.values();
+    }
+
+    /** The number of slots, for local environments only */
+    public int size() {
+        return slots.length;
     }
 
-    public Object getAt(Token varToken, int depth) {
-        return ancestor(depth).get(varToken);
+    public Environment getOuter() {
+        return outer;
     }
 
     /** Traverses up the environment chain to get the n-th ancestor */
@@ -0,0 +1,34 @@
+package lox;
+
+/**
+ * Holds the value of a global variable. Cells are created once, when the variable is
+ * first declared, and are never removed, so a variable or assignment expression can
+ * keep a reference to the cell it refers to and skip the lookup by name afterwards.
+ * Since the same tree may be run by several interpreters, each cell knows the global
+ * environment it belongs to, and a cached cell is only used by the interpreter that owns it.
+ */
+public class GlobalCell {
+    // The global environment that holds this cell
+    public final Environment owner;
+    public final String name;
+    public Object value;
+    // Notified the next time the value is changed through set(), if any. Used by the Memoizer to
+    // know when a global that memoized functions depend on changes.
+    Runnable watcher;
+
+    public GlobalCell(Environment owner, String name, Object value) {
+        this.owner = owner;
+        this.name = name;
+        this.value = value;
+    }
+
+    /** Changes the value of the variable, notifying its watcher if it has one */
+    public void set(Object value) {
+        this.value = value;
+        if(watcher != null) {
+            var notified = watcher;
+            watcher = null;
+            notified.run();
+        }
+    }
+}
@@ -10,17 +10,16 @@ import lox.decl.Declaration;
 import lox.decl.FunctionDecl;
 import lox.decl.StatementDecl;
 import lox.decl.VariableDecl;
-import lox.exceptions.BreakExc;
-import lox.exceptions.ReturnExc;
 import lox.expr.*;
+import lox.jit.Jit;
+import lox.jit.JitRuntime;
 import lox.stmt.*;
+import lox.tokens.Symbol;
 import lox.tokens.Token;
 import lox.visitors.DeclarationVisitor;
 import lox.visitors.ExpressionVisitor;
 import lox.visitors.StatementVisitor;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -31,17 +30,52 @@ import static lox.tokens.TokenType.*;
  * value, recursively interpreting any subexpressions and combining them
  * according to the operator in the parent expression.
  */
-public class Interpreter implements ExpressionVisitor<Object>, StatementVisitor<Void>, DeclarationVisitor<Void> {
+public class Interpreter implements ExpressionVisitor<Object>, StatementVisitor<Completion>, DeclarationVisitor<Completion> {
 
     final Environment globals = new Environment();
-    final Map<Expression, Integer> locals = new HashMap<>();
+    // Builtin functions, by the name of the global variable that holds each of them at first
+    private final Map<String, LoxCallable> builtins = Map.of(
+            "print", new PrintFunc(),
+            "time", new TimeFunc(),
+            "str", new StrFunc(),
+            "random", new RandomFunc());
     private Environment environment = globals;
+    // Value of the last executed return statement, until it's collected by its function call
+    private Object returnValue;
+    // Function and arguments of the last tail call, until they're collected by the calling function
+    private LoxFunction tailCallee;
+    private Object[] tailCallArgs;
+    // Compiles hot functions and loops to JVM bytecode, only if enabled
+    private Jit jit;
+    // Caches the results of pure functions, only if enabled
+    private Memoizer memoizer;
 
     public Interpreter() {
-        globals.declare("print", new PrintFunc());
-        globals.declare("time", new TimeFunc());
-        globals.declare("str", new StrFunc());
-        globals.declare("random", new RandomFunc());
+        builtins.forEach((name, function) -> globals.declare(Symbol.of(name), function));
+    }
+
+    public Environment getGlobals() {
+        return globals;
+    }
+
+    public Map<String, LoxCallable> getBuiltins() {
+        return builtins;
+    }
+
+    public Jit getJit() {
+        return jit;
+    }
+
+    public void setJit(Jit jit) {
+        this.jit = jit;
+    }
+
+    public Memoizer getMemoizer() {
+        return memoizer;
+    }
+
+    public void setMemoizer(Memoizer memoizer) {
+        this.memoizer = memoizer;
     }
 
     public void interpret(List<Declaration> declarations) {
@@ -54,41 +88,37 @@ public class Interpreter implements ExpressionVisitor<Object>, StatementVisitor<
         }
     }
 
-    public void addLocalResolution(Expression expr, int depth) {
-        this.locals.put(expr, depth);
-    }
-
-    private void execute(Declaration decl) {
-        decl.accept(this);
+    private Completion execute(Declaration decl) {
+        return decl.accept(this);
     }
 
-    private void execute(Statement stmt) {
-        stmt.accept(this);
+    private Completion execute(Statement stmt) {
+        return stmt.accept(this);
     }
 
     ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
     /// Declaration visitors
     @Override
-    public Void visitVariableDecl(VariableDecl decl) {
+    public Completion visitVariableDecl(VariableDecl decl) {
         Object value = null;
         if(decl.value != null) {
             value = evaluate(decl.value);
         }
 
-        environment.declare(decl.identifier.getLexeme(), value);
-        return null;
+        declare(decl.identifier, decl.slot, value);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitFunctionDecl(FunctionDecl decl) {
+    public Completion visitFunctionDecl(FunctionDecl decl) {
         var currentEnv = this.environment;
         var fnCallable = new LoxFunction(decl, currentEnv);
-        this.environment.declare(decl.identifier.getLexeme(), fnCallable);
-        return null;
+        declare(decl.identifier, decl.slot, fnCallable);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitStatementDecl(StatementDecl decl) {
+    public Completion visitStatementDecl(StatementDecl decl) {
         return decl.stmt.accept(this);
     }
 
@@ -96,56 +126,122 @@ public class Interpreter implements ExpressionVisitor<Object>, StatementVisitor<
     /// Statement visitors
 
     @Override
-    public Void visitBlock(Block block) {
-        var environ = new Environment(this.environment);
-        runBlock(block, environ);
-        return null;
+    public Completion visitBlock(Block block) {
+        if(!block.hasScope) {
+            return executeAll(block.decls);
+        }
+
+        var environ = new Environment(this.environment, block.scopeSize);
+        return runBlock(block, environ);
     }
 
     @Override
-    public Void visitBreakStmt(BreakStmt stmt) {
-        throw new BreakExc();
+    public Completion visitBreakStmt(BreakStmt stmt) {
+        return Completion.BREAK;
     }
 
     @Override
-    public Void visitReturnStmt(ReturnStmt stmt) {
+    public Completion visitReturnStmt(ReturnStmt stmt) {
+        if(stmt.isTailCall) {
+            return tailCall((CallExpr) stmt.value);
+        }
+
         Object value = null;
         if(stmt.value != null) {
             value = evaluate(stmt.value);
         }
 
-        throw new ReturnExc(value);
+        this.returnValue = value;
+        return Completion.RETURN;
     }
 
     @Override
-    public Void visitIfStmt(IfStmt ifStmt) {
+    public Completion visitIfStmt(IfStmt ifStmt) {
         var condition = evaluate(ifStmt.condition);
         if(isTruthy(condition)) {
-            execute(ifStmt.trueBranch);
+            return execute(ifStmt.trueBranch);
         } else if(ifStmt.falseBranch != null) {
-            execute(ifStmt.falseBranch);
+            return execute(ifStmt.falseBranch);
         }
 
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitWhileStmt(WhileStmt stmt) {
+    public Completion visitWhileStmt(WhileStmt stmt) {
+        if(stmt.compiled != null) {
+            return stmt.compiled.run(this, this.environment, 0);
+        }
+
         while(isTruthy(evaluate(stmt.condition))) {
-            try {
-                execute(stmt.body);
-            } catch(BreakExc stop) {
+            var completion = execute(stmt.body);
+            if(completion == Completion.BREAK) {
                 break;
+            } else if(completion != Completion.NORMAL) {
+                // Keep propagating it upwards until it reaches the function call
+                return completion;
+            }
+
+            // Once the loop is hot, the rest of it runs in compiled code (on-stack replacement)
+            if(jit != null && ++stmt.backEdges == jit.getLoopThreshold()) {
+                stmt.compiled = jit.compileLoop(stmt);
+                if(stmt.compiled != null) {
+                    return stmt.compiled.run(this, this.environment, 0);
+                }
             }
         }
 
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitExpressionStmt(ExpressionStmt stmt) {
+    public Completion visitCountedLoopStmt(CountedLoopStmt stmt) {
+        var counter = stmt.counter;
+        var step = stmt.step;
+
+        // A recursive call in the body may run this same loop before the current run is
+        // over, in which case the counter is shared, so its value is restored afterwards
+        var outerValue = counter.value;
+        try {
+            var start = evaluate(stmt.start);
+            if(!(start instanceof Double)) {
+                // The condition will fail on its first check, once the limit has been evaluated
+                evaluate(stmt.limit);
+                toNumber(start, stmt.comparison);
+            }
+
+            counter.value = (Double) start;
+            if(stmt.compiled != null) {
+                return stmt.compiled.run(this, this.environment, counter.value);
+            }
+
+            while(compareCounter(stmt)) {
+                var completion = execute(stmt.body);
+                if(completion == Completion.BREAK) {
+                    break;
+                } else if(completion != Completion.NORMAL) {
+                    return completion;
+                }
+                counter.value += step;
+
+                if(jit != null && ++stmt.backEdges == jit.getLoopThreshold()) {
+                    stmt.compiled = jit.compileLoop(stmt);
+                    if(stmt.compiled != null) {
+                        return stmt.compiled.run(this, this.environment, counter.value);
+                    }
+                }
+            }
+
+            return Completion.NORMAL;
+        } finally {
+            counter.value = outerValue;
+        }
+    }
+
+    @Override
+    public Completion visitExpressionStmt(ExpressionStmt stmt) {
         evaluate(stmt.expr);
-        return null;
+        return Completion.NORMAL;
     }
 
     ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -157,42 +253,22 @@ public class Interpreter implements ExpressionVisitor<Object>, StatementVisitor<
      * This is the method that should be used internally when evaluating subexpressions,
      * since the whole expression must be discarded if a RuntimeError occurs anywhere inside it.
      */
-    private Object evaluate(Expression expr) {
+    protected Object evaluate(Expression expr) {
         return expr.accept(this);
     }
 
     @Override
     public Object visitAssignmentExpr(AssignmentExpr assignExpr) {
-        // This can be a direct assignment (=) or syntactic sugar for operation and assignment
-        // i.e., += -= *= /=
-        // In the latter case, we construct a binary expression with the corresponding
-        // operator and evaluate it to get the result that will be assigned.
+        // Operation and assignment (+= -= *= /=) has already been de-sugared by the parser
+        var value = evaluate(assignExpr.rightSide);
 
-        var operatorType = assignExpr.operator.getType();
-        Object value;
-
-        if(operatorType == EQUAL) {
-            value = evaluate(assignExpr.rightSide);
-        } else {
-            var binaryOpType = switch(operatorType) {
-                case PLUS_EQUAL ->  PLUS;
-                case MINUS_EQUAL -> MINUS;
-                case ASTERISK_EQUAL -> ASTERISK;
-                case SLASH_EQUAL -> SLASH;
-                default -> throw new IllegalStateException("Unsupported assignment operator");
-            };
-
-            var leftSide = new VariableExpr(assignExpr.target);
-            var binaryOp = new Token(binaryOpType);
-            var expr = new BinaryExpr(leftSide, binaryOp, assignExpr.rightSide);
-            value = evaluate(expr);
-        }
-
-        var depth = this.locals.get(assignExpr);
-        if(depth != null) {
-            environment.assignAt(assignExpr.target, value, depth);
+        if(assignExpr.depth >= 0) {
+            environment.assignAt(assignExpr.depth, assignExpr.slot, value);
         } else {
-            globals.assign(assignExpr.target, value);
+            if(!globals.owns(assignExpr.cell)) {
+                assignExpr.cell = globals.getCell(assignExpr.target);
+            }
+            assignExpr.cell.set(value);
         }
 
         return value;
@@ -210,70 +286,130 @@ public class Interpreter implements ExpressionVisitor<Object>, StatementVisitor<
 
     @Override
     public Object visitVariableExpr(VariableExpr varExpr) {
-        var depth = this.locals.get(varExpr);
-        if(depth != null) {
-            return environment.getAt(varExpr.identifier, depth);
+        if(varExpr.depth >= 0) {
+            return environment.getAt(varExpr.depth, varExpr.slot);
         } else {
-            return globals.get(varExpr.identifier);
+            if(!globals.owns(varExpr.cell)) {
+                varExpr.cell = globals.getCell(varExpr.identifier);
+            }
+            return varExpr.cell.value;
         }
     }
 
     @Override
     public Object visitUnaryExpr(UnaryExpr unaryExpr) {
-        var rightResult = evaluate(unaryExpr.rightSide);
+        if(unaryExpr.isNumeric) {
+            // The result escapes here, so this is the only place where it gets boxed
+            return evaluateDouble(unaryExpr);
+        }
 
-        return switch(unaryExpr.operator.getType()) {
-            case MINUS:
-                ensureValueIsNumber(rightResult, unaryExpr.operator);
-                yield -(Double)rightResult;
-            case NOT:
-                yield !isTruthy(rightResult);
-            default:
-                // Unreachable, all possible unary operators should have been covered
-                throw new IllegalStateException("Unsupported unary operator: " + unaryExpr.operator);
-        };
+        var rightResult = evaluate(unaryExpr.rightSide);
+        return unaryOperation(unaryExpr.operator, rightResult);
     }
 
     @Override
     public Object visitBinaryExpr(BinaryExpr binaryExpr) {
+        if(binaryExpr.isNumeric) {
+            // The result escapes here, so this is the only place where it gets boxed
+            return evaluateDouble(binaryExpr);
+        }
+
+        switch(binaryExpr.operator.getType()) {
+            case LESS, LESS_EQUAL, GREATER, GREATER_EQUAL:
+                return compareNumbers(binaryExpr);
+        }
+
         var leftResult = evaluate(binaryExpr.leftSide);
         var rightResult = evaluate(binaryExpr.rightSide);
+        return binaryOperation(binaryExpr.operator, leftResult, rightResult);
+    }
 
-        return switch(binaryExpr.operator.getType()) {
-            case EQUAL_EQUAL:
-                yield valuesAreEqual(leftResult, rightResult);
-            case NOT_EQUAL:
-                yield !valuesAreEqual(leftResult, rightResult);
-            case PLUS:
-                // The plus operator is overloaded, compute it in its own function
-                yield plus(leftResult, rightResult, binaryExpr.operator);
-            case MINUS:
-                ensureValuesAreNumbers(leftResult, rightResult, binaryExpr.operator);
-                yield (Double) leftResult - (Double) rightResult;
-            case SLASH:
-                ensureValuesAreNumbers(leftResult, rightResult, binaryExpr.operator);
-                yield (Double) leftResult / (Double) rightResult;
-            case ASTERISK:
-                ensureValuesAreNumbers(leftResult, rightResult, binaryExpr.operator);
-                yield (Double) leftResult * (Double) rightResult;
-            case PERCENT:
-                ensureValuesAreNumbers(leftResult, rightResult, binaryExpr.operator);
-                yield (Double) leftResult % (Double) rightResult;
-            case LESS:
-                ensureValuesAreNumbers(leftResult, rightResult, binaryExpr.operator);
-                yield (Double) leftResult < (Double) rightResult;
-            case LESS_EQUAL:
-                ensureValuesAreNumbers(leftResult, rightResult, binaryExpr.operator);
-                yield (Double) leftResult <= (Double) rightResult;
-            case GREATER:
-                ensureValuesAreNumbers(leftResult, rightResult, binaryExpr.operator);
-                yield (Double) leftResult > (Double) rightResult;
-            case GREATER_EQUAL:
-                ensureValuesAreNumbers(leftResult, rightResult, binaryExpr.operator);
-                yield (Double) leftResult >= (Double) rightResult;
-            default:
-                // Unreachable, all possible unary operators should have been covered
-                throw new IllegalStateException("Unsupported binary operator: " + binaryExpr.operator);
+    /**
+     * Evaluates an expression that the Analyzer marked as numeric, returning its result as
+     * a primitive double. Numeric subexpressions are evaluated recursively this way, so the
+     * intermediate results of arithmetic are never boxed. Values are only boxed when they
+     * escape, i.e., when a numeric expression is evaluated through evaluate().
+     */
+    protected double evaluateDouble(Expression expr) {
+        if(expr instanceof BinaryExpr binaryExpr) {
+            return arithmetic(binaryExpr);
+        } else if(expr instanceof LiteralExpr literalExpr) {
+            return (Double) literalExpr.literal;
+        } else if(expr instanceof CounterExpr counterExpr) {
+            return counterExpr.counter.value;
+        } else if(expr instanceof GroupExpr groupExpr) {
+            return evaluateDouble(groupExpr.expr);
+        } else if(expr instanceof UnaryExpr unaryExpr) {
+            var operand = unaryExpr.rightSide;
+            if(operand.isNumeric) {
+                return -evaluateDouble(operand);
+            }
+            return -toNumber(evaluate(operand), unaryExpr.operator);
+        }
+
+        // Unreachable, the Analyzer only marks the previous expressions as numeric
+        throw new IllegalStateException("Expression is not numeric: " + expr);
+    }
+
+    // Computes a numeric binary operator without boxing. Operands that aren't known to be
+    // numeric are evaluated normally and only checked once both sides have been evaluated,
+    // to report errors exactly like binaryOperation() does.
+    private double arithmetic(BinaryExpr binaryExpr) {
+        var leftSide = binaryExpr.leftSide;
+        var rightSide = binaryExpr.rightSide;
+        var operator = binaryExpr.operator;
+
+        double left = 0, right = 0;
+        Object leftResult = null, rightResult = null;
+        if(leftSide.isNumeric) left = evaluateDouble(leftSide); else leftResult = evaluate(leftSide);
+        if(rightSide.isNumeric) right = evaluateDouble(rightSide); else rightResult = evaluate(rightSide);
+        if(!leftSide.isNumeric) left = toNumber(leftResult, operator);
+        if(!rightSide.isNumeric) right = toNumber(rightResult, operator);
+
+        return switch(operator.getType()) {
+            case PLUS -> left + right;
+            case MINUS -> left - right;
+            case ASTERISK -> left * right;
+            case SLASH -> left / right;
+            case PERCENT -> modulo(left, right);
+            default -> throw new IllegalStateException("Unsupported numeric operator: " + operator);
+        };
+    }
+
+    // Checks the condition of a counted loop, comparing its counter against the limit
+    private boolean compareCounter(CountedLoopStmt stmt) {
+        var limitExpr = stmt.limit;
+        var limit = limitExpr.isNumeric ? evaluateDouble(limitExpr) : toNumber(evaluate(limitExpr), stmt.comparison);
+        var value = stmt.counter.value;
+
+        return switch(stmt.comparison.getType()) {
+            case LESS -> value < limit;
+            case LESS_EQUAL -> value <= limit;
+            case GREATER -> value > limit;
+            case GREATER_EQUAL -> value >= limit;
+            default -> throw new IllegalStateException("Unsupported comparison operator: " + stmt.comparison);
+        };
+    }
+
+    // Same as arithmetic(), but for comparison operators
+    private boolean compareNumbers(BinaryExpr binaryExpr) {
+        var leftSide = binaryExpr.leftSide;
+        var rightSide = binaryExpr.rightSide;
+        var operator = binaryExpr.operator;
+
+        double left = 0, right = 0;
+        Object leftResult = null, rightResult = null;
+        if(leftSide.isNumeric) left = evaluateDouble(leftSide); else leftResult = evaluate(leftSide);
+        if(rightSide.isNumeric) right = evaluateDouble(rightSide); else rightResult = evaluate(rightSide);
+        if(!leftSide.isNumeric) left = toNumber(leftResult, operator);
+        if(!rightSide.isNumeric) right = toNumber(rightResult, operator);
+
+        return switch(operator.getType()) {
+            case LESS -> left < right;
+            case LESS_EQUAL -> left <= right;
+            case GREATER -> left > right;
+            case GREATER_EQUAL -> left >= right;
+            default -> throw new IllegalStateException("Unsupported comparison operator: " + operator);
         };
     }
 
@@ -295,8 +431,49 @@ public class Interpreter implements ExpressionVisitor<Object>, StatementVisitor<
     }
 
     public Object visitCallExpr(CallExpr callExpr) {
-        var callee = evaluate(callExpr.callee);
+        var callable = evaluateCallee(callExpr);
+
+        // Same as call(), made here to save a frame on every nested call
+        var args = callExpr.args;
+        return switch(args.size()) {
+            case 0 -> callable.call0(this);
+            case 1 -> callable.call1(this, evaluate(args.get(0)));
+            case 2 -> callable.call2(this, evaluate(args.get(0)), evaluate(args.get(1)));
+            case 3 -> callable.call3(this, evaluate(args.get(0)), evaluate(args.get(1)), evaluate(args.get(2)));
+            default -> call(callable, callExpr);
+        };
+    }
+
+    @Override
+    public Object visitInlinedCallExpr(InlinedCallExpr inlinedCallExpr) {
+        // The inlined body is only valid while the global still holds the same function
+        var call = inlinedCallExpr.call;
+        var callee = evaluate(call.callee);
+        if(callee instanceof LoxFunction function && function.fn == inlinedCallExpr.function) {
+            return evaluate(inlinedCallExpr.body);
+        }
+
+        return call(checkCallable(callee, call), call);
+    }
+
+    @Override
+    public Object visitCounterExpr(CounterExpr counterExpr) {
+        // The value is only boxed here, when it's read as a regular value
+        return counterExpr.counter.value;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Auxiliary private methods
+
+    /**
+     * Evaluates the callee of a call and makes sure that it's indeed callable
+     * and that the argument count matches its arity.
+     */
+    private LoxCallable evaluateCallee(CallExpr callExpr) {
+        return checkCallable(evaluate(callExpr.callee), callExpr);
+    }
 
+    public static LoxCallable checkCallable(Object callee, CallExpr callExpr) {
         // Make sure that the callee evaluates in runtime to something that is indeed callable
         if(!(callee instanceof LoxCallable callable)) {
             throw new RuntimeError("The object is not callable", callExpr.closingParens);
@@ -309,40 +486,262 @@ public class Interpreter implements ExpressionVisitor<Object>, StatementVisitor<
             throw new RuntimeError("Expected " + arity + " arguments, got " + nArgs + ".", callExpr.closingParens);
         }
 
-        // Runtime checks passed, evaluate the arguments in order and store their results
-        List<Object> argValues = new ArrayList<>();
-        for(Expression argExpr : callExpr.args) {
-            argValues.add(evaluate(argExpr));
+        return callable;
+    }
+
+    /**
+     * Evaluates the arguments of a call in order and passes them to the callable
+     * through the entry point for that number of arguments.
+     */
+    private Object call(LoxCallable callable, CallExpr callExpr) {
+        var args = callExpr.args;
+        var nArgs = args.size();
+        return switch(nArgs) {
+            case 0 -> callable.call0(this);
+            case 1 -> callable.call1(this, evaluate(args.get(0)));
+            case 2 -> callable.call2(this, evaluate(args.get(0)), evaluate(args.get(1)));
+            case 3 -> callable.call3(this, evaluate(args.get(0)), evaluate(args.get(1)), evaluate(args.get(2)));
+            default -> {
+                var argValues = new Object[nArgs];
+                for(int i = 0; i < nArgs; i++) {
+                    argValues[i] = evaluate(args.get(i));
+                }
+                yield callable.call(this, argValues);
+            }
+        };
+    }
+
+    /**
+     * Prepares a call in tail position. Calls to Lox functions are not made here, but handed
+     * to the function that is returning, so that they don't nest on the Java stack.
+     */
+    private Completion tailCall(CallExpr callExpr) {
+        var callable = evaluateCallee(callExpr);
+
+        // Builtins don't run any Lox code, so they can be called right away
+        if(!(callable instanceof LoxFunction function)) {
+            this.returnValue = call(callable, callExpr);
+            return Completion.RETURN;
         }
 
-        return callable.call(this, argValues);
+        var args = callExpr.args;
+        var argValues = new Object[args.size()];
+        for(int i = 0; i < argValues.length; i++) {
+            argValues[i] = evaluate(args.get(i));
+        }
+
+        return tailCall(function, argValues);
     }
 
-    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
-    /// Auxiliary private methods
+    /**
+     * Same as tailCall(CallExpr), for a callable and arguments that have already been evaluated.
+     * The call is left pending if it's a Lox function, or made right away otherwise.
+     */
+    public Completion tailCall(LoxCallable callable, Object[] args) {
+        if(!(callable instanceof LoxFunction function)) {
+            this.returnValue = callable.call(this, args);
+            return Completion.RETURN;
+        }
+
+        this.tailCallee = function;
+        this.tailCallArgs = args;
+        return Completion.TAIL_CALL;
+    }
+
+    /** Completes a return statement with an already evaluated value */
+    public Completion returnWith(Object value) {
+        this.returnValue = value;
+        return Completion.RETURN;
+    }
+
+    /**
+     * Retrieves the cell of a global variable, raising a RuntimeError if it's not defined.
+     */
+    public GlobalCell getGlobalCell(Token identifier) {
+        return globals.getCell(identifier);
+    }
 
     /**
      * Runs a block containing statements using the provided environment, which
      * must be adequately updated by the caller beforehand.
+     * Execution stops at the first break or return, whose completion is handed back to the caller.
      */
-    public void runBlock(Block block, Environment newEnviron) {
+    public Completion runBlock(Block block, Environment newEnviron) {
         var oldEnviron = this.environment;
         this.environment = newEnviron;
 
         try {
-            for(Declaration decl : block.decls) {
-                execute(decl);
+            return executeAll(block.decls);
+        } finally {
+            this.environment = oldEnviron;
+        }
+    }
+
+    /**
+     * Runs the body of a function with its call environment, and then the body of any function
+     * that it tail-calls, in a loop. This way, tail calls run in constant Java stack instead of nesting.
+     * The declarations are executed here rather than through runBlock(), since every frame between
+     * two nested calls limits how deep non-tail recursion can go.
+     */
+    public Object runFunction(LoxFunction function, Environment callEnv) {
+        var oldEnviron = this.environment;
+        try {
+            while(true) {
+                this.environment = callEnv;
+                var completion = Completion.NORMAL;
+                for(Declaration decl : function.fn.body.decls) {
+                    // Statements are unwrapped, since that's all that visitStatementDecl() does
+                    completion = decl instanceof StatementDecl statementDecl ?
+                            statementDecl.stmt.accept(this) : decl.accept(this);
+                    if(completion != Completion.NORMAL) {
+                        break;
+                    }
+                }
+
+                if(completion == Completion.RETURN) {
+                    return takeReturnValue();
+                } else if(completion != Completion.TAIL_CALL) {
+                    return null;
+                }
+
+                if(jit != null) {
+                    var result = LoxFunction.runCompiledTailCalls(this);
+                    if(result != JitRuntime.INTERPRET) {
+                        return result;
+                    }
+                }
+
+                var callee = takeTailCallee();
+                var args = takeTailCallArgs();
+
+                // A function with no inner functions can't have its environment captured,
+                // so a tail call to itself can reuse it instead of creating a new one
+                if(callee != function || function.fn.hasInnerFunctions) {
+                    callEnv = callee.newCallEnv();
+                }
+                for(int i = 0; i < args.length; i++) {
+                    callEnv.define(i, args[i]);
+                }
+                function = callee;
             }
         } finally {
             this.environment = oldEnviron;
         }
     }
 
+    // Executes declarations in the current environment, stopping at the first break or return
+    private Completion executeAll(List<Declaration> decls) {
+        for(Declaration decl : decls) {
+            var completion = execute(decl);
+            if(completion != Completion.NORMAL) {
+                return completion;
+            }
+        }
+        return Completion.NORMAL;
+    }
+
+    /**
+     * Collects the value of the last executed return statement.
+     * It's cleared afterwards, so that the Interpreter doesn't keep it alive.
+     */
+    public Object takeReturnValue() {
+        var value = this.returnValue;
+        this.returnValue = null;
+        return value;
+    }
+
+    /**
+     * Collects the function of the last executed tail call.
+     * Its arguments must be collected right after it using takeTailCallArgs().
+     */
+    public LoxFunction takeTailCallee() {
+        var callee = this.tailCallee;
+        this.tailCallee = null;
+        return callee;
+    }
+
+    public Object[] takeTailCallArgs() {
+        var args = this.tailCallArgs;
+        this.tailCallArgs = null;
+        return args;
+    }
+
+    /**
+     * Declares a variable in the current environment, either by name if it's a global
+     * variable or in its assigned slot if it's a local one.
+     */
+    private void declare(Token identifier, int slot, Object value) {
+        if(slot < 0) {
+            environment.declare(identifier.getSymbol(), value);
+        } else {
+            environment.define(slot, value);
+        }
+    }
+
+    /**
+     * Computes the result of a unary operator applied to an already evaluated operand.
+     */
+    public static Object unaryOperation(Token operator, Object rightResult) {
+        return switch(operator.getType()) {
+            case MINUS:
+                ensureValueIsNumber(rightResult, operator);
+                yield -(Double)rightResult;
+            case NOT:
+                yield !isTruthy(rightResult);
+            default:
+                // Unreachable, all possible unary operators should have been covered
+                throw new IllegalStateException("Unsupported unary operator: " + operator);
+        };
+    }
+
+    /**
+     * Computes the result of a binary (non-logical) operator applied to already evaluated operands.
+     * Like unaryOperation(), it's static so that other execution strategies share the same semantics.
+     */
+    public static Object binaryOperation(Token operator, Object leftResult, Object rightResult) {
+        return switch(operator.getType()) {
+            case EQUAL_EQUAL:
+                yield valuesAreEqual(leftResult, rightResult);
+            case NOT_EQUAL:
+                yield !valuesAreEqual(leftResult, rightResult);
+            case PLUS:
+                // The plus operator is overloaded, compute it in its own function
+                yield plus(leftResult, rightResult, operator);
+            case MINUS:
+                ensureValuesAreNumbers(leftResult, rightResult, operator);
+                yield (Double) leftResult - (Double) rightResult;
+            case SLASH:
+                ensureValuesAreNumbers(leftResult, rightResult, operator);
+                yield (Double) leftResult / (Double) rightResult;
+            case ASTERISK:
+                ensureValuesAreNumbers(leftResult, rightResult, operator);
+                yield (Double) leftResult * (Double) rightResult;
+            case PERCENT:
+                ensureValuesAreNumbers(leftResult, rightResult, operator);
+                yield modulo((Double) leftResult, (Double) rightResult);
+            case LESS:
+                ensureValuesAreNumbers(leftResult, rightResult, operator);
+                yield (Double) leftResult < (Double) rightResult;
+            case LESS_EQUAL:
+                ensureValuesAreNumbers(leftResult, rightResult, operator);
+                yield (Double) leftResult <= (Double) rightResult;
+            case GREATER:
+                ensureValuesAreNumbers(leftResult, rightResult, operator);
+                yield (Double) leftResult > (Double) rightResult;
+            case GREATER_EQUAL:
+                ensureValuesAreNumbers(leftResult, rightResult, operator);
+                yield (Double) leftResult >= (Double) rightResult;
+            default:
+                // Unreachable, all possible unary operators should have been covered
+                throw new IllegalStateException("Unsupported binary operator: " + operator);
+        };
+    }
+
     /**
      * Determines the truthiness of a value when implicitly converted to a boolean
      * via the ! operator. In Lox, everything is truthy except false and null.
      */
-    private boolean isTruthy(Object o) {
+    public static boolean isTruthy(Object o) {
         if(o == null) return false;
         if(o instanceof Boolean) return (boolean) o;
         return true;
@@ -353,17 +752,49 @@ public class Interpreter implements ExpressionVisitor<Object>, StatementVisitor<
      * The token that contains the operator acting on the value is provided
      * to track down the error location when displaying it to the user.
      */
-    private void ensureValueIsNumber(Object value, Token operator) {
+    private static void ensureValueIsNumber(Object value, Token operator) {
         if(!(value instanceof Double)) {
             var name = value == null ? "null" : value.toString();
             throw new RuntimeError("Value is not a number: " + name, operator);
         }
     }
 
+    /**
+     * Unboxes a value that must be a number, raising the same error as the operator would otherwise.
+     * The plus operator has its own error message, since it also accepts strings.
+     */
+    public static double toNumber(Object value, Token operator) {
+        if(value instanceof Double number) {
+            return number;
+        }
+
+        if(operator.getType() == PLUS) {
+            throw new RuntimeError("Operators for sum must be two numbers or two strings", operator);
+        }
+        ensureValueIsNumber(value, operator);
+        return 0; // Unreachable
+    }
+
+    /**
+     * Remainder of a division, like Java's %. Whole numbers that fit in an int are divided as ints,
+     * which is much faster than the floating point remainder and gives the same result as long as
+     * the dividend is positive, since the sign of a zero result follows the dividend, even for -0.
+     */
+    public static double modulo(double left, double right) {
+        if(left > 0 && left <= Integer.MAX_VALUE && right >= 1 && right <= Integer.MAX_VALUE) {
+            var l = (int) left;
+            var r = (int) right;
+            if(l == left && r == right) {
+                return l % r;
+            }
+        }
+        return left % right;
+    }
+
     /**
      * Similar to ensureValueIsNumber() but checks two values at the same time for convenience
      */
-    private void ensureValuesAreNumbers(Object v1, Object v2, Token operator) {
+    private static void ensureValuesAreNumbers(Object v1, Object v2, Token operator) {
         ensureValueIsNumber(v1, operator);
         ensureValueIsNumber(v2, operator);
     }
@@ -371,12 +802,12 @@ public class Interpreter implements ExpressionVisitor<Object>, StatementVisitor<
     /**
      * Auxiliary method for determining equality while avoiding NullPointerExceptions.
      * Two nulls are always the same, otherwise we rely on Java's equals() if the left
-     * hand operand isn't null
+     * hand operand isn't null. Ropes are flattened first, to compare strings by their contents.
      */
-    private boolean valuesAreEqual(Object right, Object left) {
+    public static boolean valuesAreEqual(Object right, Object left) {
         if(right == null && left == null) return true;
         if(right == null) return false; // left is not null
-        return right.equals(left);
+        return Rope.flatten(right).equals(Rope.flatten(left));
     }
 
     /**
@@ -384,11 +815,11 @@ public class Interpreter implements ExpressionVisitor<Object>, StatementVisitor<
      * concatenate two strings. If the values have any other types, or an incompatible
      * type combination, this will raise a RuntimeError.
      */
-    private Object plus(Object right, Object left, Token operator) {
+    public static Object plus(Object right, Object left, Token operator) {
         if(right instanceof Double && left instanceof Double) {
             return (Double) right + (Double) left;
-        } else if(right instanceof String && left instanceof String) {
-            return right + (String) left;
+        } else if(right instanceof CharSequence r && left instanceof CharSequence l) {
+            return Rope.concat(r, l);
         }
 
         // Incompatible or non-supported types
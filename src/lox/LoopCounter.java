@@ -0,0 +1,10 @@
+package lox;
+
+/**
+ * Holds the current value of the variable of a counted loop as a primitive double.
+ * It's shared by the loop and the expressions that read the variable in its body,
+ * so that the value doesn't need to be boxed and stored in an environment.
+ */
+public class LoopCounter {
+    public double value;
+}
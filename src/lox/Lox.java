@@ -1,37 +1,237 @@
 package lox;
 
+import lox.cache.ProgramCache;
+import lox.cache.Snapshot;
+import lox.closures.ClosureRuntime;
+import lox.decl.Declaration;
+import lox.decl.ImportDecl;
+import lox.jit.Jit;
+import lox.opt.Inliner;
+import lox.opt.Optimizer;
 import lox.tokens.Token;
 import lox.tokens.TokenScanner;
 import lox.tokens.TokenType;
+import lox.vm.Compiler;
+import lox.vm.VM;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
 
 public class Lox {
     static boolean hadSyntaxError = false;
     static boolean hadRuntimeError = false;
 
     static Interpreter interpreter = new Interpreter();
+    // The bytecode VM is only created if requested with --vm
+    static VM vm = null;
+    // Programs are only converted into closures if requested with --closures
+    static ClosureRuntime closures = null;
+    static boolean optimize = true;
+    static boolean dumpTree = false;
+    // Maximum size of the functions that are inlined, in number of nodes of the expression they return
+    static int inlineBudget = 16;
+    static boolean inlineReport = false;
+    // Hot functions and loops are only compiled to JVM bytecode if requested with --jit
+    static boolean jit = false;
+    static boolean jitLog = false;
+    // Number of calls after which a function is compiled, loops are compiled after ten times as many iterations
+    static int jitThreshold = 1000;
+    // Pure functions are only memoized if requested with --memo, keeping up to memoSize results each
+    static boolean memo = false;
+    static int memoSize = 10000;
+    static boolean memoStats = false;
+    // Scripts are read, parsed and run one top-level declaration at a time if requested with --stream
+    static boolean stream = false;
+    // Modules imported by the programs that have been run, each of which is only loaded once
+    static ModuleLoader modules = new ModuleLoader();
+    // Module whose errors are being reported by each thread, which is null for the program itself
+    private static final ThreadLocal<String> errorModule = new ThreadLocal<>();
+    // Analyzed scripts are only cached on disk if requested with --cache or --cache-dir, up to cacheSize MB
+    static Path cacheDirectory = null;
+    static int cacheSize = 64;
+    static ProgramCache cache = null;
+    // The globals are restored from a snapshot before running anything if requested with --from-snapshot,
+    // and written to one after running the script if requested with --snapshot
+    static Path snapshotInput = null;
+    static boolean snapshot = false;
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script] OR jlox for live interpreter");
+        String script = null;
+        // Only used by --snapshot, the file that the snapshot is written to
+        String output = null;
+
+        for(int i = 0; i < args.length; i++) {
+            var arg = args[i];
+            if(arg.equals("--vm")) {
+                vm = new VM();
+            } else if(arg.equals("--closures")) {
+                closures = new ClosureRuntime();
+            } else if(arg.equals("--specialize")) {
+                interpreter = new SpecializingInterpreter();
+            } else if(arg.equals("--no-optimize")) {
+                optimize = false;
+            } else if(arg.equals("--dump-tree")) {
+                dumpTree = true;
+            } else if(arg.startsWith("--inline-budget=")) {
+                inlineBudget = parseNumber(arg.substring("--inline-budget=".length()));
+            } else if(arg.equals("--inline-report")) {
+                inlineReport = true;
+            } else if(arg.equals("--jit")) {
+                jit = true;
+            } else if(arg.equals("--jit-log")) {
+                jit = true;
+                jitLog = true;
+            } else if(arg.startsWith("--jit-threshold=")) {
+                jitThreshold = parseNumber(arg.substring("--jit-threshold=".length()));
+            } else if(arg.equals("--memo")) {
+                memo = true;
+            } else if(arg.equals("--no-memo")) {
+                memo = false;
+            } else if(arg.startsWith("--memo-size=")) {
+                memoSize = parseNumber(arg.substring("--memo-size=".length()));
+            } else if(arg.equals("--memo-stats")) {
+                memo = true;
+                memoStats = true;
+            } else if(arg.equals("--stream")) {
+                stream = true;
+            } else if(arg.equals("--cache")) {
+                cacheDirectory = ProgramCache.defaultDirectory();
+            } else if(arg.startsWith("--cache-dir=")) {
+                cacheDirectory = Paths.get(arg.substring("--cache-dir=".length()));
+            } else if(arg.startsWith("--cache-size=")) {
+                cacheSize = parseNumber(arg.substring("--cache-size=".length()));
+            } else if(arg.equals("--snapshot")) {
+                snapshot = true;
+            } else if(arg.equals("--from-snapshot") && i + 1 < args.length) {
+                snapshotInput = Paths.get(args[++i]);
+            } else if(!arg.startsWith("--") && script == null) {
+                script = arg;
+            } else if(!arg.startsWith("--") && output == null) {
+                output = arg;
+            } else {
+                printUsageAndExit();
+            }
+        }
+
+        // Each of them replaces the tree-walking interpreter, so only one can run the program
+        if(snapshot != (output != null) || vm != null && closures != null) {
+            printUsageAndExit();
+        }
+        if((snapshot || snapshotInput != null) && (vm != null || closures != null)) {
+            System.err.println("Snapshots can only be used with the tree-walking interpreter.");
             System.exit(64);
-        } else if(args.length == 1) {
-            runFile(args[0]);
+        }
+
+        if(jit) {
+            interpreter.setJit(new Jit(jitThreshold, jitLog));
+        }
+        if(memo && memoSize > 0) {
+            interpreter.setMemoizer(new Memoizer(interpreter, memoSize));
+        }
+        if(cacheDirectory != null) {
+            cache = new ProgramCache(cacheDirectory, cacheSize * 1024L * 1024L);
+        }
+        if(snapshotInput != null) {
+            restoreSnapshot();
+        }
+
+        if(script != null && stream) {
+            runStream(script);
+        } else if(script != null) {
+            runFile(script);
         } else {
             runPrompt();
         }
+
+        if(snapshot) {
+            saveSnapshot(Paths.get(output));
+        }
+    }
+
+    private static void printUsageAndExit() {
+        System.out.println("Usage: jlox [options] [script] OR jlox [options] for live interpreter");
+        System.out.println("  --vm            Compile to bytecode and run it on the VM instead of the tree-walking interpreter");
+        System.out.println("  --closures      Convert the program into closures and run them instead of walking the tree");
+        System.out.println("  --specialize    Evaluate operators with self-specializing nodes in the tree-walking interpreter");
+        System.out.println("  --no-optimize   Run the program as written, without folding constants or removing dead code");
+        System.out.println("  --dump-tree     Print the tree that is going to be run, after optimizing it");
+        System.out.println("  --inline-budget=N  Only inline functions that return an expression of up to N nodes (default 16, 0 disables it)");
+        System.out.println("  --inline-report    Print the calls that have been inlined");
+        System.out.println("  --jit           Compile hot functions and loops to JVM bytecode in the tree-walking interpreter");
+        System.out.println("  --jit-log       Same as --jit, and print what gets compiled, can't be compiled or is deoptimized");
+        System.out.println("  --jit-threshold=N  Calls after which a function is compiled (default 1000), loops take 10 times as many iterations");
+        System.out.println("  --memo          Memoize the results of the functions that are found to be pure, in the tree-walking interpreter");
+        System.out.println("  --no-memo       Don't memoize functions, which is the default");
+        System.out.println("  --memo-size=N   Results kept for each memoized function, evicting the least recently used (default 10000)");
+        System.out.println("  --memo-stats    Same as --memo, and print how many calls to each memoized function were answered from its cache");
+        System.out.println("  --stream        Read the script as it runs, running each top-level declaration once it's parsed");
+        System.out.println("  --cache         Keep analyzed scripts on disk, to skip scanning, parsing and analyzing them when they haven't changed");
+        System.out.println("  --cache-dir=DIR    Same as --cache, keeping them in the given directory instead of ~/.cache/jlox");
+        System.out.println("  --cache-size=N     Megabytes of analyzed scripts kept, deleting the least recently used ones (default 64)");
+        System.out.println("  --snapshot script file    Run the script, then write its global variables to the file");
+        System.out.println("  --from-snapshot file      Start with the global variables written to the file by --snapshot");
+        System.exit(64);
+    }
+
+    private static int parseNumber(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch(NumberFormatException e) {
+            printUsageAndExit();
+            return 0; // Unreachable
+        }
     }
 
     private static void runFile(String path) throws IOException {
         var fileBytes = Files.readAllBytes(Paths.get(path));
-        var fileContent = new String(fileBytes, Charset.defaultCharset());
-        runInterpreter(fileContent);
+        var program = cache == null ? null : cache.load(fileBytes, treeOptions());
+        if(program != null) {
+            execute(program);
+            printMemoStats();
+        } else {
+            var fileContent = new String(fileBytes, Charset.defaultCharset());
+            runInterpreter(fileContent, directoryOf(path), fileBytes);
+        }
+
+        if(hadSyntaxError || hadRuntimeError) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs a file without reading it all first. Each top-level declaration is analyzed and run
+     * as soon as it's parsed, and then dropped, so only the one being parsed is kept in memory.
+     * After a syntax error, the rest of the file is still parsed to report its errors, but not run.
+     */
+    private static void runStream(String path) throws IOException {
+        try(var channel = FileChannel.open(Paths.get(path))) {
+            var scanner = new TokenScanner(channel, Charset.defaultCharset());
+            var parser = new ASTParser(scanner.streamTokens());
+            // Functions declared earlier can be inlined in later declarations, like when running the whole file
+            var inliner = new Inliner(inlineBudget);
+
+            while(parser.hasNextDeclaration() && !hadRuntimeError) {
+                var decl = parser.parseNextDeclaration();
+                if(hadSyntaxError) {
+                    continue;
+                }
+
+                var decls = modules.link(List.of(decl), directoryOf(path));
+                if(!hadSyntaxError && analyze(List.of(decl))) {
+                    execute(optimize(decls, inliner));
+                }
+            }
+        }
+
+        printMemoStats();
 
         if(hadSyntaxError || hadRuntimeError) {
             System.exit(1);
@@ -51,14 +251,41 @@ public class Lox {
                 break;
             }
 
-            runInterpreter(line);
+            runInterpreter(line, Paths.get(""), null);
         }
     }
 
+    private static void restoreSnapshot() {
+        try {
+            Snapshot.restore(interpreter, snapshotInput);
+        } catch(IOException e) {
+            var reason = e instanceof NoSuchFileException ? "File not found" : e.getMessage();
+            System.err.println("Can't restore the snapshot: " + reason);
+            System.exit(1);
+        }
+    }
+
+    // Only reached if the script ran without errors
+    private static void saveSnapshot(Path file) {
+        try {
+            Snapshot.save(interpreter, file);
+        } catch(IOException e) {
+            System.err.println("Can't write the snapshot: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Directory that the imports of a script are relative to
+    private static Path directoryOf(String script) {
+        var parent = Paths.get(script).toAbsolutePath().getParent();
+        return parent == null ? Paths.get("") : parent;
+    }
+
     /**
-     * Interprets a piece of Lox code, either from the REPL or from a file
+     * Interprets a piece of Lox code, either from the REPL or from a file, whose imports are
+     * relative to the given directory. The contents of files are given too, to cache them.
      */
-    private static void runInterpreter(String input) {
+    private static void runInterpreter(String input, Path directory, byte[] fileBytes) {
         hadSyntaxError = false;
 
         var scanner = new TokenScanner(input);
@@ -69,11 +296,85 @@ public class Lox {
         var statements = parser.parseTokens();
         if(hadSyntaxError) return;
 
-        var analyzer = new Analyzer(interpreter);
-        analyzer.resolve(statements);
+        // Programs that import modules aren't cached, since the modules may change on their own
+        var isCacheable = fileBytes != null && cache != null && statements.stream().noneMatch(ImportDecl.class::isInstance);
+        var linked = modules.link(statements, directory);
         if(hadSyntaxError) return;
 
-        interpreter.interpret(statements);
+        // The declarations of the modules have been analyzed already, in parallel, while loading them
+        if(!analyze(statements)) return;
+        statements = optimize(linked, new Inliner(inlineBudget));
+        if(isCacheable) {
+            cache.store(fileBytes, treeOptions(), statements);
+        }
+
+        execute(statements);
+        printMemoStats();
+    }
+
+    /**
+     * Analyzes a list of declarations that have been parsed without errors, returning whether it succeeded
+     */
+    private static boolean analyze(List<Declaration> statements) {
+        var analyzer = new Analyzer();
+        analyzer.resolve(statements);
+        return !hadSyntaxError;
+    }
+
+    /**
+     * Optimizes a list of declarations that have been analyzed, returning the resolved tree to run
+     */
+    private static List<Declaration> optimize(List<Declaration> statements, Inliner inliner) {
+        if(!optimize) {
+            return statements;
+        }
+
+        statements = new Optimizer(inliner).optimize(statements);
+        // The optimizer builds new nodes, which must be resolved as well
+        new Analyzer().resolve(statements);
+
+        if(inlineReport) {
+            inliner.getReport().forEach(System.err::println);
+            inliner.getReport().clear();
+        }
+        return statements;
+    }
+
+    // The options that change the tree that is run, which is what the cache stores
+    private static String treeOptions() {
+        return optimize ? "inline-budget=" + inlineBudget : "no-optimize";
+    }
+
+    /**
+     * Runs a list of declarations that have been analyzed and optimized
+     */
+    private static void execute(List<Declaration> statements) {
+        if(dumpTree) {
+            System.err.print(new AstPrinter().print(statements));
+        }
+
+        if(vm != null) {
+            var script = new Compiler().compile(statements);
+            if(hadSyntaxError) return;
+            vm.interpret(script);
+        } else if(closures != null) {
+            closures.interpret(statements);
+        } else {
+            interpreter.interpret(statements);
+        }
+    }
+
+    // Memoization is only done by the tree-walking interpreter
+    private static void printMemoStats() {
+        var memoizer = interpreter.getMemoizer();
+        if(!memoStats || vm != null || closures != null || memoizer == null) {
+            return;
+        }
+
+        for(MemoCache memoCache : memoizer.getCaches()) {
+            System.err.println("[memo] " + memoCache.function.identifier.getLexeme() + ": " + memoCache.getHits() + " hits, "
+                    + memoCache.getMisses() + " misses, " + memoCache.size() + " cached");
+        }
     }
 
     ///////////////////////// Error handling /////////////////////////
@@ -85,7 +386,7 @@ public class Lox {
     }
 
     public static void runtimeError(RuntimeError error) {
-        System.err.println("[Line " + error.token.getLine() + "] Runtime error: " + error.getMessage());
+        System.err.println("[Line " + error.line + "] Runtime error: " + error.getMessage());
         hadRuntimeError = true;
     }
 
@@ -93,8 +394,14 @@ public class Lox {
         reportError(line, "", errorMessage);
     }
 
+    static void setErrorModule(String name) {
+        errorModule.set(name);
+    }
+
     private static void reportError(int line, String where, String errorMessage) {
-        System.err.println("[Line " + line + "] Error" + where + ": " + errorMessage);
+        var module = errorModule.get();
+        var location = module == null ? "[Line " + line + "]" : "[Line " + line + " of \"" + module + "\"]";
+        System.err.println(location + " Error" + where + ": " + errorMessage);
         hadSyntaxError = true;
     }
 }
@@ -0,0 +1,79 @@
+package lox;
+
+import lox.decl.FunctionDecl;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The results of a memoized function, keyed by the values of its arguments. It holds up to a
+ * fixed number of results, evicting the least recently used one when it's full, and counts how
+ * many calls were answered from it (hits) and how many had to run the function (misses).
+ */
+public class MemoCache {
+    /** Returned by get() when there's no result for the arguments, since null is a valid result */
+    public static final Object MISSING = new Object();
+
+    public final FunctionDecl function;
+    private final Map<Object, Object> results;
+    private long hits = 0;
+    private long misses = 0;
+
+    MemoCache(FunctionDecl function, int capacity) {
+        this.function = function;
+        this.results = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Builds the key for a call with several arguments, which may be modified.
+     * Numbers are compared with Double.equals(), so 0 and -0 are different keys, as they
+     * can lead to different results. Ropes are flattened, to be hashed by their contents.
+     */
+    public static Object key(Object... args) {
+        for(int i = 0; i < args.length; i++) {
+            args[i] = Rope.flatten(args[i]);
+        }
+        return Arrays.asList(args);
+    }
+
+    /** Same as key(), for a call with a single argument, which is its own key */
+    public static Object keyOf(Object arg) {
+        return Rope.flatten(arg);
+    }
+
+    public Object get(Object key) {
+        var result = results.getOrDefault(key, MISSING);
+        if(result == MISSING) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return result;
+    }
+
+    public void put(Object key, Object result) {
+        results.put(key, result);
+    }
+
+    void clear() {
+        results.clear();
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public int size() {
+        return results.size();
+    }
+}
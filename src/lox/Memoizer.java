@@ -0,0 +1,140 @@
+package lox;
+
+import lox.builtins.StrFunc;
+import lox.callables.LoxCallable;
+import lox.callables.LoxFunction;
+import lox.decl.FunctionDecl;
+import lox.tokens.Symbol;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which functions are memoized, among those that the Analyzer inferred to be pure.
+ * A pure function is only memoized if the globals it reads hold values that can't make it
+ * impure: numbers, strings, booleans, null, the str() builtin, or other functions that are
+ * memoized as well. This is checked on its first call, and the globals are watched from then on.
+ * If any of them changes, every decision is undone and all the caches are cleared.
+ */
+public class Memoizer {
+    private final Environment globals;
+    private final int capacity;
+    // Cache of every function that has been memoized, kept across invalidations to report their counters
+    private final Map<FunctionDecl, MemoCache> caches = new LinkedHashMap<>();
+    // Functions that have been decided on since the last invalidation, and the globals being watched
+    private final List<FunctionDecl> decided = new ArrayList<>();
+    private final List<GlobalCell> watched = new ArrayList<>();
+
+    /** Memoizes functions run by the given interpreter, keeping up to the given number of results for each one */
+    public Memoizer(Interpreter interpreter, int capacity) {
+        this.globals = interpreter.globals;
+        this.capacity = capacity;
+    }
+
+    /**
+     * The cache to use for a call to a pure function, or null if it must run normally.
+     * Functions that call each other are decided on together.
+     */
+    public MemoCache cacheFor(FunctionDecl function) {
+        if(isDecided(function)) {
+            return function.memo;
+        }
+
+        var group = new LinkedHashSet<FunctionDecl>();
+        var cells = new ArrayList<GlobalCell>();
+        var canMemoize = check(function, group, cells);
+        watch(cells);
+
+        if(!canMemoize) {
+            function.memo = null;
+            function.memoRejected = true;
+            function.memoizer = this;
+            decided.add(function);
+            return null;
+        }
+
+        for(FunctionDecl decl : group) {
+            decl.memo = caches.computeIfAbsent(decl, d -> new MemoCache(d, capacity));
+            decl.memoRejected = false;
+            decl.memoizer = this;
+            decided.add(decl);
+        }
+        return function.memo;
+    }
+
+    /** Caches of all the functions that have been memoized at some point, in the order they were first called */
+    public Collection<MemoCache> getCaches() {
+        return caches.values();
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Aux methods
+
+    // Decisions taken by the Memoizer of another interpreter running the same tree don't count
+    private boolean isDecided(FunctionDecl function) {
+        return function.memoizer == this && (function.memo != null || function.memoRejected);
+    }
+
+    // Checks whether a function can be memoized given the current values of the globals it reads,
+    // collecting the functions it calls and the cells it depends on along the way
+    private boolean check(FunctionDecl function, Set<FunctionDecl> group, List<GlobalCell> cells) {
+        if(!function.isPure || function.memoizer == this && function.memoRejected) {
+            return false;
+        }
+        if(function.memoizer == this && function.memo != null || !group.add(function)) {
+            return true;
+        }
+
+        for(Symbol name : function.globalReads) {
+            var cell = globals.findCell(name);
+            if(cell == null) {
+                return false;
+            }
+            cells.add(cell);
+
+            var value = cell.value;
+            if(value instanceof LoxFunction callee) {
+                if(!check(callee.fn, group, cells)) {
+                    return false;
+                }
+            } else if(value instanceof LoxCallable && !(value instanceof StrFunc)) {
+                // The rest of the builtins either print or depend on when they're called
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void watch(List<GlobalCell> cells) {
+        for(GlobalCell cell : cells) {
+            if(cell.watcher == null) {
+                cell.watcher = this::invalidate;
+                watched.add(cell);
+            }
+        }
+    }
+
+    // Called when a watched global changes, which may make any decision wrong
+    private void invalidate() {
+        for(FunctionDecl decl : decided) {
+            if(decl.memoizer == this) {
+                decl.memo = null;
+                decl.memoRejected = false;
+                decl.memoizer = null;
+            }
+        }
+        decided.clear();
+        caches.values().forEach(MemoCache::clear);
+
+        for(GlobalCell cell : watched) {
+            cell.watcher = null;
+        }
+        watched.clear();
+    }
+}
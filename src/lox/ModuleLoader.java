@@ -0,0 +1,191 @@
+package lox;
+
+import lox.decl.Declaration;
+import lox.decl.ImportDecl;
+import lox.tokens.TokenScanner;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Loads the modules imported by programs. A module is a Lox file whose globals live in their own
+ * namespace, named after the file: the global "sqrt" declared in "lib/math.lox" is "math.sqrt"
+ * everywhere, including inside the module itself. Other names that the module uses, such as the
+ * builtins, still refer to the globals of the program.
+ *
+ * The modules that a program imports, and the ones that they import in turn, are scanned, parsed
+ * and analyzed in parallel, since they don't depend on each other until they run. Then the imports
+ * are replaced by the declarations of their modules, so that the program runs them in order.
+ * Each module is only loaded and run once, no matter how many times or by which programs it's imported.
+ */
+class ModuleLoader {
+
+    private static class Module {
+        final Path file;
+        // Path as written by the first import of the module, to report its errors
+        final String name;
+        final String namespace;
+        // Declarations of the module once it's loaded, until they're handed to the program
+        List<Declaration> declarations;
+        boolean isIncluded = false;
+
+        Module(Path file, String name, String namespace) {
+            this.file = file;
+            this.name = name;
+            this.namespace = namespace;
+        }
+    }
+
+    // Loads a module, and then the ones that it imports that hadn't been found yet
+    private class LoadTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Module module;
+
+        LoadTask(Module module) {
+            this.module = module;
+        }
+
+        @Override
+        protected void compute() {
+            List<LoadTask> imports;
+            Lox.setErrorModule(module.name);
+            try {
+                imports = load(module);
+            } finally {
+                Lox.setErrorModule(null);
+            }
+            invokeAll(imports);
+        }
+    }
+
+    private final Map<Path, Module> modules = new ConcurrentHashMap<>();
+    // Module included under each namespace, to prevent two modules from sharing one
+    private final Map<String, Module> namespaces = new HashMap<>();
+
+    /**
+     * Returns the declarations of a program with its imports replaced by the declarations of the
+     * modules they load, which come after the ones of the modules that those import. Modules that
+     * have already been included before are left out. The paths of the imports are relative to the
+     * given directory. The declarations of the modules have already been analyzed, so only the
+     * ones of the program itself are left to analyze.
+     */
+    List<Declaration> link(List<Declaration> decls, Path directory) {
+        if(decls.stream().noneMatch(ImportDecl.class::isInstance)) {
+            return decls;
+        }
+
+        ForkJoinTask.invokeAll(register(decls, directory));
+        if(Lox.hadSyntaxError) {
+            // The modules that have just been loaded are loaded again the next time, in case they're fixed
+            modules.values().removeIf(module -> !module.isIncluded);
+            return decls;
+        }
+
+        var result = new ArrayList<Declaration>();
+        include(decls, result, null);
+        return result;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Aux methods
+
+    // Scans, parses and analyzes the module, and returns the tasks that load the modules it imports.
+    // Errors in other modules don't stop this one from being loaded, so that all of them are reported.
+    private List<LoadTask> load(Module module) {
+        String source;
+        try {
+            source = Files.readString(module.file, Charset.defaultCharset());
+        } catch(IOException e) {
+            Lox.error(1, "Can't read the module: " + e.getMessage());
+            return List.of();
+        }
+
+        var tokens = new TokenScanner(source).scanTokens();
+        var decls = new ASTParser(tokens).parseTokens();
+        // Declarations with syntax errors are parsed as null, and can't be analyzed
+        if(!decls.contains(null)) {
+            new Analyzer().resolveModule(module.namespace, decls);
+        }
+
+        module.declarations = decls;
+        return register(decls, module.file.getParent());
+    }
+
+    // Finds the module of each of the top-level imports, and returns the tasks that load the new ones
+    private List<LoadTask> register(List<Declaration> decls, Path directory) {
+        var tasks = new ArrayList<LoadTask>();
+        for(Declaration decl : decls) {
+            if(!(decl instanceof ImportDecl importDecl)) {
+                continue;
+            }
+
+            var name = (String) importDecl.path.getLiteral();
+            var file = directory.resolve(name).toAbsolutePath().normalize();
+            if(!Files.isRegularFile(file)) {
+                Lox.error(importDecl.path, "Module file not found.");
+                continue;
+            }
+
+            var namespace = file.getFileName().toString();
+            if(namespace.endsWith(".lox")) {
+                namespace = namespace.substring(0, namespace.length() - ".lox".length());
+            }
+            if(!isIdentifier(namespace)) {
+                Lox.error(importDecl.path, "The name of a module file must be a valid identifier.");
+                continue;
+            }
+
+            importDecl.file = file;
+            var module = new Module(file, name, namespace);
+            if(modules.putIfAbsent(file, module) == null) {
+                tasks.add(new LoadTask(module));
+            }
+        }
+        return tasks;
+    }
+
+    // Adds the declarations to the program, replacing each import with the module it loads if it hasn't been included yet
+    // The owner is the module that the declarations belong to, or null for the program itself.
+    private void include(List<Declaration> decls, List<Declaration> result, Module owner) {
+        for(Declaration decl : decls) {
+            if(!(decl instanceof ImportDecl importDecl)) {
+                result.add(decl);
+                continue;
+            }
+
+            var module = importDecl.file == null ? null : modules.get(importDecl.file);
+            if(module == null || module.isIncluded) {
+                continue;
+            }
+
+            var other = namespaces.putIfAbsent(module.namespace, module);
+            if(other != null) {
+                Lox.error(importDecl.path, "Another module named '" + module.namespace + "' has already been imported.");
+                continue;
+            }
+
+            // A module that imports one of the modules that are importing it gets it as it is so far
+            module.isIncluded = true;
+            Lox.setErrorModule(module.name);
+            include(module.declarations, result, module);
+            Lox.setErrorModule(owner == null ? null : owner.name);
+            module.declarations = null;
+        }
+    }
+
+    private static boolean isIdentifier(String name) {
+        if(name.isEmpty() || Character.isDigit(name.charAt(0))) {
+            return false;
+        }
+        return name.chars().allMatch(ch -> ch == '_' || ch >= 'a' && ch <= 'z' || ch >= 'A' && ch <= 'Z' || ch >= '0' && ch <= '9');
+    }
+}
@@ -0,0 +1,103 @@
+package lox;
+
+import java.util.ArrayDeque;
+
+/**
+ * A string built by the + operator that keeps the two strings it concatenates instead of
+ * copying them, so building a long string piece by piece takes linear time instead of
+ * quadratic. Its characters are only put together (flattened) once the string is needed
+ * as a whole: when it's printed, converted with str(), compared or hashed. The flattened
+ * String is kept from then on, and the pieces are released.
+ *
+ * Short results aren't worth it and are concatenated right away, so strings in Lox are
+ * either Strings or Ropes, and the code that handles strings treats both as CharSequences.
+ */
+public final class Rope implements CharSequence {
+    // Concatenations up to this length are copied into a String right away
+    private static final int MIN_LENGTH = 64;
+
+    private CharSequence left;
+    private CharSequence right;
+    private final int length;
+    // The whole string, once it has been flattened
+    private String flat;
+
+    private Rope(CharSequence left, CharSequence right, int length) {
+        this.left = left;
+        this.right = right;
+        this.length = length;
+    }
+
+    /** Concatenates two strings, each of which is either a String or a Rope */
+    public static CharSequence concat(CharSequence left, CharSequence right) {
+        var length = left.length() + right.length();
+        if(length <= MIN_LENGTH || length < 0) {
+            // Short results, or too long to even have a length, which fail like a regular concatenation
+            return left.toString().concat(right.toString());
+        }
+        return new Rope(left, right, length);
+    }
+
+    /**
+     * Strings and Ropes are compared and hashed by their contents, so values must go through
+     * this before doing either. Ropes are flattened, and any other value is returned as is.
+     */
+    public static Object flatten(Object value) {
+        return value instanceof Rope rope ? rope.toString() : value;
+    }
+
+    @Override
+    public String toString() {
+        if(flat == null) {
+            flat = build();
+            left = null;
+            right = null;
+        }
+        return flat;
+    }
+
+    // Appends the pieces from left to right. Ropes built with += nest deeply on the left,
+    // so the tree is traversed with an explicit stack instead of recursion.
+    private String build() {
+        var builder = new StringBuilder(length);
+        var pending = new ArrayDeque<CharSequence>();
+        pending.push(this);
+
+        while(!pending.isEmpty()) {
+            var piece = pending.pop();
+            if(piece instanceof Rope rope && rope.flat == null) {
+                pending.push(rope.right);
+                pending.push(rope.left);
+            } else {
+                builder.append(piece.toString());
+            }
+        }
+
+        return builder.toString();
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Rope rope && toString().equals(rope.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+}
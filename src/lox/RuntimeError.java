@@ -3,10 +3,14 @@ package lox;
 import lox.tokens.Token;
 
 public class RuntimeError extends RuntimeException {
-    final Token token;
+    final int line;
 
     public RuntimeError(String message, Token token) {
+        this(message, token.getLine());
+    }
+
+    public RuntimeError(String message, int line) {
         super(message);
-        this.token = token;
+        this.line = line;
     }
 }
@@ -0,0 +1,63 @@
+package lox;
+
+import lox.expr.BinaryExpr;
+import lox.expr.LogicalExpr;
+import lox.expr.UnaryExpr;
+import lox.nodes.BinaryNode;
+import lox.nodes.LogicalNode;
+import lox.nodes.UnaryNode;
+
+/**
+ * Variant of the Interpreter that evaluates operators through self-specializing nodes.
+ * Each binary, unary and logical expression gets an executable node the first time it's
+ * evaluated, which then rewrites itself according to the types of the operands it sees,
+ * so hot operators don't switch on the operator type and check operand types every time.
+ * Expressions that the Analyzer already marked as numeric don't need any of that, and are
+ * evaluated without boxing like in the Interpreter. See BinaryNode for details on how
+ * specialization works.
+ */
+public class SpecializingInterpreter extends Interpreter {
+
+    @Override
+    public Object visitBinaryExpr(BinaryExpr binaryExpr) {
+        if(binaryExpr.isNumeric) {
+            // Known to be arithmetic on numbers already, which the Interpreter does without boxing
+            return super.visitBinaryExpr(binaryExpr);
+        }
+
+        var leftResult = evaluate(binaryExpr.leftSide);
+        var rightResult = evaluate(binaryExpr.rightSide);
+
+        var node = binaryExpr.node;
+        if(node == null) {
+            node = binaryExpr.node = new BinaryNode.Uninitialized(binaryExpr);
+        }
+        return node.execute(leftResult, rightResult);
+    }
+
+    @Override
+    public Object visitUnaryExpr(UnaryExpr unaryExpr) {
+        if(unaryExpr.isNumeric) {
+            return super.visitUnaryExpr(unaryExpr);
+        }
+
+        var rightResult = evaluate(unaryExpr.rightSide);
+
+        var node = unaryExpr.node;
+        if(node == null) {
+            node = unaryExpr.node = new UnaryNode.Uninitialized(unaryExpr);
+        }
+        return node.execute(rightResult);
+    }
+
+    @Override
+    public Object visitLogicalExpr(LogicalExpr logicalExpr) {
+        var leftResult = evaluate(logicalExpr.leftSide);
+
+        var node = logicalExpr.logicalNode;
+        if(node == null) {
+            node = logicalExpr.logicalNode = new LogicalNode.Uninitialized(logicalExpr);
+        }
+        return node.shortCircuits(leftResult) ? leftResult : evaluate(logicalExpr.rightSide);
+    }
+}
@@ -3,8 +3,6 @@ package lox.builtins;
 import lox.Interpreter;
 import lox.callables.LoxCallable;
 
-import java.util.List;
-
 public class PrintFunc implements LoxCallable {
     @Override
     public int getArity() {
@@ -12,11 +10,16 @@ public class PrintFunc implements LoxCallable {
     }
 
     @Override
-    public Object call(Interpreter interpreter, List<Object> args) {
-        System.out.println(args.get(0));
+    public Object call1(Interpreter interpreter, Object arg0) {
+        System.out.println(arg0);
         return null;
     }
 
+    @Override
+    public Object call(Interpreter interpreter, Object[] args) {
+        return call1(interpreter, args[0]);
+    }
+
     @Override
     public String toString() {
         return "<native fn 'print'>";
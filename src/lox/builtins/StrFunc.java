@@ -3,8 +3,6 @@ package lox.builtins;
 import lox.Interpreter;
 import lox.callables.LoxCallable;
 
-import java.util.List;
-
 public class StrFunc implements LoxCallable {
     @Override
     public int getArity() {
@@ -12,8 +10,13 @@ public class StrFunc implements LoxCallable {
     }
 
     @Override
-    public Object call(Interpreter interpreter, List<Object> args) {
-        return args.get(0).toString();
+    public Object call1(Interpreter interpreter, Object arg0) {
+        return arg0.toString();
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object[] args) {
+        return call1(interpreter, args[0]);
     }
 
     @Override
@@ -3,8 +3,6 @@ package lox.builtins;
 import lox.Interpreter;
 import lox.callables.LoxCallable;
 
-import java.util.List;
-
 public class TimeFunc implements LoxCallable {
     @Override
     public int getArity() {
@@ -12,10 +10,15 @@ public class TimeFunc implements LoxCallable {
     }
 
     @Override
-    public Object call(Interpreter interpreter, List<Object> args) {
+    public Object call0(Interpreter interpreter) {
         return (double) System.currentTimeMillis() / 1000.0;
     }
 
+    @Override
+    public Object call(Interpreter interpreter, Object[] args) {
+        return call0(interpreter);
+    }
+
     @Override
     public String toString() {
         return "<native fn 'time'>";
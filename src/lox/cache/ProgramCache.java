@@ -0,0 +1,171 @@
+package lox.cache;
+
+import lox.decl.Declaration;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * Cache of analyzed programs on disk, so that running a script that hasn't changed skips
+ * scanning, parsing, analyzing and optimizing it. Programs are stored as the trees that are
+ * run, which depend on the options they were optimized with, so each combination of source
+ * and options is stored in its own file. Files are named after the hash of both and the version
+ * of the format, and read back with a single read.
+ *
+ * The cache is only an optimization, so it never makes a run fail: files that can't be read
+ * or written, or that are from another version or damaged, are ignored or deleted, and the
+ * program is compiled as usual. The least recently used files are deleted once the cache
+ * grows over its maximum size.
+ */
+public class ProgramCache {
+    // Must change whenever the format or the trees that the Analyzer and the Optimizer produce do
+    static final int VERSION = 3;
+    private static final int MAGIC = 0x4C4F5843; // "LOXC"
+    private static final String EXTENSION = ".loxc";
+    // Magic number, version, hash of the source and options, and hash of the contents
+    private static final int HEADER_SIZE = 4 + 4 + 32 + 32;
+
+    private final Path directory;
+    private final long maxSize;
+
+    public ProgramCache(Path directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /** The default directory of the cache, in the user's cache directory */
+    public static Path defaultDirectory() {
+        var cacheHome = System.getenv("XDG_CACHE_HOME");
+        if(cacheHome == null || cacheHome.isEmpty()) {
+            return Path.of(System.getProperty("user.home"), ".cache", "jlox");
+        }
+        return Path.of(cacheHome, "jlox");
+    }
+
+    /**
+     * Returns the program that was stored for the given source and options, or null if there is none.
+     * The options are any text that tells apart the trees that the same source can produce.
+     */
+    public List<Declaration> load(byte[] source, String options) {
+        var hash = hash(source, options);
+        var file = fileFor(hash);
+        if(!Files.isRegularFile(file)) {
+            return null;
+        }
+
+        try {
+            var buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+            if(buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                Files.deleteIfExists(file);
+                return null;
+            }
+
+            var storedHash = new byte[hash.length];
+            buffer.get(storedHash);
+            var bodyHash = new byte[hash.length];
+            buffer.get(bodyHash);
+            if(!Arrays.equals(hash, storedHash) || !Arrays.equals(bodyHash, hash(buffer))) {
+                Files.deleteIfExists(file);
+                return null;
+            }
+
+            var program = new ProgramReader(buffer).read();
+            // Reading a program makes it the most recently used one
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return program;
+        } catch(Exception | Error e) {
+            // Even a damaged file that got past the hash, and made the reader overflow the stack or
+            // run out of memory, is just deleted, so that the next runs don't come across it again
+            delete(file);
+            return null;
+        }
+    }
+
+    /** Stores the program that is about to run, once it has been analyzed and optimized without errors */
+    public void store(byte[] source, String options, List<Declaration> program) {
+        var hash = hash(source, options);
+        var body = new ProgramWriter().write(program);
+        var data = ByteBuffer.allocate(HEADER_SIZE + body.length);
+        data.putInt(MAGIC).putInt(VERSION).put(hash).put(hash(ByteBuffer.wrap(body))).put(body);
+
+        Path temp = null;
+        try {
+            Files.createDirectories(directory);
+            // Written to a temporary file first, so that other runs never see half a program
+            temp = Files.createTempFile(directory, "program", ".tmp");
+            Files.write(temp, data.array());
+            Files.move(temp, fileFor(hash), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            evict();
+        } catch(IOException e) {
+            if(temp != null) {
+                delete(temp);
+            }
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Aux methods
+
+    private Path fileFor(byte[] hash) {
+        return directory.resolve(HexFormat.of().formatHex(hash) + "-" + VERSION + EXTENSION);
+    }
+
+    // Deletes the least recently used programs until the cache is within its maximum size
+    private void evict() throws IOException {
+        record Entry(Path file, long size, long lastUsed) { }
+
+        var entries = new ArrayList<Entry>();
+        var totalSize = 0L;
+        try(var files = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+            for(Path file : files) {
+                var size = Files.size(file);
+                entries.add(new Entry(file, size, Files.getLastModifiedTime(file).toMillis()));
+                totalSize += size;
+            }
+        }
+
+        entries.sort(Comparator.comparingLong(Entry::lastUsed));
+        for(int i = 0; i < entries.size() && totalSize > maxSize; i++) {
+            delete(entries.get(i).file());
+            totalSize -= entries.get(i).size();
+        }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch(IOException ignored) {
+            // Another run may be using it, it will be deleted later on
+        }
+    }
+
+    private static byte[] hash(byte[] source, String options) {
+        var optionBytes = options.getBytes(StandardCharsets.UTF_8);
+        // The length of the options goes first, so that no source and options hash like another pair
+        return hash(ByteBuffer.allocate(4 + optionBytes.length + source.length)
+                .putInt(optionBytes.length).put(optionBytes).put(source).flip());
+    }
+
+    // Hash of the remaining data, without consuming it
+    private static byte[] hash(ByteBuffer data) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data.duplicate());
+            return digest.digest();
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
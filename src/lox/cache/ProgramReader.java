@@ -0,0 +1,349 @@
+package lox.cache;
+
+import lox.LoopCounter;
+import lox.decl.Declaration;
+import lox.decl.FunctionDecl;
+import lox.decl.StatementDecl;
+import lox.decl.VariableDecl;
+import lox.expr.*;
+import lox.stmt.*;
+import lox.tokens.Symbol;
+import lox.tokens.Token;
+import lox.tokens.TokenType;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static lox.cache.ProgramWriter.*;
+
+/**
+ * Reads a program written by the ProgramWriter, restoring the fields set by the Analyzer
+ * along with the nodes. Malformed input makes it throw an IllegalStateException, or the
+ * exception raised by the buffer when reading past its end. Counts are checked against
+ * the data that's left before allocating anything, so they can't make it run out of memory.
+ */
+class ProgramReader {
+    private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+    private final ByteBuffer in;
+    private final List<String> strings = new ArrayList<>();
+    private final List<VariableDecl> variables = new ArrayList<>();
+    private final List<FunctionDecl> functions = new ArrayList<>();
+    private final List<LoopCounter> counters = new ArrayList<>();
+    private int line = 0;
+
+    ProgramReader(ByteBuffer in) {
+        this.in = in;
+    }
+
+    List<Declaration> read() {
+        var decls = readDeclarations();
+        if(in.hasRemaining()) {
+            throw new IllegalStateException("Unexpected data after the program");
+        }
+        return decls;
+    }
+
+    FunctionDecl readFunction() {
+        if(!(readDeclaration() instanceof FunctionDecl function)) {
+            throw new IllegalStateException("Expected a function");
+        }
+        return function;
+    }
+
+    boolean hasRemaining() {
+        return in.hasRemaining();
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Nodes
+
+    private List<Declaration> readDeclarations() {
+        var count = readCount();
+        var decls = new ArrayList<Declaration>(count);
+        for(int i = 0; i < count; i++) {
+            decls.add(readDeclaration());
+        }
+        return decls;
+    }
+
+    private Declaration readDeclaration() {
+        var tag = readInt();
+        switch(tag) {
+            case VARIABLE_DECL: {
+                // Variables are numbered in the order in which their declarations start
+                var index = variables.size();
+                variables.add(null);
+                var decl = new VariableDecl(readToken(), readExpression());
+                decl.slot = readSigned();
+                decl.assignments = readInt();
+                decl.isCaptured = readBoolean();
+                variables.set(index, decl);
+                return decl;
+            }
+
+            case STATEMENT_DECL:
+                return new StatementDecl(readStatement());
+
+            case FUNCTION_DECL: {
+                // Functions are numbered in the order in which their declarations start, like variables
+                var index = functions.size();
+                functions.add(null);
+                var identifier = readToken();
+                var paramCount = readCount();
+                var params = new ArrayList<Token>(paramCount);
+                for(int i = 0; i < paramCount; i++) {
+                    params.add(readToken());
+                }
+
+                var decl = new FunctionDecl(identifier, params, (Block) readStatement());
+                decl.slot = readSigned();
+                decl.hasInnerFunctions = readBoolean();
+                decl.isPure = readBoolean();
+                var globalCount = readCount();
+                for(int i = 0; i < globalCount; i++) {
+                    decl.globalReads.add(Symbol.of(readString()));
+                }
+                functions.set(index, decl);
+                return decl;
+            }
+
+            case FUNCTION_REF: {
+                var index = readInt();
+                if(index >= functions.size() || functions.get(index) == null) {
+                    throw new IllegalStateException("Unknown function: " + index);
+                }
+                return functions.get(index);
+            }
+
+            default:
+                throw new IllegalStateException("Unknown declaration tag: " + tag);
+        }
+    }
+
+    private Statement readStatement() {
+        var tag = readInt();
+        switch(tag) {
+            case NONE:
+                return null;
+
+            case BLOCK: {
+                var block = new Block(readDeclarations());
+                block.scopeSize = readInt();
+                block.hasScope = readBoolean();
+                return block;
+            }
+
+            case BREAK:
+                return new BreakStmt(readToken());
+
+            case RETURN: {
+                var stmt = new ReturnStmt(readToken(), readExpression());
+                stmt.isTailCall = readBoolean();
+                return stmt;
+            }
+
+            case EXPRESSION:
+                return new ExpressionStmt(readExpression());
+
+            case IF:
+                return new IfStmt(readExpression(), readStatement(), readStatement());
+
+            case WHILE:
+                return new WhileStmt(readExpression(), readStatement());
+
+            case COUNTED_LOOP: {
+                var variable = readToken();
+                var counter = readCounter();
+                var start = readExpression();
+                var comparison = readToken();
+                var limit = readExpression();
+                var step = readDouble();
+                return new CountedLoopStmt(variable, start, comparison, limit, step, readStatement(), counter);
+            }
+
+            default:
+                throw new IllegalStateException("Unknown statement tag: " + tag);
+        }
+    }
+
+    private Expression readExpression() {
+        var tag = readInt();
+        if(tag == NONE) {
+            return null;
+        }
+
+        var isNumeric = (tag & 1) != 0;
+        Expression expr;
+        switch(tag >>> 1) {
+            case BINARY:
+                expr = new BinaryExpr(readExpression(), readToken(), readExpression());
+                break;
+
+            case LOGICAL:
+                expr = new LogicalExpr(readExpression(), readToken(), readExpression());
+                break;
+
+            case UNARY:
+                expr = new UnaryExpr(readToken(), readExpression());
+                break;
+
+            case GROUP:
+                expr = new GroupExpr(readExpression());
+                break;
+
+            case LITERAL:
+                expr = new LiteralExpr(readLiteral());
+                break;
+
+            case VARIABLE: {
+                var varExpr = new VariableExpr(readToken());
+                varExpr.depth = readSigned();
+                varExpr.slot = readSigned();
+                var declaration = readSigned();
+                varExpr.declaration = declaration < 0 ? null : variables.get(declaration);
+                expr = varExpr;
+                break;
+            }
+
+            case ASSIGNMENT: {
+                var assignExpr = new AssignmentExpr(readToken(), readExpression());
+                assignExpr.depth = readSigned();
+                assignExpr.slot = readSigned();
+                expr = assignExpr;
+                break;
+            }
+
+            case CALL: {
+                var callee = readExpression();
+                var argCount = readCount();
+                var args = new ArrayList<Expression>(argCount);
+                for(int i = 0; i < argCount; i++) {
+                    args.add(readExpression());
+                }
+                expr = new CallExpr(callee, args, readToken());
+                break;
+            }
+
+            case COUNTER:
+                expr = new CounterExpr(readToken(), readCounter());
+                break;
+
+            case INLINED_CALL: {
+                if(!(readExpression() instanceof CallExpr call)) {
+                    throw new IllegalStateException("Expected a call");
+                }
+                var function = readFunction();
+                expr = new InlinedCallExpr(call, function, readExpression());
+                break;
+            }
+
+            default:
+                throw new IllegalStateException("Unknown expression tag: " + tag);
+        }
+
+        expr.isNumeric = isNumeric;
+        return expr;
+    }
+
+    private Object readLiteral() {
+        var kind = readInt();
+        return switch(kind) {
+            case NULL -> null;
+            case TRUE -> true;
+            case FALSE -> false;
+            case NUMBER -> readDouble();
+            case STRING -> readString();
+            default -> throw new IllegalStateException("Unknown literal kind: " + kind);
+        };
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Values
+
+    private Token readToken() {
+        var typeIndex = readInt();
+        if(typeIndex >= TOKEN_TYPES.length) {
+            throw new IllegalStateException("Unknown token type: " + typeIndex);
+        }
+
+        var type = TOKEN_TYPES[typeIndex];
+        var lexeme = readString();
+        var delta = readInt();
+        line += delta >>> 1 ^ -(delta & 1);
+        // Identifiers get their symbols now, like the ones created by the scanner
+        return type == TokenType.IDENTIFIER ?
+                new Token(type, Symbol.of(lexeme), line) :
+                new Token(type, lexeme, null, line);
+    }
+
+    // Counters are written like strings, but without any content
+    private LoopCounter readCounter() {
+        var index = readInt();
+        if(index < counters.size()) {
+            return counters.get(index);
+        } else if(index > counters.size()) {
+            throw new IllegalStateException("Unknown counter: " + index);
+        }
+
+        var counter = new LoopCounter();
+        counters.add(counter);
+        return counter;
+    }
+
+    String readString() {
+        var index = readInt();
+        if(index < strings.size()) {
+            return strings.get(index);
+        } else if(index > strings.size()) {
+            throw new IllegalStateException("Unknown string: " + index);
+        }
+
+        var length = readCount();
+        var string = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        strings.add(string);
+        return string;
+    }
+
+    boolean readBoolean() {
+        return in.get() != 0;
+    }
+
+    int readInt() {
+        var value = 0;
+        for(int shift = 0; ; shift += 7) {
+            var b = in.get();
+            value |= (b & 0x7F) << shift;
+            if(b >= 0) {
+                return value;
+            }
+            if(shift > 28) {
+                throw new IllegalStateException("Malformed number");
+            }
+        }
+    }
+
+    /** Reads the number of elements that follow, each of which takes at least one byte */
+    int readCount() {
+        var count = readInt();
+        if(count < 0 || count > in.remaining()) {
+            throw new IllegalStateException("Count out of range: " + count);
+        }
+        return count;
+    }
+
+    private int readSigned() {
+        return readInt() - 1;
+    }
+
+    double readDouble() {
+        var bits = 0L;
+        for(int i = 0; i < 8; i++) {
+            bits |= (in.get() & 0xFFL) << (8 * i);
+        }
+        return Double.longBitsToDouble(bits);
+    }
+}
@@ -0,0 +1,377 @@
+package lox.cache;
+
+import lox.LoopCounter;
+import lox.decl.Declaration;
+import lox.decl.FunctionDecl;
+import lox.decl.StatementDecl;
+import lox.decl.VariableDecl;
+import lox.expr.*;
+import lox.stmt.*;
+import lox.tokens.Symbol;
+import lox.tokens.Token;
+import lox.visitors.DeclarationVisitor;
+import lox.visitors.ExpressionVisitor;
+import lox.visitors.StatementVisitor;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes an analyzed program in the binary form read by the ProgramReader. Every node is written
+ * as a tag followed by its fields, including the ones set by the Analyzer, so that the program
+ * can run without analyzing it again. Numbers are written as variable-length integers, and each
+ * distinct string is written once, to be referred to by its index afterwards. Lines are written
+ * as the difference with the previous one, which is usually zero. Local variable declarations,
+ * functions and loop counters are numbered in the order in which they're written, and written
+ * by their number when they're found again.
+ *
+ * The nodes built by the Optimizer are supported too, since snapshots are written once the
+ * functions in them have been optimized (see SnapshotWriter).
+ */
+class ProgramWriter implements DeclarationVisitor<Void>, StatementVisitor<Void>, ExpressionVisitor<Void> {
+
+    // Tags of the nodes, shared with the ProgramReader
+    static final int VARIABLE_DECL = 1, STATEMENT_DECL = 2, FUNCTION_DECL = 3, FUNCTION_REF = 4;
+    static final int BLOCK = 10, BREAK = 11, RETURN = 12, EXPRESSION = 13, IF = 14, WHILE = 15, COUNTED_LOOP = 16;
+    static final int BINARY = 20, LOGICAL = 21, UNARY = 22, GROUP = 23, LITERAL = 24, VARIABLE = 25, ASSIGNMENT = 26, CALL = 27,
+            COUNTER = 28, INLINED_CALL = 29;
+    static final int NONE = 0;
+    // Kinds of literal values
+    static final int NULL = 0, TRUE = 1, FALSE = 2, NUMBER = 3, STRING = 4;
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final Map<String, Integer> strings = new HashMap<>();
+    private final Map<VariableDecl, Integer> variables = new IdentityHashMap<>();
+    private final Map<FunctionDecl, Integer> functions = new IdentityHashMap<>();
+    private final Map<LoopCounter, Integer> counters = new IdentityHashMap<>();
+    private int line = 0;
+
+    byte[] write(List<Declaration> decls) {
+        writeDeclarations(decls);
+        return toByteArray();
+    }
+
+    byte[] toByteArray() {
+        return out.toByteArray();
+    }
+
+    /** Writes a function on its own, or its number if it has already been written as part of another one */
+    void writeFunction(FunctionDecl decl) {
+        decl.accept(this);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Aux methods
+
+    private void writeDeclarations(List<Declaration> decls) {
+        writeInt(decls.size());
+        for(Declaration decl : decls) {
+            decl.accept(this);
+        }
+    }
+
+    private void write(Statement stmt) {
+        if(stmt == null) {
+            writeInt(NONE);
+        } else {
+            stmt.accept(this);
+        }
+    }
+
+    private void write(Expression expr) {
+        if(expr == null) {
+            writeInt(NONE);
+        } else {
+            expr.accept(this);
+        }
+    }
+
+    // Tag of an expression, with its lowest bit telling whether the Analyzer found it to be numeric
+    private void writeTag(int tag, Expression expr) {
+        writeInt(tag << 1 | (expr.isNumeric ? 1 : 0));
+    }
+
+    private void writeToken(Token token) {
+        writeInt(token.getType().ordinal());
+        writeString(token.getLexeme());
+        // The difference may be negative, so its sign goes into the lowest bit
+        var delta = token.getLine() - line;
+        writeInt(delta << 1 ^ delta >> 31);
+        line = token.getLine();
+    }
+
+    // Strings are written the first time only, with an index equal to the number of strings written so far
+    void writeString(String string) {
+        var index = strings.get(string);
+        if(index != null) {
+            writeInt(index);
+            return;
+        }
+
+        writeInt(strings.size());
+        strings.put(string, strings.size());
+        var bytes = string.getBytes(StandardCharsets.UTF_8);
+        writeInt(bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    void writeBoolean(boolean value) {
+        out.write(value ? 1 : 0);
+    }
+
+    // Non-negative numbers, seven bits at a time, with the highest bit set on all bytes but the last.
+    // The only negative values are slots and depths of -1, which are shifted up by one.
+    void writeInt(int value) {
+        while((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private void writeSigned(int value) {
+        writeInt(value + 1);
+    }
+
+    void writeDouble(double value) {
+        var bits = Double.doubleToRawLongBits(value);
+        for(int i = 0; i < 8; i++) {
+            out.write((int) (bits >>> (8 * i)));
+        }
+    }
+
+    // Counters are shared by a loop and the expressions that read it, and are written like strings
+    private void writeCounter(LoopCounter counter) {
+        var index = counters.get(counter);
+        if(index != null) {
+            writeInt(index);
+        } else {
+            writeInt(counters.size());
+            counters.put(counter, counters.size());
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Declaration visitors
+
+    @Override
+    public Void visitVariableDecl(VariableDecl decl) {
+        writeInt(VARIABLE_DECL);
+        variables.put(decl, variables.size());
+        writeToken(decl.identifier);
+        write(decl.value);
+        writeSigned(decl.slot);
+        writeInt(decl.assignments);
+        writeBoolean(decl.isCaptured);
+        return null;
+    }
+
+    @Override
+    public Void visitStatementDecl(StatementDecl decl) {
+        writeInt(STATEMENT_DECL);
+        write(decl.stmt);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionDecl(FunctionDecl decl) {
+        var index = functions.get(decl);
+        if(index != null) {
+            writeInt(FUNCTION_REF);
+            writeInt(index);
+            return null;
+        }
+
+        writeInt(FUNCTION_DECL);
+        functions.put(decl, functions.size());
+        writeToken(decl.identifier);
+        writeInt(decl.parameters.size());
+        for(Token param : decl.parameters) {
+            writeToken(param);
+        }
+        write(decl.body);
+        writeSigned(decl.slot);
+        writeBoolean(decl.hasInnerFunctions);
+        writeBoolean(decl.isPure);
+        writeInt(decl.globalReads.size());
+        for(Symbol global : decl.globalReads) {
+            writeString(global.name);
+        }
+        return null;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Statement visitors
+
+    @Override
+    public Void visitBlock(Block block) {
+        writeInt(BLOCK);
+        writeDeclarations(block.decls);
+        writeInt(block.scopeSize);
+        writeBoolean(block.hasScope);
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(BreakStmt stmt) {
+        writeInt(BREAK);
+        writeToken(stmt.keyword);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(ReturnStmt stmt) {
+        writeInt(RETURN);
+        writeToken(stmt.keyword);
+        write(stmt.value);
+        writeBoolean(stmt.isTailCall);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(ExpressionStmt stmt) {
+        writeInt(EXPRESSION);
+        write(stmt.expr);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(IfStmt stmt) {
+        writeInt(IF);
+        write(stmt.condition);
+        write(stmt.trueBranch);
+        write(stmt.falseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(WhileStmt stmt) {
+        writeInt(WHILE);
+        write(stmt.condition);
+        write(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitCountedLoopStmt(CountedLoopStmt stmt) {
+        writeInt(COUNTED_LOOP);
+        writeToken(stmt.variable);
+        writeCounter(stmt.counter);
+        write(stmt.start);
+        writeToken(stmt.comparison);
+        write(stmt.limit);
+        writeDouble(stmt.step);
+        write(stmt.body);
+        return null;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Expression visitors
+
+    @Override
+    public Void visitBinaryExpr(BinaryExpr binaryExpr) {
+        writeTag(BINARY, binaryExpr);
+        write(binaryExpr.leftSide);
+        writeToken(binaryExpr.operator);
+        write(binaryExpr.rightSide);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(LogicalExpr logicalExpr) {
+        writeTag(LOGICAL, logicalExpr);
+        write(logicalExpr.leftSide);
+        writeToken(logicalExpr.operator);
+        write(logicalExpr.rightSide);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(UnaryExpr unaryExpr) {
+        writeTag(UNARY, unaryExpr);
+        writeToken(unaryExpr.operator);
+        write(unaryExpr.rightSide);
+        return null;
+    }
+
+    @Override
+    public Void visitGrouping(GroupExpr groupExpr) {
+        writeTag(GROUP, groupExpr);
+        write(groupExpr.expr);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(LiteralExpr literalExpr) {
+        writeTag(LITERAL, literalExpr);
+        var literal = literalExpr.literal;
+        if(literal == null) {
+            writeInt(NULL);
+        } else if(literal instanceof Boolean bool) {
+            writeInt(bool ? TRUE : FALSE);
+        } else if(literal instanceof Double number) {
+            writeInt(NUMBER);
+            writeDouble(number);
+        } else {
+            writeInt(STRING);
+            writeString(literal.toString());
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(VariableExpr varExpr) {
+        writeTag(VARIABLE, varExpr);
+        writeToken(varExpr.identifier);
+        writeSigned(varExpr.depth);
+        writeSigned(varExpr.slot);
+        // The declaration may not have been written if this is part of a function written on its own, but
+        // it's only needed to optimize the function, which has been done already if it's written that way
+        var declaration = varExpr.declaration == null ? null : variables.get(varExpr.declaration);
+        writeSigned(declaration == null ? -1 : declaration);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignmentExpr(AssignmentExpr assignExpr) {
+        writeTag(ASSIGNMENT, assignExpr);
+        writeToken(assignExpr.target);
+        write(assignExpr.rightSide);
+        writeSigned(assignExpr.depth);
+        writeSigned(assignExpr.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(CallExpr callExpr) {
+        writeTag(CALL, callExpr);
+        write(callExpr.callee);
+        writeInt(callExpr.args.size());
+        for(Expression arg : callExpr.args) {
+            write(arg);
+        }
+        writeToken(callExpr.closingParens);
+        return null;
+    }
+
+    @Override
+    public Void visitCounterExpr(CounterExpr counterExpr) {
+        writeTag(COUNTER, counterExpr);
+        writeToken(counterExpr.identifier);
+        writeCounter(counterExpr.counter);
+        return null;
+    }
+
+    @Override
+    public Void visitInlinedCallExpr(InlinedCallExpr inlinedCallExpr) {
+        writeTag(INLINED_CALL, inlinedCallExpr);
+        write(inlinedCallExpr.call);
+        writeFunction(inlinedCallExpr.function);
+        write(inlinedCallExpr.body);
+        return null;
+    }
+}
@@ -0,0 +1,84 @@
+package lox.cache;
+
+import lox.Interpreter;
+import lox.tokens.Symbol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Snapshot of the global variables of an interpreter, usually taken after running a prelude that
+ * declares the functions that other scripts use. Restoring it declares the same globals in another
+ * interpreter, with their functions already analyzed and optimized, and the environments of their
+ * closures holding the same values, so the prelude doesn't have to run again.
+ *
+ * Only the state that the program can observe is restored: functions are compiled by the JIT and
+ * memoized again from scratch, and builtins are the ones of the new interpreter.
+ */
+public class Snapshot {
+    // Must change whenever the format, or the one of the ProgramWriter, does
+    static final int VERSION = 1;
+    private static final int MAGIC = 0x4C4F5853; // "LOXS"
+    // Magic number, version, and hash of the contents
+    private static final int HEADER_SIZE = 4 + 4 + 32;
+
+    /** Writes the global variables of the interpreter, and everything that they refer to, to a file */
+    public static void save(Interpreter interpreter, Path file) throws IOException {
+        var body = new SnapshotWriter(interpreter).write();
+        var data = ByteBuffer.allocate(HEADER_SIZE + body.length);
+        data.putInt(MAGIC).putInt(VERSION).put(hash(ByteBuffer.wrap(body))).put(body);
+
+        // Written to a temporary file first, so that a failed write doesn't leave half a snapshot
+        var temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.write(temp, data.array());
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Declares the global variables stored in a file in the interpreter, which should not have run anything yet.
+     * Throws an IOException if the file can't be read, or it's not a snapshot written by this version.
+     */
+    public static void restore(Interpreter interpreter, Path file) throws IOException {
+        var buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        if(buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a snapshot");
+        } else if(buffer.getInt() != VERSION) {
+            throw new IOException("The snapshot was taken by another version");
+        }
+
+        var storedHash = new byte[32];
+        buffer.get(storedHash);
+        if(!Arrays.equals(storedHash, hash(buffer))) {
+            throw new IOException("The snapshot is damaged");
+        }
+
+        try {
+            var globals = interpreter.getGlobals();
+            new SnapshotReader(buffer, interpreter).read()
+                    .forEach((name, value) -> globals.declare(Symbol.of(name), value));
+        } catch(RuntimeException e) {
+            throw new IOException("The snapshot is damaged", e);
+        }
+    }
+
+    // Hash of the remaining data, without consuming it
+    private static byte[] hash(ByteBuffer data) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data.duplicate());
+            return digest.digest();
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
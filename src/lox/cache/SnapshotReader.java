@@ -0,0 +1,120 @@
+package lox.cache;
+
+import lox.Environment;
+import lox.Interpreter;
+import lox.callables.LoxCallable;
+import lox.callables.LoxFunction;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static lox.cache.ProgramWriter.*;
+import static lox.cache.SnapshotWriter.*;
+
+/**
+ * Reads the global variables written by the SnapshotWriter, rebuilding their functions and
+ * environments on top of the globals of an interpreter. Malformed input makes it throw the
+ * same exceptions as the ProgramReader.
+ */
+class SnapshotReader {
+    private final ProgramReader in;
+    private final Environment globals;
+    private final Map<String, LoxCallable> builtins;
+    private final List<LoxFunction> functions = new ArrayList<>();
+    private final List<Environment> environments = new ArrayList<>();
+
+    SnapshotReader(ByteBuffer in, Interpreter interpreter) {
+        this.in = new ProgramReader(in);
+        this.globals = interpreter.getGlobals();
+        this.builtins = interpreter.getBuiltins();
+    }
+
+    /** Returns the values of the global variables by name, without declaring them */
+    Map<String, Object> read() {
+        var count = in.readCount();
+        var values = new LinkedHashMap<String, Object>();
+        for(int i = 0; i < count; i++) {
+            var name = in.readString();
+            values.put(name, readValue());
+        }
+
+        for(int i = 0; i < environments.size(); i++) {
+            var environment = environments.get(i);
+            for(int slot = 0; slot < environment.size(); slot++) {
+                environment.define(slot, readValue());
+            }
+        }
+
+        if(in.hasRemaining()) {
+            throw new IllegalStateException("Unexpected data after the snapshot");
+        }
+        return values;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Aux methods
+
+    private Object readValue() {
+        var kind = in.readInt();
+        return switch(kind) {
+            case NULL -> null;
+            case TRUE -> true;
+            case FALSE -> false;
+            case NUMBER -> in.readDouble();
+            case STRING -> in.readString();
+            case FUNCTION -> readFunction();
+            case BUILTIN -> readBuiltin();
+            default -> throw new IllegalStateException("Unknown value kind: " + kind);
+        };
+    }
+
+    private LoxFunction readFunction() {
+        var index = in.readInt();
+        if(index < functions.size()) {
+            return functions.get(index);
+        } else if(index > functions.size()) {
+            throw new IllegalStateException("Unknown function value: " + index);
+        }
+
+        // The index is taken before reading the function, which may not refer to itself
+        functions.add(null);
+        var function = new LoxFunction(in.readFunction(), readEnvironment());
+        functions.set(index, function);
+        return function;
+    }
+
+    private LoxCallable readBuiltin() {
+        var name = in.readString();
+        var builtin = builtins.get(name);
+        if(builtin == null) {
+            throw new IllegalStateException("Unknown builtin: " + name);
+        }
+        return builtin;
+    }
+
+    // Environments are created empty, and filled once all the globals have been read
+    private Environment readEnvironment() {
+        var number = in.readInt();
+        if(number == GLOBALS) {
+            return globals;
+        } else if(number <= environments.size()) {
+            var environment = environments.get(number - 1);
+            if(environment == null) {
+                throw new IllegalStateException("Environment inside itself: " + number);
+            }
+            return environment;
+        } else if(number > environments.size() + 1) {
+            throw new IllegalStateException("Unknown environment: " + number);
+        }
+
+        // Numbered before the environment around it, like the SnapshotWriter does
+        environments.add(null);
+        var size = in.readCount();
+        var environment = new Environment(readEnvironment(), size);
+        environments.set(number - 1, environment);
+        return environment;
+    }
+}
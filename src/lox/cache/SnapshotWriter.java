@@ -0,0 +1,124 @@
+package lox.cache;
+
+import lox.Environment;
+import lox.GlobalCell;
+import lox.Interpreter;
+import lox.callables.LoxFunction;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static lox.cache.ProgramWriter.*;
+
+/**
+ * Writes the global variables of an interpreter, along with every function and environment that
+ * their values refer to, in the binary form read by the SnapshotReader.
+ *
+ * The globals are written first, as their names followed by their values. A function is written
+ * as its declaration and the environment it was declared in, and the environments of local
+ * functions just as their size and the environment around them. What each of those environments
+ * holds is written after all the globals, in the order in which the environments were found,
+ * since it may include functions declared in that same environment. Functions and environments
+ * are numbered like strings are, so that everything is written only once.
+ */
+class SnapshotWriter {
+
+    // Kinds of values, besides the ones of literals
+    static final int FUNCTION = 5, BUILTIN = 6;
+    // Number of the global environment, local ones are numbered from 1
+    static final int GLOBALS = 0;
+
+    private final ProgramWriter out = new ProgramWriter();
+    private final Environment globals;
+    // Names of the builtin functions of the interpreter, which are written by name
+    private final Map<Object, String> builtins = new IdentityHashMap<>();
+    private final Map<LoxFunction, Integer> functions = new IdentityHashMap<>();
+    private final Map<Environment, Integer> environmentNumbers = new IdentityHashMap<>();
+    private final List<Environment> environments = new ArrayList<>();
+
+    SnapshotWriter(Interpreter interpreter) {
+        this.globals = interpreter.getGlobals();
+        interpreter.getBuiltins().forEach((name, function) -> builtins.put(function, name));
+    }
+
+    byte[] write() {
+        var cells = globals.getCells();
+        out.writeInt(cells.size());
+        for(GlobalCell cell : cells) {
+            out.writeString(cell.name);
+            writeValue(cell.value);
+        }
+
+        // Writing the contents of an environment may find new ones, which are written afterwards
+        for(int i = 0; i < environments.size(); i++) {
+            var environment = environments.get(i);
+            for(int slot = 0; slot < environment.size(); slot++) {
+                writeValue(environment.getAt(0, slot));
+            }
+        }
+
+        return out.toByteArray();
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Aux methods
+
+    private void writeValue(Object value) {
+        if(value == null) {
+            out.writeInt(NULL);
+        } else if(value instanceof Boolean bool) {
+            out.writeInt(bool ? TRUE : FALSE);
+        } else if(value instanceof Double number) {
+            out.writeInt(NUMBER);
+            out.writeDouble(number);
+        } else if(value instanceof CharSequence string) {
+            // Ropes are written as the strings they make up
+            out.writeInt(STRING);
+            out.writeString(string.toString());
+        } else if(value instanceof LoxFunction function) {
+            out.writeInt(FUNCTION);
+            writeFunction(function);
+        } else if(builtins.containsKey(value)) {
+            out.writeInt(BUILTIN);
+            out.writeString(builtins.get(value));
+        } else {
+            throw new IllegalStateException("Can't write a value of type " + value.getClass().getSimpleName());
+        }
+    }
+
+    private void writeFunction(LoxFunction function) {
+        var index = functions.get(function);
+        if(index != null) {
+            out.writeInt(index);
+            return;
+        }
+
+        out.writeInt(functions.size());
+        functions.put(function, functions.size());
+        out.writeFunction(function.fn);
+        writeEnvironment(function.closure);
+    }
+
+    // New environments are numbered before the ones around them, which the SnapshotReader must mirror
+    private void writeEnvironment(Environment environment) {
+        if(environment == globals) {
+            out.writeInt(GLOBALS);
+            return;
+        }
+
+        var number = environmentNumbers.get(environment);
+        if(number != null) {
+            out.writeInt(number);
+            return;
+        }
+
+        number = environments.size() + 1;
+        out.writeInt(number);
+        environmentNumbers.put(environment, number);
+        environments.add(environment);
+        out.writeInt(environment.size());
+        writeEnvironment(environment.getOuter());
+    }
+}
@@ -2,9 +2,29 @@ package lox.callables;
 
 import lox.Interpreter;
 
-import java.util.List;
-
+/**
+ * Something that can be called from Lox code. The Interpreter makes sure that the
+ * number of arguments matches the arity before calling, and then uses the entry point
+ * specific to that number of arguments, so no argument list has to be allocated.
+ * Calls with more than 3 arguments go through the general, array-based entry point.
+ */
 public interface LoxCallable {
     int getArity();
-    Object call(Interpreter interpreter, List<Object> args);
+    Object call(Interpreter interpreter, Object[] args);
+
+    default Object call0(Interpreter interpreter) {
+        return call(interpreter, new Object[0]);
+    }
+
+    default Object call1(Interpreter interpreter, Object arg0) {
+        return call(interpreter, new Object[]{arg0});
+    }
+
+    default Object call2(Interpreter interpreter, Object arg0, Object arg1) {
+        return call(interpreter, new Object[]{arg0, arg1});
+    }
+
+    default Object call3(Interpreter interpreter, Object arg0, Object arg1, Object arg2) {
+        return call(interpreter, new Object[]{arg0, arg1, arg2});
+    }
 }
@@ -2,10 +2,9 @@ package lox.callables;
 
 import lox.Environment;
 import lox.Interpreter;
+import lox.MemoCache;
 import lox.decl.FunctionDecl;
-import lox.exceptions.ReturnExc;
-
-import java.util.List;
+import lox.jit.JitRuntime;
 
 public class LoxFunction implements LoxCallable {
     public final FunctionDecl fn;
@@ -22,24 +21,218 @@ public class LoxFunction implements LoxCallable {
         return this.fn.parameters.size();
     }
 
+    // Every entry point first looks up the result in the cache of the function, if it's memoized.
+    // Then, it runs the compiled code of the function if there is any and it accepts the arguments.
+    // Otherwise, it creates a new environment based on this function's closure, and binds the
+    // arguments to the parameters there, which always occupy the first slots of the function's scope.
+    // All of this is done in the entry point itself, since every frame between two nested calls
+    // limits how deep recursion can go.
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        var memo = memoFor(interpreter);
+        Object key = null;
+        if(memo != null) {
+            key = MemoCache.key();
+            var cached = memo.get(key);
+            if(cached != MemoCache.MISSING) {
+                return cached;
+            }
+        }
+
+        var compiled = this.fn.compiled;
+        if(compiled != null) {
+            return remember(memo, key, finishCompiled(interpreter, compiled.invoke0(interpreter, this.closure)));
+        } else if(interpreter.getJit() != null) {
+            interpreter.getJit().profile0(this.fn);
+        }
+
+        return remember(memo, key, interpreter.runFunction(this, newCallEnv()));
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object arg0) {
+        var memo = memoFor(interpreter);
+        Object key = null;
+        if(memo != null) {
+            key = MemoCache.keyOf(arg0);
+            var cached = memo.get(key);
+            if(cached != MemoCache.MISSING) {
+                return cached;
+            }
+        }
+
+        var compiled = this.fn.compiled;
+        if(compiled != null) {
+            var result = compiled.invoke1(interpreter, this.closure, arg0);
+            if(result != JitRuntime.INTERPRET) {
+                return remember(memo, key, finishCompiled(interpreter, result));
+            }
+            interpreter.getJit().deoptimize1(this.fn, arg0);
+        } else if(interpreter.getJit() != null) {
+            interpreter.getJit().profile1(this.fn, arg0);
+        }
+
+        var callEnv = newCallEnv();
+        callEnv.define(0, arg0);
+        return remember(memo, key, interpreter.runFunction(this, callEnv));
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object arg0, Object arg1) {
+        var memo = memoFor(interpreter);
+        Object key = null;
+        if(memo != null) {
+            key = MemoCache.key(arg0, arg1);
+            var cached = memo.get(key);
+            if(cached != MemoCache.MISSING) {
+                return cached;
+            }
+        }
+
+        var compiled = this.fn.compiled;
+        if(compiled != null) {
+            var result = compiled.invoke2(interpreter, this.closure, arg0, arg1);
+            if(result != JitRuntime.INTERPRET) {
+                return remember(memo, key, finishCompiled(interpreter, result));
+            }
+            interpreter.getJit().deoptimize2(this.fn, arg0, arg1);
+        } else if(interpreter.getJit() != null) {
+            interpreter.getJit().profile2(this.fn, arg0, arg1);
+        }
+
+        var callEnv = newCallEnv();
+        callEnv.define(0, arg0);
+        callEnv.define(1, arg1);
+        return remember(memo, key, interpreter.runFunction(this, callEnv));
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object arg0, Object arg1, Object arg2) {
+        var memo = memoFor(interpreter);
+        Object key = null;
+        if(memo != null) {
+            key = MemoCache.key(arg0, arg1, arg2);
+            var cached = memo.get(key);
+            if(cached != MemoCache.MISSING) {
+                return cached;
+            }
+        }
+
+        var compiled = this.fn.compiled;
+        if(compiled != null) {
+            var result = compiled.invoke3(interpreter, this.closure, arg0, arg1, arg2);
+            if(result != JitRuntime.INTERPRET) {
+                return remember(memo, key, finishCompiled(interpreter, result));
+            }
+            interpreter.getJit().deoptimize3(this.fn, arg0, arg1, arg2);
+        } else if(interpreter.getJit() != null) {
+            interpreter.getJit().profile3(this.fn, arg0, arg1, arg2);
+        }
+
+        var callEnv = newCallEnv();
+        callEnv.define(0, arg0);
+        callEnv.define(1, arg1);
+        callEnv.define(2, arg2);
+        return remember(memo, key, interpreter.runFunction(this, callEnv));
+    }
+
     @Override
-    public Object call(Interpreter interpreter, List<Object> args) {
-        // Create a new environment based on this function's closure,
-        // and bind the arguments to the parameters there
-        var callEnv = new Environment(this.closure);
-        for(int i = 0; i < args.size(); i++) {
-            var paramName = this.fn.parameters.get(i).getLexeme();
-            var paramValue = args.get(i);
-            callEnv.declare(paramName, paramValue);
+    public Object call(Interpreter interpreter, Object[] args) {
+        var memo = memoFor(interpreter);
+        Object key = null;
+        if(memo != null) {
+            key = MemoCache.key(args.clone());
+            var cached = memo.get(key);
+            if(cached != MemoCache.MISSING) {
+                return cached;
+            }
+        }
+
+        var result = invokeCompiled(interpreter, args);
+        if(result != JitRuntime.INTERPRET) {
+            return remember(memo, key, finishCompiled(interpreter, result));
+        }
+
+        var callEnv = newCallEnv();
+        for(int i = 0; i < args.length; i++) {
+            callEnv.define(i, args[i]);
+        }
+        return remember(memo, key, interpreter.runFunction(this, callEnv));
+    }
+
+    // The cache to use for a call, only if the function is pure and memoization is enabled
+    private MemoCache memoFor(Interpreter interpreter) {
+        if(!this.fn.isPure || interpreter.getMemoizer() == null) {
+            return null;
+        }
+        return interpreter.getMemoizer().cacheFor(this.fn);
+    }
+
+    // Stores the result of a call in the cache, if there is one
+    private static Object remember(MemoCache memo, Object key, Object result) {
+        if(memo != null) {
+            memo.put(key, result);
+        }
+        return result;
+    }
+
+    // Runs the compiled code of the function, or returns JitRuntime.INTERPRET if
+    // there is none or it doesn't accept the arguments, recording the call in either case
+    private Object invokeCompiled(Interpreter interpreter, Object[] args) {
+        var compiled = this.fn.compiled;
+        if(compiled != null) {
+            var result = compiled.invoke(interpreter, this.closure, args);
+            if(result != JitRuntime.INTERPRET) {
+                return result;
+            }
+            interpreter.getJit().deoptimize(this.fn, args);
+        } else if(interpreter.getJit() != null) {
+            interpreter.getJit().profile(this.fn, args);
+        }
+        return JitRuntime.INTERPRET;
+    }
+
+    // Compiled code leaves tail calls pending just like the interpreter, and they must be made here
+    private static Object finishCompiled(Interpreter interpreter, Object result) {
+        if(result != JitRuntime.TAIL_CALL) {
+            return result;
         }
 
-        try {
-            interpreter.runBlock(this.fn.body, callEnv);
-        } catch(ReturnExc ret) {
-            return ret.value;
+        result = runCompiledTailCalls(interpreter);
+        if(result != JitRuntime.INTERPRET) {
+            return result;
         }
 
-        return null;
+        var callee = interpreter.takeTailCallee();
+        var callEnv = callee.newCallEnv();
+        var args = interpreter.takeTailCallArgs();
+        for(int i = 0; i < args.length; i++) {
+            callEnv.define(i, args[i]);
+        }
+        return interpreter.runFunction(callee, callEnv);
+    }
+
+    /**
+     * Makes the pending tail calls for as long as they run in compiled code. Returns their result,
+     * or JitRuntime.INTERPRET if the next one must be run by the interpreter, leaving it pending.
+     */
+    public static Object runCompiledTailCalls(Interpreter interpreter) {
+        while(true) {
+            var callee = interpreter.takeTailCallee();
+            var args = interpreter.takeTailCallArgs();
+            var result = callee.invokeCompiled(interpreter, args);
+            if(result == JitRuntime.INTERPRET) {
+                interpreter.tailCall(callee, args);
+                return result;
+            } else if(result != JitRuntime.TAIL_CALL) {
+                return result;
+            }
+        }
+    }
+
+    public Environment newCallEnv() {
+        return new Environment(this.closure, this.fn.body.scopeSize);
     }
 
     @Override
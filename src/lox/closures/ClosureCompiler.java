@@ -0,0 +1,618 @@
+package lox.closures;
+
+import lox.GlobalCell;
+import lox.Interpreter;
+import lox.callables.LoxCallable;
+import lox.decl.Declaration;
+import lox.decl.FunctionDecl;
+import lox.decl.StatementDecl;
+import lox.decl.VariableDecl;
+import lox.expr.*;
+import lox.stmt.*;
+import lox.tokens.Token;
+import lox.visitors.DeclarationVisitor;
+import lox.visitors.ExpressionVisitor;
+import lox.visitors.StatementVisitor;
+
+import java.util.List;
+
+import static lox.Completion.BREAK;
+import static lox.Completion.NORMAL;
+import static lox.Interpreter.isTruthy;
+import static lox.Interpreter.modulo;
+import static lox.Interpreter.toNumber;
+
+/**
+ * Converts a resolved program into a tree of closures that run it. Every node is visited only
+ * once, here, and everything that the Interpreter decides each time it evaluates a node is
+ * decided at this point instead: which operator to apply, which operands are numbers, and in
+ * which frame and slot each variable lives. The closures that are left only do the actual work,
+ * and call each other directly instead of going through the visitors.
+ *
+ * Expressions that the Analyzer marked as numeric are converted into NumberCode, and conditions
+ * into TestCode, so that numbers and booleans are only boxed when they escape as regular values.
+ * The order in which operands are evaluated and checked is the same as in the Interpreter,
+ * so programs fail with the same errors.
+ */
+class ClosureCompiler implements ExpressionVisitor<ExprCode>, StatementVisitor<StmtCode>, DeclarationVisitor<StmtCode> {
+
+    private final ClosureRuntime runtime;
+
+    ClosureCompiler(ClosureRuntime runtime) {
+        this.runtime = runtime;
+    }
+
+    StmtCode compileProgram(List<Declaration> decls) {
+        return sequence(decls);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Aux methods
+
+    private ExprCode compile(Expression expr) {
+        return expr.accept(this);
+    }
+
+    private StmtCode compile(Statement stmt) {
+        return stmt.accept(this);
+    }
+
+    // Runs declarations in order, stopping at the first break or return
+    private StmtCode sequence(List<Declaration> decls) {
+        var codes = decls.stream().map(decl -> decl.accept(this)).toArray(StmtCode[]::new);
+        return switch(codes.length) {
+            case 0 -> frame -> NORMAL;
+            case 1 -> codes[0];
+            case 2 -> {
+                var first = codes[0];
+                var second = codes[1];
+                yield frame -> {
+                    var completion = first.run(frame);
+                    return completion != NORMAL ? completion : second.run(frame);
+                };
+            }
+            default -> frame -> {
+                for(StmtCode code : codes) {
+                    var completion = code.run(frame);
+                    if(completion != NORMAL) {
+                        return completion;
+                    }
+                }
+                return NORMAL;
+            };
+        };
+    }
+
+    /**
+     * Converts an expression whose result is used as a number by the given operator. Expressions
+     * that aren't numeric are evaluated normally and then checked, raising the operator's error.
+     */
+    private NumberCode number(Expression expr, Token operator) {
+        if(!expr.isNumeric) {
+            var code = compile(expr);
+            return frame -> toNumber(code.run(frame), operator);
+        }
+
+        if(expr instanceof BinaryExpr binaryExpr) {
+            return arithmetic(binaryExpr);
+        } else if(expr instanceof LiteralExpr literalExpr) {
+            double value = (Double) literalExpr.literal;
+            return frame -> value;
+        } else if(expr instanceof CounterExpr counterExpr) {
+            var counter = counterExpr.counter;
+            return frame -> counter.value;
+        } else if(expr instanceof GroupExpr groupExpr) {
+            return number(groupExpr.expr, operator);
+        } else if(expr instanceof UnaryExpr unaryExpr) {
+            var operand = number(unaryExpr.rightSide, unaryExpr.operator);
+            return frame -> -operand.run(frame);
+        }
+
+        // Unreachable, the Analyzer only marks the previous expressions as numeric
+        throw new IllegalStateException("Expression is not numeric: " + expr);
+    }
+
+    // Like arithmetic() in the Interpreter, an operand that isn't known to be numeric is only checked
+    // once both have been evaluated. This only matters for the left one, the right one is evaluated last.
+    private NumberCode arithmetic(BinaryExpr binaryExpr) {
+        var op = binaryExpr.operator;
+        if(binaryExpr.leftSide.isNumeric) {
+            var left = number(binaryExpr.leftSide, op);
+            var right = number(binaryExpr.rightSide, op);
+            return switch(op.getType()) {
+                case PLUS -> frame -> left.run(frame) + right.run(frame);
+                case MINUS -> frame -> left.run(frame) - right.run(frame);
+                case ASTERISK -> frame -> left.run(frame) * right.run(frame);
+                case SLASH -> frame -> left.run(frame) / right.run(frame);
+                case PERCENT -> frame -> modulo(left.run(frame), right.run(frame));
+                default -> throw new IllegalStateException("Unsupported numeric operator: " + op);
+            };
+        }
+
+        var left = compile(binaryExpr.leftSide);
+        if(binaryExpr.rightSide.isNumeric) {
+            var right = number(binaryExpr.rightSide, op);
+            return switch(op.getType()) {
+                case PLUS -> frame -> { var l = left.run(frame); var r = right.run(frame); return toNumber(l, op) + r; };
+                case MINUS -> frame -> { var l = left.run(frame); var r = right.run(frame); return toNumber(l, op) - r; };
+                case ASTERISK -> frame -> { var l = left.run(frame); var r = right.run(frame); return toNumber(l, op) * r; };
+                case SLASH -> frame -> { var l = left.run(frame); var r = right.run(frame); return toNumber(l, op) / r; };
+                case PERCENT -> frame -> { var l = left.run(frame); var r = right.run(frame); return modulo(toNumber(l, op), r); };
+                default -> throw new IllegalStateException("Unsupported numeric operator: " + op);
+            };
+        }
+
+        // Neither operand is known to be numeric, so the left one must be checked before the right one
+        var right = compile(binaryExpr.rightSide);
+        return switch(op.getType()) {
+            case PLUS -> frame -> { var l = left.run(frame); var r = right.run(frame); return toNumber(l, op) + toNumber(r, op); };
+            case MINUS -> frame -> { var l = left.run(frame); var r = right.run(frame); return toNumber(l, op) - toNumber(r, op); };
+            case ASTERISK -> frame -> { var l = left.run(frame); var r = right.run(frame); return toNumber(l, op) * toNumber(r, op); };
+            case SLASH -> frame -> { var l = left.run(frame); var r = right.run(frame); return toNumber(l, op) / toNumber(r, op); };
+            case PERCENT -> frame -> { var l = left.run(frame); var r = right.run(frame); return modulo(toNumber(l, op), toNumber(r, op)); };
+            default -> throw new IllegalStateException("Unsupported numeric operator: " + op);
+        };
+    }
+
+    // Same as arithmetic(), but for comparison operators
+    private TestCode comparison(BinaryExpr binaryExpr) {
+        var op = binaryExpr.operator;
+        if(binaryExpr.leftSide.isNumeric) {
+            var left = number(binaryExpr.leftSide, op);
+            var right = number(binaryExpr.rightSide, op);
+            return switch(op.getType()) {
+                case LESS -> frame -> left.run(frame) < right.run(frame);
+                case LESS_EQUAL -> frame -> left.run(frame) <= right.run(frame);
+                case GREATER -> frame -> left.run(frame) > right.run(frame);
+                case GREATER_EQUAL -> frame -> left.run(frame) >= right.run(frame);
+                default -> throw new IllegalStateException("Unsupported comparison operator: " + op);
+            };
+        }
+
+        var left = compile(binaryExpr.leftSide);
+        if(binaryExpr.rightSide.isNumeric) {
+            var right = number(binaryExpr.rightSide, op);
+            return switch(op.getType()) {
+                case LESS -> frame -> { var l = left.run(frame); var r = right.run(frame); return toNumber(l, op) < r; };
+                case LESS_EQUAL -> frame -> { var l = left.run(frame); var r = right.run(frame); return toNumber(l, op) <= r; };
+                case GREATER -> frame -> { var l = left.run(frame); var r = right.run(frame); return toNumber(l, op) > r; };
+                case GREATER_EQUAL -> frame -> { var l = left.run(frame); var r = right.run(frame); return toNumber(l, op) >= r; };
+                default -> throw new IllegalStateException("Unsupported comparison operator: " + op);
+            };
+        }
+
+        var right = compile(binaryExpr.rightSide);
+        return switch(op.getType()) {
+            case LESS -> frame -> { var l = left.run(frame); var r = right.run(frame); return toNumber(l, op) < toNumber(r, op); };
+            case LESS_EQUAL -> frame -> { var l = left.run(frame); var r = right.run(frame); return toNumber(l, op) <= toNumber(r, op); };
+            case GREATER -> frame -> { var l = left.run(frame); var r = right.run(frame); return toNumber(l, op) > toNumber(r, op); };
+            case GREATER_EQUAL -> frame -> { var l = left.run(frame); var r = right.run(frame); return toNumber(l, op) >= toNumber(r, op); };
+            default -> throw new IllegalStateException("Unsupported comparison operator: " + op);
+        };
+    }
+
+    /**
+     * Converts an expression whose result is only used for its truthiness. Comparisons, equality,
+     * negations and logical operators are tested directly, without producing a boxed Boolean.
+     */
+    private TestCode test(Expression expr) {
+        if(expr instanceof GroupExpr groupExpr) {
+            return test(groupExpr.expr);
+        } else if(expr instanceof BinaryExpr binaryExpr) {
+            switch(binaryExpr.operator.getType()) {
+                case LESS, LESS_EQUAL, GREATER, GREATER_EQUAL:
+                    return comparison(binaryExpr);
+                case EQUAL_EQUAL: {
+                    var left = compile(binaryExpr.leftSide);
+                    var right = compile(binaryExpr.rightSide);
+                    return frame -> Interpreter.valuesAreEqual(left.run(frame), right.run(frame));
+                }
+                case NOT_EQUAL: {
+                    var left = compile(binaryExpr.leftSide);
+                    var right = compile(binaryExpr.rightSide);
+                    return frame -> !Interpreter.valuesAreEqual(left.run(frame), right.run(frame));
+                }
+            }
+        } else if(expr instanceof UnaryExpr unaryExpr && !unaryExpr.isNumeric) {
+            var operand = test(unaryExpr.rightSide);
+            return frame -> !operand.test(frame);
+        } else if(expr instanceof LogicalExpr logicalExpr) {
+            // Only the truthiness of the result matters, which is the same as that of the operand it comes from
+            var left = test(logicalExpr.leftSide);
+            var right = test(logicalExpr.rightSide);
+            return switch(logicalExpr.operator.getType()) {
+                case OR -> frame -> left.test(frame) || right.test(frame);
+                case AND -> frame -> left.test(frame) && right.test(frame);
+                default -> throw new IllegalStateException("Unsupported logical operator: " + logicalExpr.operator);
+            };
+        }
+
+        var code = compile(expr);
+        return frame -> isTruthy(code.run(frame));
+    }
+
+    // Reads a local variable from the frame that is the given number of scopes up
+    private static ExprCode readLocal(int depth, int slot) {
+        return switch(depth) {
+            case 0 -> frame -> frame.slots[slot];
+            case 1 -> frame -> frame.outer.slots[slot];
+            case 2 -> frame -> frame.outer.outer.slots[slot];
+            default -> frame -> frame.ancestor(depth).slots[slot];
+        };
+    }
+
+    /**
+     * The cell of a global variable, which is looked up the first time it's used, since
+     * it may not exist yet when the code that uses it is converted.
+     */
+    private class GlobalRef {
+        private final Token identifier;
+        private GlobalCell cell;
+
+        GlobalRef(Token identifier) {
+            this.identifier = identifier;
+        }
+
+        GlobalCell cell() {
+            if(cell == null) {
+                cell = runtime.globals.getCell(identifier);
+            }
+            return cell;
+        }
+    }
+
+    /** Makes a call to a callee that has already been evaluated, evaluating the arguments in the given frame */
+    @FunctionalInterface
+    private interface Invoker {
+        Object invoke(Object callee, Frame frame);
+    }
+
+    // Converts the arguments of a call, and picks the entry point of the callee for that number of them
+    private Invoker invoker(CallExpr callExpr) {
+        var args = callExpr.args.stream().map(this::compile).toArray(ExprCode[]::new);
+        return switch(args.length) {
+            case 0 -> (callee, frame) -> Interpreter.checkCallable(callee, callExpr).call0(null);
+            case 1 -> {
+                var arg0 = args[0];
+                yield (callee, frame) -> Interpreter.checkCallable(callee, callExpr).call1(null, arg0.run(frame));
+            }
+            case 2 -> {
+                var arg0 = args[0];
+                var arg1 = args[1];
+                yield (callee, frame) -> Interpreter.checkCallable(callee, callExpr)
+                        .call2(null, arg0.run(frame), arg1.run(frame));
+            }
+            case 3 -> {
+                var arg0 = args[0];
+                var arg1 = args[1];
+                var arg2 = args[2];
+                yield (callee, frame) -> Interpreter.checkCallable(callee, callExpr)
+                        .call3(null, arg0.run(frame), arg1.run(frame), arg2.run(frame));
+            }
+            default -> (callee, frame) -> {
+                var callable = Interpreter.checkCallable(callee, callExpr);
+                return callable.call(null, evaluateAll(args, frame));
+            };
+        };
+    }
+
+    private static Object[] evaluateAll(ExprCode[] codes, Frame frame) {
+        var values = new Object[codes.length];
+        for(int i = 0; i < codes.length; i++) {
+            values[i] = codes[i].run(frame);
+        }
+        return values;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Declarations
+
+    @Override
+    public StmtCode visitVariableDecl(VariableDecl decl) {
+        var value = decl.value == null ? (ExprCode) frame -> null : compile(decl.value);
+
+        if(decl.slot < 0) {
+            var name = decl.identifier.getSymbol();
+            var globals = runtime.globals;
+            return frame -> {
+                globals.declare(name, value.run(frame));
+                return NORMAL;
+            };
+        }
+
+        var slot = decl.slot;
+        return frame -> {
+            frame.slots[slot] = value.run(frame);
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public StmtCode visitFunctionDecl(FunctionDecl decl) {
+        // The body is converted as a sequence, since the parameters share its scope
+        var proto = new ClosureFunction.Prototype(decl, sequence(decl.body.decls), runtime);
+
+        if(decl.slot < 0) {
+            var name = decl.identifier.getSymbol();
+            var globals = runtime.globals;
+            return frame -> {
+                globals.declare(name, new ClosureFunction(proto, frame));
+                return NORMAL;
+            };
+        }
+
+        var slot = decl.slot;
+        return frame -> {
+            frame.slots[slot] = new ClosureFunction(proto, frame);
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public StmtCode visitStatementDecl(StatementDecl decl) {
+        return compile(decl.stmt);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Statements
+
+    @Override
+    public StmtCode visitBlock(Block block) {
+        var body = sequence(block.decls);
+        if(!block.hasScope) {
+            return body;
+        }
+
+        var size = block.scopeSize;
+        return frame -> body.run(new Frame(frame, size));
+    }
+
+    @Override
+    public StmtCode visitBreakStmt(BreakStmt stmt) {
+        return frame -> BREAK;
+    }
+
+    @Override
+    public StmtCode visitReturnStmt(ReturnStmt stmt) {
+        if(stmt.isTailCall) {
+            var call = (CallExpr) stmt.value;
+            var callee = compile(call.callee);
+            var args = call.args.stream().map(this::compile).toArray(ExprCode[]::new);
+            return frame -> {
+                LoxCallable callable = Interpreter.checkCallable(callee.run(frame), call);
+                return runtime.tailCall(callable, evaluateAll(args, frame));
+            };
+        }
+
+        if(stmt.value == null) {
+            return frame -> runtime.returnWith(null);
+        }
+
+        var value = compile(stmt.value);
+        return frame -> runtime.returnWith(value.run(frame));
+    }
+
+    @Override
+    public StmtCode visitIfStmt(IfStmt ifStmt) {
+        var condition = test(ifStmt.condition);
+        var trueBranch = compile(ifStmt.trueBranch);
+        if(ifStmt.falseBranch == null) {
+            return frame -> condition.test(frame) ? trueBranch.run(frame) : NORMAL;
+        }
+
+        var falseBranch = compile(ifStmt.falseBranch);
+        return frame -> condition.test(frame) ? trueBranch.run(frame) : falseBranch.run(frame);
+    }
+
+    @Override
+    public StmtCode visitWhileStmt(WhileStmt stmt) {
+        var condition = test(stmt.condition);
+        var body = compile(stmt.body);
+        return frame -> {
+            while(condition.test(frame)) {
+                var completion = body.run(frame);
+                if(completion == BREAK) {
+                    break;
+                } else if(completion != NORMAL) {
+                    return completion;
+                }
+            }
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public StmtCode visitCountedLoopStmt(CountedLoopStmt stmt) {
+        var counter = stmt.counter;
+        var step = stmt.step;
+        var comparison = stmt.comparison;
+        var start = compile(stmt.start);
+        var limitValue = compile(stmt.limit);
+        var limit = number(stmt.limit, comparison);
+        var body = compile(stmt.body);
+
+        // The limit is evaluated before the counter is read, like in the Interpreter
+        TestCode condition = switch(comparison.getType()) {
+            case LESS -> frame -> { var l = limit.run(frame); return counter.value < l; };
+            case LESS_EQUAL -> frame -> { var l = limit.run(frame); return counter.value <= l; };
+            case GREATER -> frame -> { var l = limit.run(frame); return counter.value > l; };
+            case GREATER_EQUAL -> frame -> { var l = limit.run(frame); return counter.value >= l; };
+            default -> throw new IllegalStateException("Unsupported comparison operator: " + comparison);
+        };
+
+        return frame -> {
+            // The counter may be shared with a run of this same loop in a recursive call
+            var outerValue = counter.value;
+            try {
+                var startValue = start.run(frame);
+                if(!(startValue instanceof Double)) {
+                    limitValue.run(frame);
+                    toNumber(startValue, comparison);
+                }
+
+                counter.value = (Double) startValue;
+                while(condition.test(frame)) {
+                    var completion = body.run(frame);
+                    if(completion == BREAK) {
+                        break;
+                    } else if(completion != NORMAL) {
+                        return completion;
+                    }
+                    counter.value += step;
+                }
+                return NORMAL;
+            } finally {
+                counter.value = outerValue;
+            }
+        };
+    }
+
+    @Override
+    public StmtCode visitExpressionStmt(ExpressionStmt stmt) {
+        if(stmt.expr.isNumeric) {
+            var code = number(stmt.expr, null);
+            return frame -> {
+                code.run(frame);
+                return NORMAL;
+            };
+        }
+
+        var code = compile(stmt.expr);
+        return frame -> {
+            code.run(frame);
+            return NORMAL;
+        };
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Expressions
+
+    @Override
+    public ExprCode visitBinaryExpr(BinaryExpr binaryExpr) {
+        var op = binaryExpr.operator;
+        switch(op.getType()) {
+            case LESS, LESS_EQUAL, GREATER, GREATER_EQUAL, EQUAL_EQUAL, NOT_EQUAL: {
+                var test = test(binaryExpr);
+                return frame -> test.test(frame);
+            }
+        }
+
+        if(binaryExpr.isNumeric) {
+            // The result escapes here, so this is the only place where it gets boxed
+            var code = arithmetic(binaryExpr);
+            return frame -> code.run(frame);
+        }
+
+        var left = compile(binaryExpr.leftSide);
+        var right = compile(binaryExpr.rightSide);
+        return switch(op.getType()) {
+            case PLUS -> frame -> Interpreter.plus(left.run(frame), right.run(frame), op);
+            default -> frame -> Interpreter.binaryOperation(op, left.run(frame), right.run(frame));
+        };
+    }
+
+    @Override
+    public ExprCode visitLiteralExpr(LiteralExpr literalExpr) {
+        var value = literalExpr.literal;
+        return frame -> value;
+    }
+
+    @Override
+    public ExprCode visitLogicalExpr(LogicalExpr logicalExpr) {
+        var left = compile(logicalExpr.leftSide);
+        var right = compile(logicalExpr.rightSide);
+        return switch(logicalExpr.operator.getType()) {
+            case OR -> frame -> {
+                var value = left.run(frame);
+                return isTruthy(value) ? value : right.run(frame);
+            };
+            case AND -> frame -> {
+                var value = left.run(frame);
+                return !isTruthy(value) ? value : right.run(frame);
+            };
+            default -> throw new IllegalStateException("Unsupported logical operator: " + logicalExpr.operator);
+        };
+    }
+
+    @Override
+    public ExprCode visitUnaryExpr(UnaryExpr unaryExpr) {
+        if(unaryExpr.isNumeric) {
+            var code = number(unaryExpr, unaryExpr.operator);
+            return frame -> code.run(frame);
+        }
+
+        var test = test(unaryExpr);
+        return frame -> test.test(frame);
+    }
+
+    @Override
+    public ExprCode visitGrouping(GroupExpr groupExpr) {
+        return compile(groupExpr.expr);
+    }
+
+    @Override
+    public ExprCode visitVariableExpr(VariableExpr varExpr) {
+        if(varExpr.depth >= 0) {
+            return readLocal(varExpr.depth, varExpr.slot);
+        }
+
+        var global = new GlobalRef(varExpr.identifier);
+        return frame -> global.cell().value;
+    }
+
+    @Override
+    public ExprCode visitAssignmentExpr(AssignmentExpr assignExpr) {
+        var value = compile(assignExpr.rightSide);
+        var depth = assignExpr.depth;
+        var slot = assignExpr.slot;
+
+        if(depth < 0) {
+            var global = new GlobalRef(assignExpr.target);
+            return frame -> {
+                var result = value.run(frame);
+                global.cell().value = result;
+                return result;
+            };
+        }
+
+        return switch(depth) {
+            case 0 -> frame -> frame.slots[slot] = value.run(frame);
+            case 1 -> frame -> frame.outer.slots[slot] = value.run(frame);
+            default -> frame -> {
+                var result = value.run(frame);
+                frame.ancestor(depth).slots[slot] = result;
+                return result;
+            };
+        };
+    }
+
+    @Override
+    public ExprCode visitCallExpr(CallExpr callExpr) {
+        var callee = compile(callExpr.callee);
+        var invoker = invoker(callExpr);
+        return frame -> invoker.invoke(callee.run(frame), frame);
+    }
+
+    @Override
+    public ExprCode visitInlinedCallExpr(InlinedCallExpr inlinedCallExpr) {
+        // The inlined body is only valid while the global still holds the same function
+        var function = inlinedCallExpr.function;
+        var callee = compile(inlinedCallExpr.call.callee);
+        var body = compile(inlinedCallExpr.body);
+        var invoker = invoker(inlinedCallExpr.call);
+        return frame -> {
+            var value = callee.run(frame);
+            if(value instanceof ClosureFunction closure && closure.getDeclaration() == function) {
+                return body.run(frame);
+            }
+            return invoker.invoke(value, frame);
+        };
+    }
+
+    @Override
+    public ExprCode visitCounterExpr(CounterExpr counterExpr) {
+        // The value is only boxed here, when it's read as a regular value
+        var counter = counterExpr.counter;
+        return frame -> counter.value;
+    }
+}
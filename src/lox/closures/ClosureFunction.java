@@ -0,0 +1,105 @@
+package lox.closures;
+
+import lox.Completion;
+import lox.Interpreter;
+import lox.callables.LoxCallable;
+import lox.decl.FunctionDecl;
+
+/**
+ * A function value in closure mode: the code of a function declaration, converted once,
+ * paired with the frame it was declared in. Calls don't use the Interpreter they're given,
+ * which is null when they're made from other closures.
+ */
+public class ClosureFunction implements LoxCallable {
+
+    /** The parts of a function that are shared by all the closures created from its declaration */
+    record Prototype(FunctionDecl decl, StmtCode body, ClosureRuntime runtime) { }
+
+    private final Prototype proto;
+    private final Frame closure;
+
+    ClosureFunction(Prototype proto, Frame closure) {
+        this.proto = proto;
+        this.closure = closure;
+    }
+
+    FunctionDecl getDeclaration() {
+        return proto.decl();
+    }
+
+    @Override
+    public int getArity() {
+        return proto.decl().parameters.size();
+    }
+
+    // Arguments are bound to the first slots of the new frame, which belong to the parameters
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return run(newFrame());
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object arg0) {
+        var frame = newFrame();
+        frame.slots[0] = arg0;
+        return run(frame);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object arg0, Object arg1) {
+        var frame = newFrame();
+        frame.slots[0] = arg0;
+        frame.slots[1] = arg1;
+        return run(frame);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object arg0, Object arg1, Object arg2) {
+        var frame = newFrame();
+        frame.slots[0] = arg0;
+        frame.slots[1] = arg1;
+        frame.slots[2] = arg2;
+        return run(frame);
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object[] args) {
+        var frame = newFrame();
+        System.arraycopy(args, 0, frame.slots, 0, args.length);
+        return run(frame);
+    }
+
+    private Frame newFrame() {
+        return new Frame(this.closure, proto.decl().body.scopeSize);
+    }
+
+    // Runs the body of the function, and then the body of any function that it tail-calls, in a loop
+    private Object run(Frame frame) {
+        var runtime = proto.runtime();
+        var function = this;
+        while(true) {
+            var completion = function.proto.body().run(frame);
+            if(completion == Completion.RETURN) {
+                return runtime.takeReturnValue();
+            } else if(completion != Completion.TAIL_CALL) {
+                return null;
+            }
+
+            var callee = runtime.takeTailCallee();
+            var args = runtime.takeTailCallArgs();
+
+            // Same as in LoxFunction, the frame can be reused if it can't have been captured
+            if(callee != function || function.proto.decl().hasInnerFunctions) {
+                frame = callee.newFrame();
+            }
+            System.arraycopy(args, 0, frame.slots, 0, args.length);
+            function = callee;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "<fn '" + proto.decl().identifier.getLexeme() + "'>";
+    }
+}
@@ -0,0 +1,89 @@
+package lox.closures;
+
+import lox.Completion;
+import lox.Environment;
+import lox.Lox;
+import lox.RuntimeError;
+import lox.builtins.PrintFunc;
+import lox.builtins.RandomFunc;
+import lox.builtins.StrFunc;
+import lox.builtins.TimeFunc;
+import lox.callables.LoxCallable;
+import lox.tokens.Symbol;
+import lox.decl.Declaration;
+
+import java.util.List;
+
+/**
+ * Runs programs by converting them into closures with the ClosureCompiler, instead of walking
+ * their trees with the Interpreter. It holds the state that is shared by all the closures:
+ * the globals, which persist across calls to interpret() like in the Interpreter, and the
+ * value of the last return statement or the pending tail call.
+ */
+public class ClosureRuntime {
+
+    final Environment globals = new Environment();
+
+    private Object returnValue = null;
+    private ClosureFunction tailCallee = null;
+    private Object[] tailCallArgs = null;
+
+    public ClosureRuntime() {
+        globals.declare(Symbol.of("print"), new PrintFunc());
+        globals.declare(Symbol.of("time"), new TimeFunc());
+        globals.declare(Symbol.of("str"), new StrFunc());
+        globals.declare(Symbol.of("random"), new RandomFunc());
+    }
+
+    public void interpret(List<Declaration> decls) {
+        try {
+            var program = new ClosureCompiler(this).compileProgram(decls);
+            program.run(null);
+        } catch(RuntimeError error) {
+            Lox.runtimeError(error);
+        } finally {
+            returnValue = null;
+            tailCallee = null;
+            tailCallArgs = null;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Returns and tail calls
+
+    Completion returnWith(Object value) {
+        this.returnValue = value;
+        return Completion.RETURN;
+    }
+
+    // Calls to Lox functions in tail position are left pending for the function that is returning,
+    // like in the Interpreter, while builtins are called right away
+    Completion tailCall(LoxCallable callable, Object[] args) {
+        if(!(callable instanceof ClosureFunction function)) {
+            this.returnValue = callable.call(null, args);
+            return Completion.RETURN;
+        }
+
+        this.tailCallee = function;
+        this.tailCallArgs = args;
+        return Completion.TAIL_CALL;
+    }
+
+    Object takeReturnValue() {
+        var value = this.returnValue;
+        this.returnValue = null;
+        return value;
+    }
+
+    ClosureFunction takeTailCallee() {
+        var callee = this.tailCallee;
+        this.tailCallee = null;
+        return callee;
+    }
+
+    Object[] takeTailCallArgs() {
+        var args = this.tailCallArgs;
+        this.tailCallArgs = null;
+        return args;
+    }
+}
@@ -0,0 +1,7 @@
+package lox.closures;
+
+/** Evaluates an expression in the given frame */
+@FunctionalInterface
+interface ExprCode {
+    Object run(Frame frame);
+}
@@ -0,0 +1,24 @@
+package lox.closures;
+
+/**
+ * The local variables of a scope, in the slots that the Analyzer assigned to them,
+ * and a link to the frame of the enclosing scope. Globals are not kept in frames:
+ * the outermost scope of the program has no frame at all.
+ */
+final class Frame {
+    final Object[] slots;
+    final Frame outer;
+
+    Frame(Frame outer, int size) {
+        this.slots = new Object[size];
+        this.outer = outer;
+    }
+
+    Frame ancestor(int depth) {
+        var result = this;
+        for(int i = 0; i < depth; i++) {
+            result = result.outer;
+        }
+        return result;
+    }
+}
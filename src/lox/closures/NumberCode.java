@@ -0,0 +1,7 @@
+package lox.closures;
+
+/** Evaluates an expression that results in a number, without boxing it */
+@FunctionalInterface
+interface NumberCode {
+    double run(Frame frame);
+}
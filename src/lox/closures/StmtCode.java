@@ -0,0 +1,9 @@
+package lox.closures;
+
+import lox.Completion;
+
+/** Executes a statement or declaration in the given frame, and tells how it completed */
+@FunctionalInterface
+interface StmtCode {
+    Completion run(Frame frame);
+}
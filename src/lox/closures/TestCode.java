@@ -0,0 +1,7 @@
+package lox.closures;
+
+/** Evaluates the truthiness of a condition */
+@FunctionalInterface
+interface TestCode {
+    boolean test(Frame frame);
+}
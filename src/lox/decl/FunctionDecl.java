@@ -1,15 +1,42 @@
 package lox.decl;
 
+import lox.MemoCache;
+import lox.Memoizer;
+import lox.jit.CompiledFunction;
 import lox.stmt.Block;
+import lox.tokens.Symbol;
 import lox.tokens.Token;
 import lox.visitors.DeclarationVisitor;
 
+import java.util.ArrayList;
 import java.util.List;
 
 public class FunctionDecl extends Declaration {
-    public final Token identifier;
+    // Qualified with the namespace by the Analyzer if it's a global of a module
+    public Token identifier;
     public final List<Token> parameters;
     public final Block body;
+    // Slot of the function name in its local environment, set by the Analyzer. -1 for globals.
+    public int slot = -1;
+    // Whether other functions are declared inside this one, which may then capture its environment.
+    // Set by the Analyzer.
+    public boolean hasInnerFunctions = false;
+    // Profile of the calls run by the interpreter: how many there have been, and a mask of the
+    // parameters that have received something other than a number. Once the function is hot,
+    // it's compiled to the given code, which is shared by every closure of this declaration.
+    public int invocations = 0;
+    public long nonNumberParams = 0;
+    public CompiledFunction compiled;
+    // Whether the function is pure, set by the Analyzer: it only assigns its own variables, and
+    // only reads them or globals, whose names are kept. It may be memoized depending on the
+    // values of those globals, which the Memoizer checks on its first call.
+    public boolean isPure = false;
+    public List<Symbol> globalReads = new ArrayList<>();
+    // Cache of results while the function is memoized, or whether the Memoizer has rejected it.
+    // Both depend on the globals of one interpreter, so they're only valid for the Memoizer that decided.
+    public MemoCache memo;
+    public boolean memoRejected = false;
+    public Memoizer memoizer;
 
     public FunctionDecl(Token identifier, List<Token> parameters, Block body) {
         this.identifier = identifier;
@@ -0,0 +1,25 @@
+package lox.decl;
+
+import lox.tokens.Token;
+import lox.visitors.DeclarationVisitor;
+
+import java.nio.file.Path;
+
+public class ImportDecl extends Declaration {
+
+    public final Token keyword;
+    // String literal with the path of the module, relative to the file that imports it
+    public final Token path;
+    // The module file that the path refers to, set by the ModuleLoader
+    public Path file;
+
+    public ImportDecl(Token keyword, Token path) {
+        this.keyword = keyword;
+        this.path = path;
+    }
+
+    @Override
+    public<T> T accept(DeclarationVisitor<T> visitor) {
+        return visitor.visitImportDecl(this);
+    }
+}
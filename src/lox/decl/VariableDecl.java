@@ -6,8 +6,15 @@ import lox.visitors.DeclarationVisitor;
 
 public class VariableDecl extends Declaration {
 
-    public final Token identifier;
+    // Qualified with the namespace by the Analyzer if it's a global of a module
+    public Token identifier;
     public final Expression value;
+    // Slot of the variable in its local environment, set by the Analyzer. -1 for globals.
+    public int slot = -1;
+    // How many times a local variable is assigned after its declaration, and whether
+    // it's used by any function declared in its scope. Set by the Analyzer.
+    public int assignments = 0;
+    public boolean isCaptured = false;
 
     public VariableDecl(Token identifier, Expression value) {
         this.identifier = identifier;
@@ -1,16 +1,23 @@
 package lox.expr;
 
+import lox.GlobalCell;
 import lox.tokens.Token;
 import lox.visitors.ExpressionVisitor;
 
 public class AssignmentExpr extends Expression {
-    public final Token target;
-    public final Token operator;
+    // Qualified with the namespace by the Analyzer if it's a global of a module
+    public Token target;
     public final Expression rightSide;
+    // Location of the target in the environment chain, set by the Analyzer.
+    // A depth of -1 means that the target is global and is looked up at runtime.
+    public int depth = -1;
+    public int slot = -1;
+    // Cell of the global target, cached by the Interpreter after its first lookup.
+    // Another interpreter running the same tree looks it up again, see GlobalCell.
+    public GlobalCell cell;
 
-    public AssignmentExpr(Token target, Token operator, Expression rightSide) {
+    public AssignmentExpr(Token target, Expression rightSide) {
         this.target = target;
-        this.operator = operator;
         this.rightSide = rightSide;
     }
 
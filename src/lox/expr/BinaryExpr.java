@@ -1,5 +1,6 @@
 package lox.expr;
 
+import lox.nodes.BinaryNode;
 import lox.tokens.Token;
 import lox.visitors.ExpressionVisitor;
 
@@ -8,6 +9,8 @@ public class BinaryExpr extends Expression {
     public final Expression leftSide;
     public final Token operator;
     public final Expression rightSide;
+    // Self-specializing node used by the SpecializingInterpreter, created on first evaluation
+    public BinaryNode node;
 
     public BinaryExpr(Expression leftSide, Token operator, Expression rightSide) {
         this.leftSide = leftSide;
@@ -0,0 +1,22 @@
+package lox.expr;
+
+import lox.LoopCounter;
+import lox.tokens.Token;
+import lox.visitors.ExpressionVisitor;
+
+/** Reads the variable of a counted loop inside its body */
+public class CounterExpr extends Expression {
+
+    public final Token identifier;
+    public final LoopCounter counter;
+
+    public CounterExpr(Token identifier, LoopCounter counter) {
+        this.identifier = identifier;
+        this.counter = counter;
+    }
+
+    @Override
+    public <T> T accept(ExpressionVisitor<T> visitor) {
+        return visitor.visitCounterExpr(this);
+    }
+}
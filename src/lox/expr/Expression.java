@@ -3,5 +3,9 @@ package lox.expr;
 import lox.visitors.ExpressionVisitor;
 
 public abstract class Expression {
+    // Set by the Analyzer when the expression can only evaluate to a number (or fail),
+    // which allows the Interpreter to compute it without boxing intermediate results
+    public boolean isNumeric = false;
+
     public abstract<R> R accept(ExpressionVisitor<R> visitor);
 }
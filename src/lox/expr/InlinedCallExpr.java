@@ -0,0 +1,28 @@
+package lox.expr;
+
+import lox.decl.FunctionDecl;
+import lox.visitors.ExpressionVisitor;
+
+/**
+ * A call to a global function whose body has been inlined by the Optimizer.
+ * The body is only evaluated if the callee is still the function that was inlined,
+ * otherwise the original call is made.
+ */
+public class InlinedCallExpr extends Expression {
+
+    public final CallExpr call;
+    public final FunctionDecl function;
+    // The expression returned by the function, with its parameters replaced by the arguments
+    public final Expression body;
+
+    public InlinedCallExpr(CallExpr call, FunctionDecl function, Expression body) {
+        this.call = call;
+        this.function = function;
+        this.body = body;
+    }
+
+    @Override
+    public <T> T accept(ExpressionVisitor<T> visitor) {
+        return visitor.visitInlinedCallExpr(this);
+    }
+}
@@ -1,5 +1,6 @@
 package lox.expr;
 
+import lox.nodes.LogicalNode;
 import lox.tokens.Token;
 import lox.visitors.ExpressionVisitor;
 
@@ -14,6 +15,8 @@ import lox.visitors.ExpressionVisitor;
  */
 public class LogicalExpr extends BinaryExpr {
 
+    // Self-specializing node used by the SpecializingInterpreter, created on first evaluation
+    public LogicalNode logicalNode;
 
     public LogicalExpr(Expression leftSide, Token operator, Expression rightSide) {
         super(leftSide, operator, rightSide);
@@ -1,5 +1,6 @@
 package lox.expr;
 
+import lox.nodes.UnaryNode;
 import lox.tokens.Token;
 import lox.visitors.ExpressionVisitor;
 
@@ -7,6 +8,8 @@ public class UnaryExpr extends Expression {
 
     public final Token operator;
     public final Expression rightSide;
+    // Self-specializing node used by the SpecializingInterpreter, created on first evaluation
+    public UnaryNode node;
 
     public UnaryExpr(Token operator, Expression rightSide) {
         this.operator = operator;
@@ -1,11 +1,23 @@
 package lox.expr;
 
+import lox.GlobalCell;
+import lox.decl.VariableDecl;
 import lox.tokens.Token;
 import lox.visitors.ExpressionVisitor;
 
 public class VariableExpr extends Expression {
 
+    // Qualified with the namespace by the Analyzer if it's a global of a module
     public Token identifier;
+    // Location of the variable in the environment chain, set by the Analyzer.
+    // A depth of -1 means that the variable is global and is looked up at runtime.
+    public int depth = -1;
+    public int slot = -1;
+    // Declaration of the local variable, if it was declared with "let", set by the Analyzer
+    public VariableDecl declaration;
+    // Cell of the global variable, cached by the Interpreter after its first lookup.
+    // Another interpreter running the same tree looks it up again, see GlobalCell.
+    public GlobalCell cell;
 
     public VariableExpr(Token identifier) {
         this.identifier = identifier;
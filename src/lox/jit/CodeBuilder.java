@@ -0,0 +1,238 @@
+package lox.jit;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the bytecode of a single method, keeping track of the maximum depth of the operand
+ * stack and of the number of locals used, and resolving jumps to labels once they're placed.
+ */
+class CodeBuilder {
+    // Opcodes, named as in the JVM specification
+    static final int ACONST_NULL = 0x01, ICONST_0 = 0x03, DCONST_0 = 0x0e, BIPUSH = 0x10, SIPUSH = 0x11,
+            LDC_W = 0x13, LDC2_W = 0x14, ILOAD = 0x15, DLOAD = 0x18, ALOAD = 0x19, AALOAD = 0x32,
+            DSTORE = 0x39, ASTORE = 0x3a, AASTORE = 0x53, POP = 0x57, POP2 = 0x58, DUP = 0x59, DUP_X1 = 0x5a,
+            DUP2 = 0x5c, SWAP = 0x5f, DADD = 0x63, DSUB = 0x67, DMUL = 0x6b, DDIV = 0x6f, DREM = 0x73,
+            DNEG = 0x77, IXOR = 0x82, DCMPL = 0x97, DCMPG = 0x98, IFEQ = 0x99, IFNE = 0x9a, IFLT = 0x9b, IFGE = 0x9c,
+            IFGT = 0x9d, IFLE = 0x9e, GOTO = 0xa7, ARETURN = 0xb0, RETURN = 0xb1, GETSTATIC = 0xb2,
+            GETFIELD = 0xb4, PUTFIELD = 0xb5, INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8,
+            INVOKEINTERFACE = 0xb9, ANEWARRAY = 0xbd, CHECKCAST = 0xc0, INSTANCEOF = 0xc1, WIDE = 0xc4;
+
+    private static final int MAX_CODE_SIZE = 0xffff;
+
+    /** A position in the code that jumps can target, which may be placed after the jumps are written */
+    static class Label {
+        private int position = -1;
+        // Stack depth expected at the label, known from the first jump or from placing it
+        private int stackDepth = -1;
+        private final List<int[]> jumps = new ArrayList<>();
+    }
+
+    private final ClassBuilder classBuilder;
+    private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+    private int stackDepth = 0;
+    private int maxStack = 0;
+    private int maxLocals;
+    private final List<Label> labels = new ArrayList<>();
+
+    CodeBuilder(ClassBuilder classBuilder, int argumentSlots) {
+        this.classBuilder = classBuilder;
+        this.maxLocals = argumentSlots;
+    }
+
+    int getMaxStack() {
+        return maxStack;
+    }
+
+    int getMaxLocals() {
+        return maxLocals;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Instructions
+
+    void op(int opcode, int stackChange) {
+        code.write(opcode);
+        adjustStack(stackChange);
+    }
+
+    void pushInt(int value) {
+        if(value >= -1 && value <= 5) {
+            op(ICONST_0 + value, 1);
+        } else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            op(BIPUSH, 1);
+            code.write(value);
+        } else {
+            op(SIPUSH, 1);
+            writeShort(value);
+        }
+    }
+
+    void pushDouble(double value) {
+        if(Double.doubleToRawLongBits(value) == 0L || value == 1.0) {
+            op(DCONST_0 + (int) value, 2);
+        } else {
+            op(LDC2_W, 2);
+            writeShort(classBuilder.doubleConstant(value));
+        }
+    }
+
+    void pushString(String value) {
+        op(LDC_W, 1);
+        writeShort(classBuilder.string(value));
+    }
+
+    void load(int opcode, int index) {
+        var size = opcode == DLOAD ? 2 : 1;
+        localInstruction(opcode, index, size);
+        adjustStack(size);
+    }
+
+    void store(int opcode, int index) {
+        var size = opcode == DSTORE ? 2 : 1;
+        localInstruction(opcode, index, size);
+        adjustStack(-size);
+    }
+
+    void field(int opcode, String owner, String name, String descriptor) {
+        var size = descriptor.equals("D") || descriptor.equals("J") ? 2 : 1;
+        var change = switch(opcode) {
+            case GETSTATIC -> size;
+            case GETFIELD -> size - 1;
+            case PUTFIELD -> -size - 1;
+            default -> throw new IllegalArgumentException("Not a field instruction: " + opcode);
+        };
+        op(opcode, change);
+        writeShort(classBuilder.fieldRef(owner, name, descriptor));
+    }
+
+    void invoke(int opcode, String owner, String name, String descriptor) {
+        var change = returnSize(descriptor) - argumentSize(descriptor) - (opcode == INVOKESTATIC ? 0 : 1);
+        op(opcode, change);
+        if(opcode == INVOKEINTERFACE) {
+            writeShort(classBuilder.interfaceMethodRef(owner, name, descriptor));
+            code.write(argumentSize(descriptor) + 1);
+            code.write(0);
+        } else {
+            writeShort(classBuilder.methodRef(owner, name, descriptor));
+        }
+    }
+
+    void type(int opcode, String internalName) {
+        op(opcode, 0);
+        writeShort(classBuilder.classRef(internalName));
+    }
+
+    void jump(int opcode, Label target) {
+        var position = code.size();
+        op(opcode, opcode == GOTO ? 0 : -1);
+        target.jumps.add(new int[] { position, code.size() });
+        writeShort(0);
+        if(target.stackDepth < 0) {
+            target.stackDepth = stackDepth;
+        }
+    }
+
+    void place(Label label) {
+        label.position = code.size();
+        // Code right after a goto or a return is only reached through jumps,
+        // so the stack depth is the one they had
+        if(label.stackDepth >= 0) {
+            stackDepth = label.stackDepth;
+        } else {
+            label.stackDepth = stackDepth;
+        }
+        labels.add(label);
+    }
+
+    /** Reserves a new local variable, which takes two slots if it's a double */
+    int newLocal(boolean isDouble) {
+        var index = maxLocals;
+        maxLocals += isDouble ? 2 : 1;
+        if(maxLocals > 0xffff) {
+            throw new JitBailout("too many locals");
+        }
+        return index;
+    }
+
+    byte[] toBytes() {
+        var bytes = code.toByteArray();
+        if(bytes.length > MAX_CODE_SIZE) {
+            throw new JitBailout("method too large");
+        }
+
+        for(Label label : labels) {
+            for(int[] jump : label.jumps) {
+                var offset = label.position - jump[0];
+                if(offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                    throw new JitBailout("jump too far");
+                }
+                bytes[jump[1]] = (byte) (offset >> 8);
+                bytes[jump[1] + 1] = (byte) offset;
+            }
+        }
+
+        for(Label label : labels) {
+            label.jumps.clear();
+        }
+        return bytes;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Aux methods
+
+    private void localInstruction(int opcode, int index, int size) {
+        if(index > 0xff) {
+            code.write(WIDE);
+            code.write(opcode);
+            writeShort(index);
+        } else {
+            code.write(opcode);
+            code.write(index);
+        }
+        maxLocals = Math.max(maxLocals, index + size);
+    }
+
+    private void adjustStack(int change) {
+        stackDepth += change;
+        maxStack = Math.max(maxStack, stackDepth);
+    }
+
+    private void writeShort(int value) {
+        code.write(value >> 8);
+        code.write(value);
+    }
+
+    // Number of stack slots taken by the arguments of a method descriptor
+    private static int argumentSize(String descriptor) {
+        var size = 0;
+        var i = 1;
+        while(descriptor.charAt(i) != ')') {
+            var c = descriptor.charAt(i);
+            if(c == 'D' || c == 'J') {
+                size += 2;
+                i++;
+                continue;
+            }
+
+            size++;
+            while(descriptor.charAt(i) == '[') {
+                i++;
+            }
+            if(descriptor.charAt(i) == 'L') {
+                i = descriptor.indexOf(';', i);
+            }
+            i++;
+        }
+        return size;
+    }
+
+    private static int returnSize(String descriptor) {
+        return switch(descriptor.charAt(descriptor.indexOf(')') + 1)) {
+            case 'V' -> 0;
+            case 'D', 'J' -> 2;
+            default -> 1;
+        };
+    }
+}
@@ -0,0 +1,48 @@
+package lox.jit;
+
+import lox.Environment;
+import lox.Interpreter;
+
+/**
+ * Base class of the code that the JitCompiler generates for a function body.
+ * Generated classes override the entry point for the arity of the function,
+ * or the one taking an array of arguments for functions with more than three parameters.
+ *
+ * Besides the returned value, the entry points may return two markers: JitRuntime.INTERPRET if
+ * an argument doesn't have the type the code was specialized for, in which case the call
+ * must be run by the interpreter instead, and JitRuntime.TAIL_CALL if the function ended
+ * with a tail call, which has been stored in the interpreter for the caller to make.
+ */
+public abstract class CompiledFunction {
+    protected final Object[] constants;
+
+    protected CompiledFunction(Object[] constants) {
+        this.constants = constants;
+    }
+
+    public Object invoke0(Interpreter interpreter, Environment closure) {
+        throw new IllegalStateException("Wrong arity for compiled function");
+    }
+
+    public Object invoke1(Interpreter interpreter, Environment closure, Object arg0) {
+        throw new IllegalStateException("Wrong arity for compiled function");
+    }
+
+    public Object invoke2(Interpreter interpreter, Environment closure, Object arg0, Object arg1) {
+        throw new IllegalStateException("Wrong arity for compiled function");
+    }
+
+    public Object invoke3(Interpreter interpreter, Environment closure, Object arg0, Object arg1, Object arg2) {
+        throw new IllegalStateException("Wrong arity for compiled function");
+    }
+
+    public Object invoke(Interpreter interpreter, Environment closure, Object[] args) {
+        return switch(args.length) {
+            case 0 -> invoke0(interpreter, closure);
+            case 1 -> invoke1(interpreter, closure, args[0]);
+            case 2 -> invoke2(interpreter, closure, args[0], args[1]);
+            case 3 -> invoke3(interpreter, closure, args[0], args[1], args[2]);
+            default -> throw new IllegalStateException("Wrong arity for compiled function");
+        };
+    }
+}
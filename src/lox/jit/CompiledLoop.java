@@ -0,0 +1,25 @@
+package lox.jit;
+
+import lox.Completion;
+import lox.Environment;
+import lox.Interpreter;
+
+/**
+ * Base class of the code that the JitCompiler generates for a hot loop, which the interpreter
+ * switches to in the middle of running it (on-stack replacement). The generated code starts
+ * at the loop condition, reads and writes the variables declared outside the loop through
+ * the given environment, and completes like the loop statement would in the interpreter.
+ */
+public abstract class CompiledLoop {
+    protected final Object[] constants;
+
+    protected CompiledLoop(Object[] constants) {
+        this.constants = constants;
+    }
+
+    /**
+     * Runs the rest of the loop. For counted loops, the counter holds its current value,
+     * while it's ignored for other loops.
+     */
+    public abstract Completion run(Interpreter interpreter, Environment environment, double counter);
+}
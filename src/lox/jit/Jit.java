@@ -0,0 +1,181 @@
+package lox.jit;
+
+import lox.decl.FunctionDecl;
+import lox.expr.*;
+import lox.stmt.CountedLoopStmt;
+import lox.stmt.Statement;
+import lox.stmt.WhileStmt;
+
+/**
+ * Second tier of the tree-walking interpreter, which compiles hot code to JVM bytecode.
+ * A function is compiled once the interpreter has run it a number of times, and a loop
+ * once it has run ten times as many iterations, in which case the interpreter switches to
+ * the compiled code in the middle of the loop (on-stack replacement).
+ *
+ * Compiled functions speculate on the types of their arguments. When a call doesn't match,
+ * the function is deoptimized: its compiled code is discarded and the interpreter runs the
+ * call, and it's compiled again without that speculation if it gets hot again.
+ */
+public class Jit {
+    private final int threshold;
+    private final boolean log;
+
+    public Jit(int threshold, boolean log) {
+        this.threshold = Math.max(threshold, 1);
+        this.log = log;
+    }
+
+    public int getLoopThreshold() {
+        return threshold > Integer.MAX_VALUE / 10 ? Integer.MAX_VALUE : threshold * 10;
+    }
+
+    /**
+     * Records a call of a function that is run by the interpreter,
+     * and compiles the function once it's been called enough times.
+     * There's a version for each number of arguments that the interpreter
+     * passes without an array, like LoxCallable, so that profiling doesn't allocate.
+     */
+    public void profile0(FunctionDecl fn) {
+        countCall(fn);
+    }
+
+    public void profile1(FunctionDecl fn, Object arg0) {
+        recordArgument(fn, 0, arg0);
+        countCall(fn);
+    }
+
+    public void profile2(FunctionDecl fn, Object arg0, Object arg1) {
+        recordArgument(fn, 0, arg0);
+        recordArgument(fn, 1, arg1);
+        countCall(fn);
+    }
+
+    public void profile3(FunctionDecl fn, Object arg0, Object arg1, Object arg2) {
+        recordArgument(fn, 0, arg0);
+        recordArgument(fn, 1, arg1);
+        recordArgument(fn, 2, arg2);
+        countCall(fn);
+    }
+
+    public void profile(FunctionDecl fn, Object[] args) {
+        for(int i = 0; i < args.length; i++) {
+            recordArgument(fn, i, args[i]);
+        }
+        countCall(fn);
+    }
+
+    /**
+     * Discards the compiled code of a function whose arguments
+     * didn't have the types that the code was specialized for.
+     */
+    public void deoptimize1(FunctionDecl fn, Object arg0) {
+        deoptimizeArgument(fn, 0, arg0);
+        discardCompiled(fn);
+    }
+
+    public void deoptimize2(FunctionDecl fn, Object arg0, Object arg1) {
+        deoptimizeArgument(fn, 0, arg0);
+        deoptimizeArgument(fn, 1, arg1);
+        discardCompiled(fn);
+    }
+
+    public void deoptimize3(FunctionDecl fn, Object arg0, Object arg1, Object arg2) {
+        deoptimizeArgument(fn, 0, arg0);
+        deoptimizeArgument(fn, 1, arg1);
+        deoptimizeArgument(fn, 2, arg2);
+        discardCompiled(fn);
+    }
+
+    public void deoptimize(FunctionDecl fn, Object[] args) {
+        for(int i = 0; i < args.length; i++) {
+            deoptimizeArgument(fn, i, args[i]);
+        }
+        discardCompiled(fn);
+    }
+
+    /** Compiles a hot loop, returning null if it can't be compiled */
+    public CompiledLoop compileLoop(Statement loop) {
+        var description = describe(loop);
+        try {
+            var start = System.nanoTime();
+            var compiled = JitCompiler.compileLoop(loop);
+            log("Compiled " + description + " " + elapsedSince(start));
+            return compiled;
+        } catch(JitBailout bailout) {
+            log("Can't compile " + description + ": " + bailout.getMessage());
+            return null;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Aux methods
+
+    private void compile(FunctionDecl fn) {
+        var description = "function '" + fn.identifier.getLexeme() + "' at line " + fn.identifier.getLine();
+        try {
+            var start = System.nanoTime();
+            fn.compiled = JitCompiler.compileFunction(fn);
+            log("Compiled " + description + " " + elapsedSince(start));
+        } catch(JitBailout bailout) {
+            log("Can't compile " + description + ": " + bailout.getMessage());
+        }
+    }
+
+    private void countCall(FunctionDecl fn) {
+        if(++fn.invocations == threshold) {
+            compile(fn);
+        }
+    }
+
+    private static void recordArgument(FunctionDecl fn, int index, Object arg) {
+        if(index < 64 && !(arg instanceof Double)) {
+            fn.nonNumberParams |= 1L << index;
+        }
+    }
+
+    // Records an argument of a call that the compiled code didn't accept, logging it if it's the culprit
+    private void deoptimizeArgument(FunctionDecl fn, int index, Object arg) {
+        if(log && index < 64 && !(arg instanceof Double) && (fn.nonNumberParams & (1L << index)) == 0) {
+            log("Deoptimized function '" + fn.identifier.getLexeme() + "': argument '"
+                    + fn.parameters.get(index).getLexeme() + "' is not a number");
+        }
+        recordArgument(fn, index, arg);
+    }
+
+    private static void discardCompiled(FunctionDecl fn) {
+        fn.compiled = null;
+        fn.invocations = 0;
+    }
+
+    private void log(String message) {
+        if(log) {
+            System.err.println("[jit] " + message);
+        }
+    }
+
+    private static String elapsedSince(long start) {
+        return String.format("in %.2f ms", (System.nanoTime() - start) / 1e6);
+    }
+
+    // Loops don't keep their line, so it's taken from their counter or condition when possible
+    private static String describe(Statement loop) {
+        if(loop instanceof CountedLoopStmt countedLoop) {
+            return "loop over '" + countedLoop.variable.getLexeme() + "' at line " + countedLoop.variable.getLine();
+        }
+
+        var line = loop instanceof WhileStmt whileStmt ? lineOf(whileStmt.condition) : -1;
+        return line < 0 ? "while loop" : "while loop at line " + line;
+    }
+
+    private static int lineOf(Expression expr) {
+        if(expr instanceof BinaryExpr binaryExpr) return binaryExpr.operator.getLine();
+        if(expr instanceof LogicalExpr logicalExpr) return logicalExpr.operator.getLine();
+        if(expr instanceof UnaryExpr unaryExpr) return unaryExpr.operator.getLine();
+        if(expr instanceof VariableExpr varExpr) return varExpr.identifier.getLine();
+        if(expr instanceof AssignmentExpr assignExpr) return assignExpr.target.getLine();
+        if(expr instanceof CallExpr callExpr) return callExpr.closingParens.getLine();
+        if(expr instanceof InlinedCallExpr inlinedCallExpr) return lineOf(inlinedCallExpr.call);
+        if(expr instanceof GroupExpr groupExpr) return lineOf(groupExpr.expr);
+        return -1;
+    }
+}
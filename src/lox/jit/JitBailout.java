@@ -0,0 +1,13 @@
+package lox.jit;
+
+/**
+ * Thrown while compiling a unit that the JitCompiler doesn't support,
+ * in which case the unit just keeps running in the interpreter.
+ */
+class JitBailout extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    JitBailout(String reason) {
+        super(reason, null, false, false);
+    }
+}
@@ -0,0 +1,824 @@
+package lox.jit;
+
+import lox.decl.FunctionDecl;
+import lox.decl.StatementDecl;
+import lox.decl.VariableDecl;
+import lox.expr.*;
+import lox.jit.CodeBuilder.Label;
+import lox.stmt.*;
+import lox.tokens.Token;
+import lox.tokens.TokenType;
+import lox.visitors.DeclarationVisitor;
+import lox.visitors.ExpressionVisitor;
+import lox.visitors.StatementVisitor;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+import static lox.jit.CodeBuilder.*;
+import static lox.tokens.TokenType.*;
+
+/**
+ * Compiles a function body or a loop to a hidden class, following the same semantics as the
+ * Interpreter: every operation that isn't generated inline calls the same static methods that
+ * the Interpreter uses, so errors and results are the same in compiled code.
+ *
+ * Local variables declared in the unit become JVM locals, and those that the LocalAnalysis finds
+ * to always hold numbers are kept as unboxed doubles, as are the results of arithmetic on them.
+ * Variables declared outside the unit are read and written through their environments.
+ *
+ * Parameters that the profile of a function shows as always receiving numbers are speculated
+ * to be doubles. Their types are checked when entering the compiled code, and if a check
+ * fails, it returns JitRuntime.INTERPRET before running anything, so that the interpreter
+ * runs that call instead.
+ */
+class JitCompiler implements ExpressionVisitor<Void>, StatementVisitor<Void>, DeclarationVisitor<Void> {
+    private static final String OBJECT = "java/lang/Object";
+    private static final String DOUBLE = "java/lang/Double";
+    private static final String BOOLEAN = "java/lang/Boolean";
+    private static final String INTERPRETER = "lox/Interpreter";
+    private static final String ENVIRONMENT = "lox/Environment";
+    private static final String COMPLETION = "lox/Completion";
+    private static final String TOKEN = "lox/tokens/Token";
+    private static final String CALLABLE = "lox/callables/LoxCallable";
+    private static final String RUNTIME = "lox/jit/JitRuntime";
+
+    // Locals with the arguments of the generated methods
+    private static final int THIS = 0, INTERPRETER_ARG = 1, ENVIRONMENT_ARG = 2, FIRST_ARG = 3;
+
+    private final LocalAnalysis analysis;
+    private final boolean isLoop;
+    private final String superName;
+    private final ClassBuilder classBuilder;
+    private CodeBuilder code;
+    private int constantsLocal;
+
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndexes = new IdentityHashMap<>();
+    // Where break statements jump to, for each of the loops being compiled
+    private final Stack<Label> breakLabels = new Stack<>();
+
+    private JitCompiler(LocalAnalysis analysis, boolean isLoop, String name) {
+        this.analysis = analysis;
+        this.isLoop = isLoop;
+        this.superName = isLoop ? "lox/jit/CompiledLoop" : "lox/jit/CompiledFunction";
+        this.classBuilder = new ClassBuilder("lox/jit/Jit$" + name, superName);
+    }
+
+    /**
+     * Compiles the body of a function, speculating on the parameters that haven't received
+     * anything other than a number so far.
+     */
+    static CompiledFunction compileFunction(FunctionDecl fn) {
+        var analysis = LocalAnalysis.ofFunction(fn, fn.nonNumberParams);
+        var compiler = new JitCompiler(analysis, false, fn.identifier.getLexeme());
+        var arity = fn.parameters.size();
+
+        String name, descriptor;
+        if(arity <= 3) {
+            name = "invoke" + arity;
+            descriptor = "(L" + INTERPRETER + ";L" + ENVIRONMENT + ";" + ("L" + OBJECT + ";").repeat(arity) + ")L" + OBJECT + ";";
+        } else {
+            name = "invoke";
+            descriptor = "(L" + INTERPRETER + ";L" + ENVIRONMENT + ";[L" + OBJECT + ";)L" + OBJECT + ";";
+        }
+
+        var code = compiler.startMethod(FIRST_ARG + (arity <= 3 ? arity : 1));
+        compiler.bindParameters(arity);
+        compiler.compileAll(fn.body);
+        code.op(ACONST_NULL, 1);
+        code.op(ARETURN, -1);
+        compiler.endMethod(name, descriptor);
+
+        return (CompiledFunction) compiler.define();
+    }
+
+    /** Compiles a loop, which starts running at its condition */
+    static CompiledLoop compileLoop(Statement loop) {
+        var analysis = LocalAnalysis.ofLoop(loop);
+        var compiler = new JitCompiler(analysis, true, "Loop");
+        var code = compiler.startMethod(FIRST_ARG + 2);
+
+        if(loop instanceof CountedLoopStmt countedLoop) {
+            var counter = analysis.localFor(countedLoop.counter);
+            code.load(DLOAD, FIRST_ARG);
+            code.store(DSTORE, counter.index);
+            compiler.countedLoop(countedLoop, counter);
+        } else {
+            loop.accept(compiler);
+        }
+
+        code.field(GETSTATIC, COMPLETION, "NORMAL", "L" + COMPLETION + ";");
+        code.op(ARETURN, -1);
+        compiler.endMethod("run", "(L" + INTERPRETER + ";L" + ENVIRONMENT + ";D)L" + COMPLETION + ";");
+
+        return (CompiledLoop) compiler.define();
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Methods and classes
+
+    // Starts the method of the unit, loading the constants and setting every local
+    // to an initial value, so that all of them have a known type everywhere
+    private CodeBuilder startMethod(int argumentSlots) {
+        code = new CodeBuilder(classBuilder, argumentSlots);
+        code.load(ALOAD, THIS);
+        code.field(GETFIELD, superName, "constants", "[L" + OBJECT + ";");
+        constantsLocal = code.newLocal(false);
+        code.store(ASTORE, constantsLocal);
+
+        for(LocalAnalysis.Local local : analysis.getLocals()) {
+            local.index = code.newLocal(local.isDouble);
+            if(local.isDouble) {
+                code.pushDouble(0);
+                code.store(DSTORE, local.index);
+            } else {
+                code.op(ACONST_NULL, 1);
+                code.store(ASTORE, local.index);
+            }
+        }
+        return code;
+    }
+
+    private void endMethod(String name, String descriptor) {
+        classBuilder.addMethod(ClassBuilder.ACC_PUBLIC, name, descriptor, code);
+
+        var constructor = new CodeBuilder(classBuilder, 2);
+        constructor.load(ALOAD, 0);
+        constructor.load(ALOAD, 1);
+        constructor.invoke(INVOKESPECIAL, superName, "<init>", "([L" + OBJECT + ";)V");
+        constructor.op(CodeBuilder.RETURN, 0);
+        classBuilder.addMethod(ClassBuilder.ACC_PUBLIC, "<init>", "([L" + OBJECT + ";)V", constructor);
+    }
+
+    private Object define() {
+        var bytes = classBuilder.toBytes();
+        try {
+            var lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            var constructor = lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class, Object[].class));
+            return constructor.invoke(constants.toArray());
+        } catch(Throwable e) {
+            throw new JitBailout("invalid class: " + e);
+        }
+    }
+
+    // Copies the arguments to the locals of the parameters, checking the ones that are speculated to be numbers
+    private void bindParameters(int arity) {
+        var params = analysis.getParams();
+        var interpret = new Label();
+        var speculates = false;
+
+        for(int i = 0; i < arity; i++) {
+            var param = params.get(i);
+            if(arity <= 3) {
+                code.load(ALOAD, FIRST_ARG + i);
+            } else {
+                code.load(ALOAD, FIRST_ARG);
+                code.pushInt(i);
+                code.op(AALOAD, -1);
+            }
+
+            if(param.isDouble) {
+                speculates = true;
+                code.op(DUP, 1);
+                code.type(INSTANCEOF, DOUBLE);
+                code.jump(IFEQ, interpret);
+                unbox();
+                code.store(DSTORE, param.index);
+            } else {
+                code.store(ASTORE, param.index);
+            }
+        }
+
+        if(speculates) {
+            // Jumped to with the argument that failed the check on the stack
+            var body = new Label();
+            code.jump(GOTO, body);
+            code.place(interpret);
+            code.op(POP, -1);
+            code.field(GETSTATIC, RUNTIME, "INTERPRET", "L" + OBJECT + ";");
+            code.op(ARETURN, -1);
+            code.place(body);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Aux methods
+
+    private void compileAll(Block block) {
+        for(var decl : block.decls) {
+            decl.accept(this);
+        }
+    }
+
+    // Pushes a value that the generated code can't embed, which is passed to the class when it's created
+    private void pushConstant(Object value, String type) {
+        var index = constantIndexes.get(value);
+        if(index == null) {
+            index = constants.size();
+            if(index > Short.MAX_VALUE) {
+                throw new JitBailout("too many constants");
+            }
+            constants.add(value);
+            constantIndexes.put(value, index);
+        }
+
+        code.load(ALOAD, constantsLocal);
+        code.pushInt(index);
+        code.op(AALOAD, -1);
+        code.type(CHECKCAST, type);
+    }
+
+    private void box() {
+        code.invoke(INVOKESTATIC, DOUBLE, "valueOf", "(D)L" + DOUBLE + ";");
+    }
+
+    private void unbox() {
+        code.type(CHECKCAST, DOUBLE);
+        code.invoke(INVOKEVIRTUAL, DOUBLE, "doubleValue", "()D");
+    }
+
+    /** Evaluates an expression, leaving its result on the stack as an object */
+    private void emit(Expression expr) {
+        if(analysis.isDouble(expr) && !(expr instanceof LiteralExpr)) {
+            emitDouble(expr);
+            box();
+        } else {
+            expr.accept(this);
+        }
+    }
+
+    /** Evaluates an expression for its side effects only, so numbers don't even get boxed */
+    private void emitDiscarded(Expression expr) {
+        if(analysis.isDouble(expr)) {
+            emitDouble(expr);
+            code.op(POP2, -2);
+        } else {
+            emit(expr);
+            code.op(POP, -1);
+        }
+    }
+
+    /**
+     * Evaluates an expression that LocalAnalysis.isDouble() accepts,
+     * leaving its result on the stack as a primitive double.
+     */
+    private void emitDouble(Expression expr) {
+        if(expr instanceof LiteralExpr literalExpr) {
+            code.pushDouble((Double) literalExpr.literal);
+        } else if(expr instanceof CounterExpr counterExpr) {
+            var local = analysis.localFor(counterExpr.counter);
+            if(local != null) {
+                code.load(DLOAD, local.index);
+            } else {
+                // Counter of a loop that is running in the interpreter
+                pushConstant(counterExpr.counter, "lox/LoopCounter");
+                code.field(GETFIELD, "lox/LoopCounter", "value", "D");
+            }
+        } else if(expr instanceof GroupExpr groupExpr) {
+            emitDouble(groupExpr.expr);
+        } else if(expr instanceof VariableExpr varExpr) {
+            code.load(DLOAD, analysis.localFor(varExpr).index);
+        } else if(expr instanceof AssignmentExpr assignExpr) {
+            emitDouble(assignExpr.rightSide);
+            code.op(DUP2, 2);
+            code.store(DSTORE, analysis.localFor(assignExpr).index);
+        } else if(expr instanceof UnaryExpr unaryExpr) {
+            if(analysis.isDouble(unaryExpr.rightSide)) {
+                emitDouble(unaryExpr.rightSide);
+                code.op(DNEG, 0);
+            } else {
+                emit(unaryExpr.rightSide);
+                toNumber(unaryExpr.operator);
+                code.op(DNEG, 0);
+            }
+        } else if(expr instanceof BinaryExpr binaryExpr) {
+            arithmetic(binaryExpr);
+        } else {
+            // Unreachable, LocalAnalysis only accepts the previous expressions
+            throw new IllegalStateException("Expression is not numeric: " + expr);
+        }
+    }
+
+    private void arithmetic(BinaryExpr binaryExpr) {
+        numericOperands(binaryExpr);
+        if(binaryExpr.operator.getType() == PERCENT) {
+            // Same as the interpreter, which is much faster than drem for whole numbers
+            code.invoke(INVOKESTATIC, INTERPRETER, "modulo", "(DD)D");
+            return;
+        }
+
+        var opcode = switch(binaryExpr.operator.getType()) {
+            case PLUS -> DADD;
+            case MINUS -> DSUB;
+            case ASTERISK -> DMUL;
+            case SLASH -> DDIV;
+            default -> throw new IllegalStateException("Unsupported numeric operator: " + binaryExpr.operator);
+        };
+        code.op(opcode, -2);
+    }
+
+    /**
+     * Evaluates both operands of a numeric operator as doubles. Like the interpreter, operands that
+     * may not be numbers are only checked once both have been evaluated, the left one first.
+     */
+    private void numericOperands(BinaryExpr binaryExpr) {
+        var leftSide = binaryExpr.leftSide;
+        var rightSide = binaryExpr.rightSide;
+        var operator = binaryExpr.operator;
+
+        if(analysis.isDouble(leftSide)) {
+            emitDouble(leftSide);
+            if(analysis.isDouble(rightSide)) {
+                emitDouble(rightSide);
+            } else {
+                emit(rightSide);
+                toNumber(operator);
+            }
+            return;
+        }
+
+        // The right operand is set aside while the left one is checked, unless evaluating it can't be noticed
+        emit(leftSide);
+        if(isPure(rightSide)) {
+            toNumber(operator);
+            emitDouble(rightSide);
+        } else if(analysis.isDouble(rightSide)) {
+            emitDouble(rightSide);
+            var right = code.newLocal(true);
+            code.store(DSTORE, right);
+            toNumber(operator);
+            code.load(DLOAD, right);
+        } else {
+            emit(rightSide);
+            var right = code.newLocal(false);
+            code.store(ASTORE, right);
+            toNumber(operator);
+            code.load(ALOAD, right);
+            toNumber(operator);
+        }
+    }
+
+    // Whether a numeric expression can be evaluated at any point, since it has no side effects and can't fail
+    private boolean isPure(Expression expr) {
+        if(expr instanceof LiteralExpr || expr instanceof CounterExpr) {
+            return analysis.isDouble(expr);
+        } else if(expr instanceof VariableExpr) {
+            return analysis.isDouble(expr);
+        } else if(expr instanceof GroupExpr groupExpr) {
+            return isPure(groupExpr.expr);
+        } else if(expr instanceof UnaryExpr unaryExpr) {
+            return unaryExpr.operator.getType() == MINUS && isPure(unaryExpr.rightSide);
+        } else if(expr instanceof BinaryExpr binaryExpr) {
+            return analysis.isDouble(binaryExpr) && isPure(binaryExpr.leftSide) && isPure(binaryExpr.rightSide);
+        }
+        return false;
+    }
+
+    // Unboxes the number on the stack, failing with the same error as the operator would
+    private void toNumber(Token operator) {
+        pushConstant(operator, TOKEN);
+        code.invoke(INVOKESTATIC, INTERPRETER, "toNumber", "(L" + OBJECT + ";L" + TOKEN + ";)D");
+    }
+
+    private void binaryOperation(BinaryExpr binaryExpr) {
+        pushConstant(binaryExpr.operator, TOKEN);
+        emit(binaryExpr.leftSide);
+        emit(binaryExpr.rightSide);
+        code.invoke(INVOKESTATIC, INTERPRETER, "binaryOperation",
+                "(L" + TOKEN + ";L" + OBJECT + ";L" + OBJECT + ";)L" + OBJECT + ";");
+    }
+
+    private boolean bothDouble(BinaryExpr binaryExpr) {
+        return analysis.isDouble(binaryExpr.leftSide) && analysis.isDouble(binaryExpr.rightSide);
+    }
+
+    private static boolean isComparison(TokenType type) {
+        return type == LESS || type == LESS_EQUAL || type == GREATER || type == GREATER_EQUAL;
+    }
+
+    /**
+     * Evaluates a condition, jumping to the label if its truthiness is the given one,
+     * and continuing right after it otherwise. Comparisons between numbers, logical and
+     * negation operators are compiled to jumps directly, without producing any value.
+     */
+    private void condition(Expression expr, boolean jumpIf, Label label) {
+        if(expr instanceof GroupExpr groupExpr) {
+            condition(groupExpr.expr, jumpIf, label);
+            return;
+        }
+
+        if(expr instanceof LogicalExpr logicalExpr) {
+            // A logical expression is truthy if either operand is for "or", or both are for "and"
+            var isOr = logicalExpr.operator.getType() == OR;
+            if(isOr == jumpIf) {
+                condition(logicalExpr.leftSide, jumpIf, label);
+                condition(logicalExpr.rightSide, jumpIf, label);
+            } else {
+                var skip = new Label();
+                condition(logicalExpr.leftSide, !jumpIf, skip);
+                condition(logicalExpr.rightSide, jumpIf, label);
+                code.place(skip);
+            }
+            return;
+        }
+
+        if(expr instanceof UnaryExpr unaryExpr && unaryExpr.operator.getType() == NOT) {
+            condition(unaryExpr.rightSide, !jumpIf, label);
+            return;
+        }
+
+        if(expr instanceof BinaryExpr binaryExpr) {
+            var type = binaryExpr.operator.getType();
+            if(isComparison(type)) {
+                numericOperands(binaryExpr);
+                // Comparisons with NaN are false: dcmpg makes them fail "less" checks and dcmpl "greater" ones
+                code.op(type == LESS || type == LESS_EQUAL ? DCMPG : DCMPL, -3);
+                var opcode = switch(type) {
+                    case LESS -> jumpIf ? IFLT : IFGE;
+                    case LESS_EQUAL -> jumpIf ? IFLE : IFGT;
+                    case GREATER -> jumpIf ? IFGT : IFLE;
+                    default -> jumpIf ? IFGE : IFLT;
+                };
+                code.jump(opcode, label);
+                return;
+            } else if((type == EQUAL_EQUAL || type == NOT_EQUAL) && bothDouble(binaryExpr)) {
+                // Same as Double.equals(), which is what the interpreter uses
+                emitDouble(binaryExpr.leftSide);
+                emitDouble(binaryExpr.rightSide);
+                code.invoke(INVOKESTATIC, DOUBLE, "compare", "(DD)I");
+                code.jump((type == EQUAL_EQUAL) == jumpIf ? IFEQ : IFNE, label);
+                return;
+            }
+        }
+
+        emit(expr);
+        code.invoke(INVOKESTATIC, INTERPRETER, "isTruthy", "(L" + OBJECT + ";)Z");
+        code.jump(jumpIf ? IFNE : IFEQ, label);
+    }
+
+    // Pushes a boxed Boolean with the truthiness of a condition
+    private void booleanOf(Expression expr) {
+        var isFalse = new Label();
+        var end = new Label();
+        condition(expr, false, isFalse);
+        code.pushInt(1);
+        code.jump(GOTO, end);
+        code.place(isFalse);
+        code.pushInt(0);
+        code.place(end);
+        code.invoke(INVOKESTATIC, BOOLEAN, "valueOf", "(Z)L" + BOOLEAN + ";");
+    }
+
+    // Checks the callee, which must already be on the stack, and calls it with the arguments
+    private void call(CallExpr callExpr) {
+        pushConstant(callExpr, "lox/expr/CallExpr");
+        code.invoke(INVOKESTATIC, INTERPRETER, "checkCallable",
+                "(L" + OBJECT + ";Llox/expr/CallExpr;)L" + CALLABLE + ";");
+        code.load(ALOAD, INTERPRETER_ARG);
+
+        var args = callExpr.args;
+        if(args.size() <= 3) {
+            for(Expression arg : args) {
+                emit(arg);
+            }
+            code.invoke(INVOKEINTERFACE, CALLABLE, "call" + args.size(),
+                    "(L" + INTERPRETER + ";" + ("L" + OBJECT + ";").repeat(args.size()) + ")L" + OBJECT + ";");
+        } else {
+            arguments(args);
+            code.invoke(INVOKEINTERFACE, CALLABLE, "call", "(L" + INTERPRETER + ";[L" + OBJECT + ";)L" + OBJECT + ";");
+        }
+    }
+
+    private void arguments(List<Expression> args) {
+        code.pushInt(args.size());
+        code.type(ANEWARRAY, OBJECT);
+        for(int i = 0; i < args.size(); i++) {
+            code.op(DUP, 1);
+            code.pushInt(i);
+            emit(args.get(i));
+            code.op(AASTORE, -3);
+        }
+    }
+
+    // Same as Interpreter.visitCountedLoopStmt(), once the counter has its initial value
+    private void countedLoop(CountedLoopStmt stmt, LocalAnalysis.Local counter) {
+        var check = new Label();
+        var end = new Label();
+
+        code.place(check);
+        code.load(DLOAD, counter.index);
+        if(analysis.isDouble(stmt.limit)) {
+            emitDouble(stmt.limit);
+        } else {
+            emit(stmt.limit);
+            toNumber(stmt.comparison);
+        }
+
+        var type = stmt.comparison.getType();
+        code.op(type == LESS || type == LESS_EQUAL ? DCMPG : DCMPL, -3);
+        var exit = switch(type) {
+            case LESS -> IFGE;
+            case LESS_EQUAL -> IFGT;
+            case GREATER -> IFLE;
+            case GREATER_EQUAL -> IFLT;
+            default -> throw new IllegalStateException("Unsupported comparison operator: " + stmt.comparison);
+        };
+        code.jump(exit, end);
+
+        breakLabels.push(end);
+        stmt.body.accept(this);
+        breakLabels.pop();
+
+        code.load(DLOAD, counter.index);
+        code.pushDouble(stmt.step);
+        code.op(DADD, -2);
+        code.store(DSTORE, counter.index);
+        code.jump(GOTO, check);
+        code.place(end);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Declaration visitors
+
+    @Override
+    public Void visitVariableDecl(VariableDecl decl) {
+        var local = analysis.localFor(decl);
+        if(decl.value == null) {
+            code.op(ACONST_NULL, 1);
+            code.store(ASTORE, local.index);
+        } else if(local.isDouble) {
+            emitDouble(decl.value);
+            code.store(DSTORE, local.index);
+        } else {
+            emit(decl.value);
+            code.store(ASTORE, local.index);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitStatementDecl(StatementDecl decl) {
+        decl.stmt.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionDecl(FunctionDecl decl) {
+        // Unreachable, the LocalAnalysis bails out of units that declare functions
+        throw new JitBailout("declares a function");
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Statement visitors
+
+    @Override
+    public Void visitBreakStmt(BreakStmt stmt) {
+        code.jump(GOTO, breakLabels.peek());
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(ReturnStmt stmt) {
+        if(stmt.isTailCall) {
+            // The call is left pending in the interpreter, like Interpreter.tailCall() does
+            var callExpr = (CallExpr) stmt.value;
+            code.load(ALOAD, INTERPRETER_ARG);
+            emit(callExpr.callee);
+            pushConstant(callExpr, "lox/expr/CallExpr");
+            code.invoke(INVOKESTATIC, INTERPRETER, "checkCallable",
+                    "(L" + OBJECT + ";Llox/expr/CallExpr;)L" + CALLABLE + ";");
+            arguments(callExpr.args);
+            if(isLoop) {
+                code.invoke(INVOKEVIRTUAL, INTERPRETER, "tailCall", "(L" + CALLABLE + ";[L" + OBJECT + ";)L" + COMPLETION + ";");
+            } else {
+                code.invoke(INVOKESTATIC, RUNTIME, "tailCall",
+                        "(L" + INTERPRETER + ";L" + CALLABLE + ";[L" + OBJECT + ";)L" + OBJECT + ";");
+            }
+            code.op(ARETURN, -1);
+            return null;
+        }
+
+        if(isLoop) {
+            code.load(ALOAD, INTERPRETER_ARG);
+        }
+        if(stmt.value != null) {
+            emit(stmt.value);
+        } else {
+            code.op(ACONST_NULL, 1);
+        }
+        if(isLoop) {
+            code.invoke(INVOKEVIRTUAL, INTERPRETER, "returnWith", "(L" + OBJECT + ";)L" + COMPLETION + ";");
+        }
+        code.op(ARETURN, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(ExpressionStmt stmt) {
+        emitDiscarded(stmt.expr);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(IfStmt stmt) {
+        var otherwise = new Label();
+        condition(stmt.condition, false, otherwise);
+        stmt.trueBranch.accept(this);
+
+        if(stmt.falseBranch != null) {
+            var end = new Label();
+            code.jump(GOTO, end);
+            code.place(otherwise);
+            stmt.falseBranch.accept(this);
+            code.place(end);
+        } else {
+            code.place(otherwise);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(WhileStmt stmt) {
+        var check = new Label();
+        var end = new Label();
+
+        code.place(check);
+        condition(stmt.condition, false, end);
+        breakLabels.push(end);
+        stmt.body.accept(this);
+        breakLabels.pop();
+        code.jump(GOTO, check);
+        code.place(end);
+        return null;
+    }
+
+    @Override
+    public Void visitCountedLoopStmt(CountedLoopStmt stmt) {
+        var counter = analysis.localFor(stmt.counter);
+        if(analysis.isDouble(stmt.start)) {
+            emitDouble(stmt.start);
+        } else {
+            // Like the interpreter, the limit is evaluated before failing if the start isn't a number
+            var isNumber = new Label();
+            emit(stmt.start);
+            code.op(DUP, 1);
+            code.type(INSTANCEOF, DOUBLE);
+            code.jump(IFNE, isNumber);
+            emitDiscarded(stmt.limit);
+            code.place(isNumber);
+            toNumber(stmt.comparison);
+        }
+        code.store(DSTORE, counter.index);
+
+        countedLoop(stmt, counter);
+        return null;
+    }
+
+    @Override
+    public Void visitBlock(Block block) {
+        compileAll(block);
+        return null;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Expression visitors, for expressions whose result is an object
+
+    @Override
+    public Void visitBinaryExpr(BinaryExpr binaryExpr) {
+        var type = binaryExpr.operator.getType();
+        if(isComparison(type) || (bothDouble(binaryExpr) && (type == EQUAL_EQUAL || type == NOT_EQUAL))) {
+            booleanOf(binaryExpr);
+        } else {
+            binaryOperation(binaryExpr);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(LiteralExpr literalExpr) {
+        var literal = literalExpr.literal;
+        if(literal == null) {
+            code.op(ACONST_NULL, 1);
+        } else if(literal instanceof Boolean bool) {
+            code.field(GETSTATIC, BOOLEAN, bool ? "TRUE" : "FALSE", "L" + BOOLEAN + ";");
+        } else {
+            pushConstant(literal, OBJECT);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(LogicalExpr logicalExpr) {
+        // The result is the left operand if it short-circuits, and the right one otherwise
+        var end = new Label();
+        emit(logicalExpr.leftSide);
+        code.op(DUP, 1);
+        code.invoke(INVOKESTATIC, INTERPRETER, "isTruthy", "(L" + OBJECT + ";)Z");
+        code.jump(logicalExpr.operator.getType() == OR ? IFNE : IFEQ, end);
+        code.op(POP, -1);
+        emit(logicalExpr.rightSide);
+        code.place(end);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(UnaryExpr unaryExpr) {
+        // Negation is always numeric, so this is the NOT operator
+        emit(unaryExpr.rightSide);
+        code.invoke(INVOKESTATIC, INTERPRETER, "isTruthy", "(L" + OBJECT + ";)Z");
+        code.pushInt(1);
+        code.op(IXOR, -1);
+        code.invoke(INVOKESTATIC, BOOLEAN, "valueOf", "(Z)L" + BOOLEAN + ";");
+        return null;
+    }
+
+    @Override
+    public Void visitGrouping(GroupExpr groupExpr) {
+        emit(groupExpr.expr);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(VariableExpr varExpr) {
+        var local = analysis.localFor(varExpr);
+        var outerDepth = analysis.outerDepth(varExpr);
+        if(local != null) {
+            code.load(ALOAD, local.index);
+        } else if(outerDepth >= 0) {
+            code.load(ALOAD, ENVIRONMENT_ARG);
+            code.pushInt(outerDepth);
+            code.pushInt(varExpr.slot);
+            code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "getAt", "(II)L" + OBJECT + ";");
+        } else {
+            code.load(ALOAD, INTERPRETER_ARG);
+            pushConstant(varExpr, "lox/expr/VariableExpr");
+            code.invoke(INVOKESTATIC, RUNTIME, "getGlobal", "(L" + INTERPRETER + ";Llox/expr/VariableExpr;)L" + OBJECT + ";");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitAssignmentExpr(AssignmentExpr assignExpr) {
+        var local = analysis.localFor(assignExpr);
+        var outerDepth = analysis.outerDepth(assignExpr);
+        emit(assignExpr.rightSide);
+
+        if(local != null) {
+            code.op(DUP, 1);
+            code.store(ASTORE, local.index);
+        } else if(outerDepth >= 0) {
+            code.load(ALOAD, ENVIRONMENT_ARG);
+            code.pushInt(outerDepth);
+            code.pushInt(assignExpr.slot);
+            code.invoke(INVOKESTATIC, RUNTIME, "assignAt", "(L" + OBJECT + ";L" + ENVIRONMENT + ";II)L" + OBJECT + ";");
+        } else {
+            code.load(ALOAD, INTERPRETER_ARG);
+            pushConstant(assignExpr, "lox/expr/AssignmentExpr");
+            code.invoke(INVOKESTATIC, RUNTIME, "assignGlobal",
+                    "(L" + OBJECT + ";L" + INTERPRETER + ";Llox/expr/AssignmentExpr;)L" + OBJECT + ";");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(CallExpr callExpr) {
+        emit(callExpr.callee);
+        call(callExpr);
+        return null;
+    }
+
+    @Override
+    public Void visitCounterExpr(CounterExpr counterExpr) {
+        emitDouble(counterExpr);
+        box();
+        return null;
+    }
+
+    @Override
+    public Void visitInlinedCallExpr(InlinedCallExpr inlinedCallExpr) {
+        // Same as the interpreter, the inlined body is only valid while the callee is the inlined function
+        var callExpr = inlinedCallExpr.call;
+        var notInlined = new Label();
+        var end = new Label();
+
+        emit(callExpr.callee);
+        code.op(DUP, 1);
+        pushConstant(inlinedCallExpr.function, "lox/decl/FunctionDecl");
+        code.invoke(INVOKESTATIC, RUNTIME, "isInlined", "(L" + OBJECT + ";Llox/decl/FunctionDecl;)Z");
+        code.jump(IFEQ, notInlined);
+        code.op(POP, -1);
+        emit(inlinedCallExpr.body);
+        code.jump(GOTO, end);
+
+        code.place(notInlined);
+        call(callExpr);
+        code.place(end);
+        return null;
+    }
+}
@@ -0,0 +1,58 @@
+package lox.jit;
+
+import lox.Completion;
+import lox.Environment;
+import lox.Interpreter;
+import lox.callables.LoxCallable;
+import lox.callables.LoxFunction;
+import lox.decl.FunctionDecl;
+import lox.expr.AssignmentExpr;
+import lox.expr.VariableExpr;
+
+/**
+ * Markers returned by compiled functions, and helpers called from compiled code
+ * for the operations that aren't worth generating bytecode for.
+ */
+public final class JitRuntime {
+    /** Returned by a compiled function when the call has to be run by the interpreter instead */
+    public static final Object INTERPRET = new Object();
+    /** Returned by a compiled function that ended with a tail call, which is pending in the interpreter */
+    public static final Object TAIL_CALL = new Object();
+
+    private JitRuntime() { }
+
+    // Globals are looked up the first time they're used, and their cells are cached in the expression
+    // until another interpreter runs it
+
+    static Object getGlobal(Interpreter interpreter, VariableExpr varExpr) {
+        if(!interpreter.getGlobals().owns(varExpr.cell)) {
+            varExpr.cell = interpreter.getGlobalCell(varExpr.identifier);
+        }
+        return varExpr.cell.value;
+    }
+
+    static Object assignGlobal(Object value, Interpreter interpreter, AssignmentExpr assignExpr) {
+        if(!interpreter.getGlobals().owns(assignExpr.cell)) {
+            assignExpr.cell = interpreter.getGlobalCell(assignExpr.target);
+        }
+        assignExpr.cell.set(value);
+        return value;
+    }
+
+    static Object assignAt(Object value, Environment environment, int depth, int slot) {
+        environment.assignAt(depth, slot, value);
+        return value;
+    }
+
+    static boolean isInlined(Object callee, FunctionDecl function) {
+        return callee instanceof LoxFunction loxFunction && loxFunction.fn == function;
+    }
+
+    // Tail call from a compiled function, which returns either the result of the call or the marker
+    static Object tailCall(Interpreter interpreter, LoxCallable callable, Object[] args) {
+        if(interpreter.tailCall(callable, args) == Completion.RETURN) {
+            return interpreter.takeReturnValue();
+        }
+        return TAIL_CALL;
+    }
+}
@@ -0,0 +1,376 @@
+package lox.jit;
+
+import lox.decl.Declaration;
+import lox.decl.FunctionDecl;
+import lox.decl.StatementDecl;
+import lox.decl.VariableDecl;
+import lox.expr.*;
+import lox.stmt.*;
+import lox.tokens.Token;
+import lox.visitors.DeclarationVisitor;
+import lox.visitors.ExpressionVisitor;
+import lox.visitors.StatementVisitor;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+import static lox.tokens.TokenType.MINUS;
+
+/**
+ * Finds the local variables of a unit of code that is going to be compiled, which become
+ * JVM locals, and infers which of them always hold numbers, which are then kept unboxed.
+ *
+ * Variables are resolved the same way the Analyzer did, by keeping a stack of the scopes
+ * inside the unit. Variables declared outside of the unit are only known by how many
+ * environments up they are from the one the unit starts in, and stay in their environments.
+ */
+class LocalAnalysis implements ExpressionVisitor<Void>, StatementVisitor<Void>, DeclarationVisitor<Void> {
+
+    /** A local variable of the unit, or the counter of a counted loop inside it */
+    static class Local {
+        boolean isDouble = true;
+        // Index of the JVM local, assigned by the JitCompiler
+        int index = -1;
+        // Expressions whose values are stored in the variable
+        final List<Expression> stores = new ArrayList<>();
+        // Whether the variable is an operand of an arithmetic or comparison operator
+        boolean isUsedAsNumber = false;
+    }
+
+    private final Stack<Local[]> scopes = new Stack<>();
+    private final Map<Object, Local> locals = new IdentityHashMap<>();
+    private final Map<Expression, Integer> outerDepths = new IdentityHashMap<>();
+    private final List<Local> allLocals = new ArrayList<>();
+    private final List<Local> params = new ArrayList<>();
+
+    private LocalAnalysis() { }
+
+    /**
+     * Analyzes the body of a function. Parameters are speculated to be numbers if
+     * they are used as such, unless they have already received something else,
+     * as recorded in the given mask.
+     */
+    static LocalAnalysis ofFunction(FunctionDecl fn, long nonNumberParams) {
+        var analysis = new LocalAnalysis();
+        analysis.scopes.push(new Local[fn.body.scopeSize]);
+        for(int i = 0; i < fn.parameters.size(); i++) {
+            var param = analysis.newLocal();
+            analysis.scopes.peek()[i] = param;
+            analysis.params.add(param);
+        }
+
+        analysis.scanAll(fn.body.decls);
+
+        for(int i = 0; i < analysis.params.size(); i++) {
+            var param = analysis.params.get(i);
+            param.isDouble = i < 64 && (nonNumberParams & (1L << i)) == 0 && param.isUsedAsNumber;
+        }
+        analysis.inferTypes();
+        return analysis;
+    }
+
+    /** Analyzes a loop, which starts in the environment where the loop statement runs */
+    static LocalAnalysis ofLoop(Statement loop) {
+        var analysis = new LocalAnalysis();
+        loop.accept(analysis);
+        analysis.inferTypes();
+        return analysis;
+    }
+
+    List<Local> getLocals() {
+        return allLocals;
+    }
+
+    List<Local> getParams() {
+        return params;
+    }
+
+    /** The JVM local for a variable declaration, variable or assignment expression, or loop counter */
+    Local localFor(Object node) {
+        return locals.get(node);
+    }
+
+    /**
+     * How many environments up from the one the unit starts in a variable declared outside
+     * the unit is, or -1 if the expression doesn't refer to one such variable.
+     */
+    int outerDepth(Expression expr) {
+        return outerDepths.getOrDefault(expr, -1);
+    }
+
+    /**
+     * Whether an expression always results in a number, or fails. Such expressions are
+     * evaluated without boxing their result, given the types inferred for the locals.
+     */
+    boolean isDouble(Expression expr) {
+        if(expr instanceof LiteralExpr literalExpr) {
+            return literalExpr.literal instanceof Double;
+        } else if(expr instanceof CounterExpr) {
+            return true;
+        } else if(expr instanceof GroupExpr groupExpr) {
+            return isDouble(groupExpr.expr);
+        } else if(expr instanceof UnaryExpr unaryExpr) {
+            return unaryExpr.operator.getType() == MINUS;
+        } else if(expr instanceof BinaryExpr binaryExpr) {
+            return switch(binaryExpr.operator.getType()) {
+                case MINUS, ASTERISK, SLASH, PERCENT -> true;
+                case PLUS -> isDouble(binaryExpr.leftSide) || isDouble(binaryExpr.rightSide);
+                default -> false;
+            };
+        } else if(expr instanceof VariableExpr || expr instanceof AssignmentExpr) {
+            var local = locals.get(expr);
+            return local != null && local.isDouble;
+        }
+
+        return false;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Aux methods
+
+    private Local newLocal() {
+        var local = new Local();
+        allLocals.add(local);
+        return local;
+    }
+
+    // A variable holds numbers only if every value stored in it is a number. Starting with every
+    // variable as a candidate, the ones that get any other value are discarded, until no more change.
+    private void inferTypes() {
+        var changed = true;
+        while(changed) {
+            changed = false;
+            for(Local local : allLocals) {
+                if(local.isDouble && !local.stores.stream().allMatch(this::isDouble)) {
+                    local.isDouble = false;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private void scanAll(List<Declaration> decls) {
+        for(Declaration decl : decls) {
+            decl.accept(this);
+        }
+    }
+
+    private void scan(Expression expr) {
+        expr.accept(this);
+    }
+
+    private void scan(Statement stmt) {
+        stmt.accept(this);
+    }
+
+    // Finds the variable that an expression refers to, given its location in the environment chain
+    private void resolve(Expression expr, Token identifier, int depth, int slot) {
+        if(depth < 0) {
+            return;
+        }
+
+        if(depth >= scopes.size()) {
+            outerDepths.put(expr, depth - scopes.size());
+            return;
+        }
+
+        var local = scopes.get(scopes.size() - 1 - depth)[slot];
+        if(local == null) {
+            throw new JitBailout("unresolved variable '" + identifier.getLexeme() + "'");
+        }
+        locals.put(expr, local);
+    }
+
+    // Operands that are variables get their numeric use recorded, to decide which parameters to speculate on
+    private void markNumericUse(Expression operand) {
+        while(operand instanceof GroupExpr groupExpr) {
+            operand = groupExpr.expr;
+        }
+
+        var local = locals.get(operand);
+        if(local != null) {
+            local.isUsedAsNumber = true;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Visitor implementations
+
+    @Override
+    public Void visitVariableDecl(VariableDecl decl) {
+        if(decl.slot < 0) {
+            throw new JitBailout("declares a global variable");
+        }
+
+        var local = newLocal();
+        scopes.peek()[decl.slot] = local;
+        locals.put(decl, local);
+
+        if(decl.value != null) {
+            scan(decl.value);
+            local.stores.add(decl.value);
+        } else {
+            local.isDouble = false;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitStatementDecl(StatementDecl decl) {
+        scan(decl.stmt);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionDecl(FunctionDecl decl) {
+        throw new JitBailout("declares a function");
+    }
+
+    @Override
+    public Void visitBinaryExpr(BinaryExpr binaryExpr) {
+        scan(binaryExpr.leftSide);
+        scan(binaryExpr.rightSide);
+
+        switch(binaryExpr.operator.getType()) {
+            case MINUS, ASTERISK, SLASH, PERCENT, PLUS, LESS, LESS_EQUAL, GREATER, GREATER_EQUAL:
+                markNumericUse(binaryExpr.leftSide);
+                markNumericUse(binaryExpr.rightSide);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(LiteralExpr literalExpr) {
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(LogicalExpr logicalExpr) {
+        scan(logicalExpr.leftSide);
+        scan(logicalExpr.rightSide);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(UnaryExpr unaryExpr) {
+        scan(unaryExpr.rightSide);
+        if(isDouble(unaryExpr)) {
+            markNumericUse(unaryExpr.rightSide);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGrouping(GroupExpr groupExpr) {
+        scan(groupExpr.expr);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(VariableExpr varExpr) {
+        resolve(varExpr, varExpr.identifier, varExpr.depth, varExpr.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignmentExpr(AssignmentExpr assignExpr) {
+        scan(assignExpr.rightSide);
+        resolve(assignExpr, assignExpr.target, assignExpr.depth, assignExpr.slot);
+
+        var local = locals.get(assignExpr);
+        if(local != null) {
+            local.stores.add(assignExpr.rightSide);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(CallExpr callExpr) {
+        scan(callExpr.callee);
+        for(Expression arg : callExpr.args) {
+            scan(arg);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCounterExpr(CounterExpr counterExpr) {
+        // Counters of loops outside the unit are read from the loop counter itself
+        var local = locals.get(counterExpr.counter);
+        if(local != null) {
+            locals.put(counterExpr, local);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitInlinedCallExpr(InlinedCallExpr inlinedCallExpr) {
+        scan(inlinedCallExpr.call);
+        scan(inlinedCallExpr.body);
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(BreakStmt stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(ReturnStmt stmt) {
+        if(stmt.value != null) {
+            scan(stmt.value);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(ExpressionStmt stmt) {
+        scan(stmt.expr);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(IfStmt stmt) {
+        scan(stmt.condition);
+        scan(stmt.trueBranch);
+        if(stmt.falseBranch != null) {
+            scan(stmt.falseBranch);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(WhileStmt stmt) {
+        scan(stmt.condition);
+        scan(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitCountedLoopStmt(CountedLoopStmt stmt) {
+        scan(stmt.start);
+        scan(stmt.limit);
+
+        // The counter only ever holds numbers, and has no stores to check
+        var counter = newLocal();
+        locals.put(stmt.counter, counter);
+        scan(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitBlock(Block block) {
+        if(!block.hasScope) {
+            scanAll(block.decls);
+            return null;
+        }
+
+        scopes.push(new Local[block.scopeSize]);
+        scanAll(block.decls);
+        scopes.pop();
+        return null;
+    }
+}
@@ -0,0 +1,264 @@
+package lox.nodes;
+
+import lox.Interpreter;
+import lox.Rope;
+import lox.expr.BinaryExpr;
+
+/**
+ * Executable node for a BinaryExpr, which rewrites itself according to the types of the
+ * operands it observes at runtime. Every node starts as Uninitialized and specializes on
+ * its first execution. If a specialized node later gets operands it doesn't support, it
+ * replaces itself for good with the Generic node, which implements the full semantics.
+ * Specialized nodes only handle the happy path: any error is raised by the Generic node.
+ */
+public abstract class BinaryNode {
+    protected final BinaryExpr expr;
+
+    protected BinaryNode(BinaryExpr expr) {
+        this.expr = expr;
+    }
+
+    /** Computes the result of the operator for the already evaluated operands */
+    public abstract Object execute(Object left, Object right);
+
+    protected BinaryNode replace(BinaryNode node) {
+        expr.node = node;
+        return node;
+    }
+
+    // Called by specialized nodes when their guard fails
+    protected Object generalize(Object left, Object right) {
+        return replace(new Generic(expr)).execute(left, right);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    public static final class Uninitialized extends BinaryNode {
+        public Uninitialized(BinaryExpr expr) {
+            super(expr);
+        }
+
+        @Override
+        public Object execute(Object left, Object right) {
+            return replace(specialize(left, right)).execute(left, right);
+        }
+
+        private BinaryNode specialize(Object left, Object right) {
+            if(left instanceof Double && right instanceof Double) {
+                return switch(expr.operator.getType()) {
+                    case PLUS -> new AddDoubles(expr);
+                    case MINUS -> new SubtractDoubles(expr);
+                    case ASTERISK -> new MultiplyDoubles(expr);
+                    case SLASH -> new DivideDoubles(expr);
+                    case PERCENT -> new ModuloDoubles(expr);
+                    case LESS -> new LessDoubles(expr);
+                    case LESS_EQUAL -> new LessEqualDoubles(expr);
+                    case GREATER -> new GreaterDoubles(expr);
+                    case GREATER_EQUAL -> new GreaterEqualDoubles(expr);
+                    case EQUAL_EQUAL -> new EqualDoubles(expr);
+                    case NOT_EQUAL -> new NotEqualDoubles(expr);
+                    default -> new Generic(expr);
+                };
+            } else if(left instanceof CharSequence && right instanceof CharSequence) {
+                return switch(expr.operator.getType()) {
+                    case PLUS -> new ConcatStrings(expr);
+                    case EQUAL_EQUAL -> new EqualStrings(expr);
+                    case NOT_EQUAL -> new NotEqualStrings(expr);
+                    default -> new Generic(expr);
+                };
+            }
+
+            return new Generic(expr);
+        }
+    }
+
+    public static final class Generic extends BinaryNode {
+        public Generic(BinaryExpr expr) {
+            super(expr);
+        }
+
+        @Override
+        public Object execute(Object left, Object right) {
+            return Interpreter.binaryOperation(expr.operator, left, right);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Specializations for two numbers
+
+    static final class AddDoubles extends BinaryNode {
+        AddDoubles(BinaryExpr expr) {
+            super(expr);
+        }
+
+        @Override
+        public Object execute(Object left, Object right) {
+            if(left instanceof Double l && right instanceof Double r) return l + r;
+            return generalize(left, right);
+        }
+    }
+
+    static final class SubtractDoubles extends BinaryNode {
+        SubtractDoubles(BinaryExpr expr) {
+            super(expr);
+        }
+
+        @Override
+        public Object execute(Object left, Object right) {
+            if(left instanceof Double l && right instanceof Double r) return l - r;
+            return generalize(left, right);
+        }
+    }
+
+    static final class MultiplyDoubles extends BinaryNode {
+        MultiplyDoubles(BinaryExpr expr) {
+            super(expr);
+        }
+
+        @Override
+        public Object execute(Object left, Object right) {
+            if(left instanceof Double l && right instanceof Double r) return l * r;
+            return generalize(left, right);
+        }
+    }
+
+    static final class DivideDoubles extends BinaryNode {
+        DivideDoubles(BinaryExpr expr) {
+            super(expr);
+        }
+
+        @Override
+        public Object execute(Object left, Object right) {
+            if(left instanceof Double l && right instanceof Double r) return l / r;
+            return generalize(left, right);
+        }
+    }
+
+    static final class ModuloDoubles extends BinaryNode {
+        ModuloDoubles(BinaryExpr expr) {
+            super(expr);
+        }
+
+        @Override
+        public Object execute(Object left, Object right) {
+            if(left instanceof Double l && right instanceof Double r) return Interpreter.modulo(l, r);
+            return generalize(left, right);
+        }
+    }
+
+    static final class LessDoubles extends BinaryNode {
+        LessDoubles(BinaryExpr expr) {
+            super(expr);
+        }
+
+        @Override
+        public Object execute(Object left, Object right) {
+            if(left instanceof Double l && right instanceof Double r) return l < r;
+            return generalize(left, right);
+        }
+    }
+
+    static final class LessEqualDoubles extends BinaryNode {
+        LessEqualDoubles(BinaryExpr expr) {
+            super(expr);
+        }
+
+        @Override
+        public Object execute(Object left, Object right) {
+            if(left instanceof Double l && right instanceof Double r) return l <= r;
+            return generalize(left, right);
+        }
+    }
+
+    static final class GreaterDoubles extends BinaryNode {
+        GreaterDoubles(BinaryExpr expr) {
+            super(expr);
+        }
+
+        @Override
+        public Object execute(Object left, Object right) {
+            if(left instanceof Double l && right instanceof Double r) return l > r;
+            return generalize(left, right);
+        }
+    }
+
+    static final class GreaterEqualDoubles extends BinaryNode {
+        GreaterEqualDoubles(BinaryExpr expr) {
+            super(expr);
+        }
+
+        @Override
+        public Object execute(Object left, Object right) {
+            if(left instanceof Double l && right instanceof Double r) return l >= r;
+            return generalize(left, right);
+        }
+    }
+
+    // Equality follows Double.equals(), like the Interpreter, so NaN == NaN and 0 != -0
+    static final class EqualDoubles extends BinaryNode {
+        EqualDoubles(BinaryExpr expr) {
+            super(expr);
+        }
+
+        @Override
+        public Object execute(Object left, Object right) {
+            if(left instanceof Double l && right instanceof Double r) {
+                return Double.doubleToLongBits(l) == Double.doubleToLongBits(r);
+            }
+            return generalize(left, right);
+        }
+    }
+
+    static final class NotEqualDoubles extends BinaryNode {
+        NotEqualDoubles(BinaryExpr expr) {
+            super(expr);
+        }
+
+        @Override
+        public Object execute(Object left, Object right) {
+            if(left instanceof Double l && right instanceof Double r) {
+                return Double.doubleToLongBits(l) != Double.doubleToLongBits(r);
+            }
+            return generalize(left, right);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Specializations for two strings
+
+    static final class ConcatStrings extends BinaryNode {
+        ConcatStrings(BinaryExpr expr) {
+            super(expr);
+        }
+
+        @Override
+        public Object execute(Object left, Object right) {
+            if(left instanceof CharSequence l && right instanceof CharSequence r) return Rope.concat(l, r);
+            return generalize(left, right);
+        }
+    }
+
+    static final class EqualStrings extends BinaryNode {
+        EqualStrings(BinaryExpr expr) {
+            super(expr);
+        }
+
+        @Override
+        public Object execute(Object left, Object right) {
+            if(left instanceof CharSequence && right instanceof CharSequence) return Rope.flatten(left).equals(Rope.flatten(right));
+            return generalize(left, right);
+        }
+    }
+
+    static final class NotEqualStrings extends BinaryNode {
+        NotEqualStrings(BinaryExpr expr) {
+            super(expr);
+        }
+
+        @Override
+        public Object execute(Object left, Object right) {
+            if(left instanceof CharSequence && right instanceof CharSequence) return !Rope.flatten(left).equals(Rope.flatten(right));
+            return generalize(left, right);
+        }
+    }
+}
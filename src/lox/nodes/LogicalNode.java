@@ -0,0 +1,90 @@
+package lox.nodes;
+
+import lox.Interpreter;
+import lox.expr.LogicalExpr;
+
+import static lox.tokens.TokenType.OR;
+
+/**
+ * Executable node for a LogicalExpr, which decides whether the expression short-circuits
+ * once the left operand has been evaluated. It specializes on a boolean left operand,
+ * which is the common case in conditions, in the same way as BinaryNode does.
+ */
+public abstract class LogicalNode {
+    protected final LogicalExpr expr;
+
+    protected LogicalNode(LogicalExpr expr) {
+        this.expr = expr;
+    }
+
+    /** Returns true if the left operand is the result, without evaluating the right one */
+    public abstract boolean shortCircuits(Object left);
+
+    protected LogicalNode replace(LogicalNode node) {
+        expr.logicalNode = node;
+        return node;
+    }
+
+    // Called by specialized nodes when their guard fails
+    protected boolean generalize(Object left) {
+        return replace(new Generic(expr)).shortCircuits(left);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    public static final class Uninitialized extends LogicalNode {
+        public Uninitialized(LogicalExpr expr) {
+            super(expr);
+        }
+
+        @Override
+        public boolean shortCircuits(Object left) {
+            LogicalNode node;
+            if(left instanceof Boolean) {
+                node = expr.operator.getType() == OR ? new OrBoolean(expr) : new AndBoolean(expr);
+            } else {
+                node = new Generic(expr);
+            }
+            return replace(node).shortCircuits(left);
+        }
+    }
+
+    public static final class Generic extends LogicalNode {
+        private final boolean isOr;
+
+        public Generic(LogicalExpr expr) {
+            super(expr);
+            this.isOr = expr.operator.getType() == OR;
+        }
+
+        // Short-circuit if left is true and it's an OR, or if it's false and it's an AND
+        @Override
+        public boolean shortCircuits(Object left) {
+            return Interpreter.isTruthy(left) == isOr;
+        }
+    }
+
+    static final class OrBoolean extends LogicalNode {
+        OrBoolean(LogicalExpr expr) {
+            super(expr);
+        }
+
+        @Override
+        public boolean shortCircuits(Object left) {
+            if(left instanceof Boolean l) return l;
+            return generalize(left);
+        }
+    }
+
+    static final class AndBoolean extends LogicalNode {
+        AndBoolean(LogicalExpr expr) {
+            super(expr);
+        }
+
+        @Override
+        public boolean shortCircuits(Object left) {
+            if(left instanceof Boolean l) return !l;
+            return generalize(left);
+        }
+    }
+}
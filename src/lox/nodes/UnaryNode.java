@@ -0,0 +1,85 @@
+package lox.nodes;
+
+import lox.Interpreter;
+import lox.expr.UnaryExpr;
+
+/**
+ * Executable node for a UnaryExpr, which specializes itself on the type of its operand
+ * in the same way as BinaryNode does.
+ */
+public abstract class UnaryNode {
+    protected final UnaryExpr expr;
+
+    protected UnaryNode(UnaryExpr expr) {
+        this.expr = expr;
+    }
+
+    /** Computes the result of the operator for the already evaluated operand */
+    public abstract Object execute(Object right);
+
+    protected UnaryNode replace(UnaryNode node) {
+        expr.node = node;
+        return node;
+    }
+
+    // Called by specialized nodes when their guard fails
+    protected Object generalize(Object right) {
+        return replace(new Generic(expr)).execute(right);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    public static final class Uninitialized extends UnaryNode {
+        public Uninitialized(UnaryExpr expr) {
+            super(expr);
+        }
+
+        @Override
+        public Object execute(Object right) {
+            return replace(specialize(right)).execute(right);
+        }
+
+        private UnaryNode specialize(Object right) {
+            return switch(expr.operator.getType()) {
+                case MINUS -> right instanceof Double ? new NegateDouble(expr) : new Generic(expr);
+                case NOT -> right instanceof Boolean ? new NotBoolean(expr) : new Generic(expr);
+                default -> new Generic(expr);
+            };
+        }
+    }
+
+    public static final class Generic extends UnaryNode {
+        public Generic(UnaryExpr expr) {
+            super(expr);
+        }
+
+        @Override
+        public Object execute(Object right) {
+            return Interpreter.unaryOperation(expr.operator, right);
+        }
+    }
+
+    static final class NegateDouble extends UnaryNode {
+        NegateDouble(UnaryExpr expr) {
+            super(expr);
+        }
+
+        @Override
+        public Object execute(Object right) {
+            if(right instanceof Double r) return -r;
+            return generalize(right);
+        }
+    }
+
+    static final class NotBoolean extends UnaryNode {
+        NotBoolean(UnaryExpr expr) {
+            super(expr);
+        }
+
+        @Override
+        public Object execute(Object right) {
+            if(right instanceof Boolean r) return !r;
+            return generalize(right);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package lox.opt;
+
+import lox.decl.FunctionDecl;
+import lox.decl.StatementDecl;
+import lox.expr.*;
+import lox.stmt.ReturnStmt;
+import lox.tokens.Symbol;
+import lox.visitors.ExpressionVisitor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Decides which calls the Optimizer can replace with the body of the function being called.
+ *
+ * Only global functions whose body is a single "return" of an expression are inlined, as long as
+ * said expression is small enough, doesn't assign any variable, and doesn't refer to the function
+ * itself. A call is inlined if the function has been declared before it, it has as many arguments
+ * as parameters, and every argument is a literal or a local variable, which can be read in place
+ * of the parameter without changing when or how many times anything is evaluated. Local variables
+ * are only passed that way to bodies that don't make any calls, since a call in the body could run a
+ * closure that assigns the variable before it's read, when it should have been read before the call.
+ * Since the global function may be rebound at runtime, the inlined body is guarded by a check
+ * that the callee is still the same function (see InlinedCallExpr).
+ */
+public class Inliner {
+
+    // Maximum number of nodes in the body of a function that can be inlined
+    private final int budget;
+    // Global functions that can be inlined, by name
+    private final Map<Symbol, FunctionDecl> candidates = new HashMap<>();
+    private final List<String> report = new ArrayList<>();
+
+    public Inliner(int budget) {
+        this.budget = budget;
+    }
+
+    /** Messages describing the calls that have been inlined so far */
+    public List<String> getReport() {
+        return report;
+    }
+
+    /**
+     * Registers a global declaration once it's been optimized. A function becomes a candidate
+     * for inlining if its body allows it, and any other declaration with the same name stops
+     * the previous one from being inlined from here on.
+     */
+    public void declareGlobal(Symbol name, FunctionDecl function) {
+        candidates.remove(name);
+        if(function == null || function.body.decls.size() != 1) {
+            return;
+        }
+
+        if(function.body.decls.get(0) instanceof StatementDecl stmtDecl
+                && stmtDecl.stmt instanceof ReturnStmt returnStmt
+                && returnStmt.value != null) {
+            var check = new Substitution(function, null);
+            returnStmt.value.accept(check);
+            if(check.inlinable && check.size <= budget) {
+                candidates.put(name, function);
+            }
+        }
+    }
+
+    /**
+     * Tries to inline a call whose arguments have already been optimized.
+     * It must be possible to tell which names are local variables at the call site, to make sure
+     * that none of them shadows a global variable that the function body uses.
+     * Returns the inlined call, or null if this call can't be inlined.
+     */
+    public InlinedCallExpr inline(CallExpr call, Predicate<Symbol> isLocalName) {
+        if(!(call.callee instanceof VariableExpr callee) || callee.depth >= 0) {
+            return null;
+        }
+
+        var name = callee.identifier.getSymbol();
+        var function = candidates.get(name);
+        if(function == null || isLocalName.test(name) || function.parameters.size() != call.args.size()) {
+            return null;
+        }
+
+        for(Expression arg : call.args) {
+            if(!isTrivial(arg)) {
+                return null;
+            }
+        }
+
+        var substitution = new Substitution(function, call.args);
+        var returned = ((ReturnStmt) ((StatementDecl) function.body.decls.get(0)).stmt).value;
+        var body = returned.accept(substitution);
+        if(substitution.hasCalls && call.args.stream().anyMatch(VariableExpr.class::isInstance)) {
+            return null;
+        }
+        for(Symbol global : substitution.globals) {
+            if(isLocalName.test(global)) {
+                return null;
+            }
+        }
+
+        report.add("[Line " + call.closingParens.getLine() + "] Inlined call to '" + name + "'");
+        return new InlinedCallExpr(call, function, body);
+    }
+
+    // Arguments that can be evaluated any number of times, at any point, with the same result and no errors
+    private static boolean isTrivial(Expression arg) {
+        return arg instanceof LiteralExpr
+                || arg instanceof CounterExpr
+                || arg instanceof VariableExpr varExpr && varExpr.depth >= 0;
+    }
+
+    /**
+     * Copies the expression returned by a function, replacing the reads of its parameters
+     * with copies of the corresponding arguments. While doing so, it measures the expression
+     * and checks whether it can be inlined at all. If no arguments are provided, parameters
+     * are left as they are, which is useful to just perform the checks.
+     */
+    private static class Substitution implements ExpressionVisitor<Expression> {
+        private final FunctionDecl function;
+        private final List<Expression> args;
+
+        int size = 0;
+        boolean inlinable = true;
+        // Whether the expression calls any function, which may assign the local variables passed as arguments
+        boolean hasCalls = false;
+        // Global variables read by the function, which must still be global at the call site
+        final List<Symbol> globals = new ArrayList<>();
+
+        Substitution(FunctionDecl function, List<Expression> args) {
+            this.function = function;
+            this.args = args;
+        }
+
+        @Override
+        public Expression visitBinaryExpr(BinaryExpr binaryExpr) {
+            size++;
+            return new BinaryExpr(binaryExpr.leftSide.accept(this), binaryExpr.operator, binaryExpr.rightSide.accept(this));
+        }
+
+        @Override
+        public Expression visitLiteralExpr(LiteralExpr literalExpr) {
+            size++;
+            return new LiteralExpr(literalExpr.literal);
+        }
+
+        @Override
+        public Expression visitLogicalExpr(LogicalExpr logicalExpr) {
+            size++;
+            return new LogicalExpr(logicalExpr.leftSide.accept(this), logicalExpr.operator, logicalExpr.rightSide.accept(this));
+        }
+
+        @Override
+        public Expression visitUnaryExpr(UnaryExpr unaryExpr) {
+            size++;
+            return new UnaryExpr(unaryExpr.operator, unaryExpr.rightSide.accept(this));
+        }
+
+        @Override
+        public Expression visitGrouping(GroupExpr groupExpr) {
+            return groupExpr.expr.accept(this);
+        }
+
+        @Override
+        public Expression visitVariableExpr(VariableExpr varExpr) {
+            size++;
+            var name = varExpr.identifier.getSymbol();
+
+            // Parameters are the only locals of the function, which always occupy its first slots
+            if(varExpr.depth >= 0) {
+                return args == null ? varExpr : copyArgument(args.get(varExpr.slot));
+            }
+
+            if(name == function.identifier.getSymbol()) {
+                // Recursive functions can't be inlined
+                inlinable = false;
+            }
+            globals.add(name);
+            return new VariableExpr(varExpr.identifier);
+        }
+
+        @Override
+        public Expression visitAssignmentExpr(AssignmentExpr assignExpr) {
+            // Assigning a parameter would assign the argument instead, and assigning a global
+            // would make the function depend on mutable state, so neither is inlined
+            inlinable = false;
+            return new AssignmentExpr(assignExpr.target, assignExpr.rightSide.accept(this));
+        }
+
+        @Override
+        public Expression visitCallExpr(CallExpr callExpr) {
+            size++;
+            hasCalls = true;
+            var callee = callExpr.callee.accept(this);
+            var callArgs = new ArrayList<Expression>(callExpr.args.size());
+            for(Expression arg : callExpr.args) {
+                callArgs.add(arg.accept(this));
+            }
+            return new CallExpr(callee, callArgs, callExpr.closingParens);
+        }
+
+        @Override
+        public Expression visitCounterExpr(CounterExpr counterExpr) {
+            // Unreachable, counted loops can't be inside a function that only returns an expression
+            throw new IllegalStateException("Counter outside of its loop: " + counterExpr.identifier.getLexeme());
+        }
+
+        @Override
+        public Expression visitInlinedCallExpr(InlinedCallExpr inlinedCallExpr) {
+            var call = (CallExpr) inlinedCallExpr.call.accept(this);
+            return new InlinedCallExpr(call, inlinedCallExpr.function, inlinedCallExpr.body.accept(this));
+        }
+
+        // The copy goes in the same scope as the argument, so a local variable keeps its location
+        private static Expression copyArgument(Expression arg) {
+            if(arg instanceof LiteralExpr literal) {
+                return new LiteralExpr(literal.literal);
+            } else if(arg instanceof CounterExpr counter) {
+                return new CounterExpr(counter.identifier, counter.counter);
+            }
+
+            var varExpr = (VariableExpr) arg;
+            var copy = new VariableExpr(varExpr.identifier);
+            copy.depth = varExpr.depth;
+            copy.slot = varExpr.slot;
+            copy.declaration = varExpr.declaration;
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,428 @@
+package lox.opt;
+
+import lox.Interpreter;
+import lox.LoopCounter;
+import lox.RuntimeError;
+import lox.decl.Declaration;
+import lox.decl.FunctionDecl;
+import lox.decl.StatementDecl;
+import lox.decl.VariableDecl;
+import lox.expr.*;
+import lox.stmt.*;
+import lox.tokens.Symbol;
+import lox.tokens.Token;
+import lox.tokens.TokenType;
+import lox.visitors.DeclarationVisitor;
+import lox.visitors.ExpressionVisitor;
+import lox.visitors.StatementVisitor;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+
+import static lox.tokens.TokenType.*;
+
+/**
+ * Rewrites an already analyzed tree into an equivalent one that does less work at runtime:
+ * - Operators whose operands are literals are folded into the literal they evaluate to.
+ * - Local variables that are initialized with a literal and never reassigned are replaced by it.
+ * - Logical operators with a literal left operand are replaced by the operand that they pick.
+ * - If and while statements with a literal condition lose the branches that can't run.
+ * - For loops that count over a number are turned into CountedLoopStmts.
+ * - Calls to small global functions are inlined, as decided by the Inliner.
+ *
+ * Operations are folded with the same code that the Interpreter uses, and operations that
+ * would fail are left as they are, so that they still raise the same error at runtime.
+ * Nodes are rebuilt rather than modified, so the result must be analyzed again before running it.
+ * Visiting a statement returns null when it can be removed altogether.
+ */
+public class Optimizer implements ExpressionVisitor<Expression>, StatementVisitor<Statement>, DeclarationVisitor<Declaration> {
+
+    // Literal values of the local variables that are known to never change
+    private final Map<VariableDecl, Object> constants = new IdentityHashMap<>();
+    // Counters of the variables of the counted loops, which replace reads of said variables
+    private final Map<VariableDecl, LoopCounter> counters = new IdentityHashMap<>();
+    // Names of the local variables declared in each of the enclosing scopes, innermost last
+    private final Stack<Set<Symbol>> scopes = new Stack<>();
+    private final Inliner inliner;
+
+    public Optimizer(Inliner inliner) {
+        this.inliner = inliner;
+    }
+
+    public List<Declaration> optimize(List<Declaration> decls) {
+        var result = new ArrayList<Declaration>();
+        for(Declaration decl : decls) {
+            var optimized = optimize(decl);
+            if(optimized != null) {
+                result.add(optimized);
+            }
+        }
+        return result;
+    }
+
+    private Declaration optimize(Declaration decl) {
+        return decl.accept(this);
+    }
+
+    private Statement optimize(Statement stmt) {
+        return stmt.accept(this);
+    }
+
+    private Expression optimize(Expression expr) {
+        return expr.accept(this);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Declaration visitors
+
+    @Override
+    public Declaration visitVariableDecl(VariableDecl decl) {
+        var value = decl.value == null ? null : optimize(decl.value);
+        declared(decl.identifier.getSymbol(), decl.slot, null);
+
+        if(decl.slot >= 0 && decl.assignments == 0 && value instanceof LiteralExpr literal) {
+            constants.put(decl, literal.literal);
+        }
+
+        return value == decl.value ? decl : new VariableDecl(decl.identifier, value);
+    }
+
+    @Override
+    public Declaration visitStatementDecl(StatementDecl decl) {
+        var stmt = optimize(decl.stmt);
+        if(stmt == null) {
+            return null;
+        }
+        return stmt == decl.stmt ? decl : new StatementDecl(stmt);
+    }
+
+    @Override
+    public Declaration visitFunctionDecl(FunctionDecl decl) {
+        var name = decl.identifier.getSymbol();
+        if(decl.slot >= 0) {
+            // The function can refer to itself, so its name is visible already
+            declared(name, decl.slot, null);
+        }
+
+        scopes.push(new HashSet<>());
+        for(Token param : decl.parameters) {
+            scopes.peek().add(param.getSymbol());
+        }
+        var body = optimizeBlock(decl.body);
+        scopes.pop();
+
+        var result = body == decl.body ? decl : new FunctionDecl(decl.identifier, decl.parameters, body);
+        if(decl.slot < 0) {
+            declared(name, decl.slot, result);
+        }
+        return result;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Statement visitors
+
+    @Override
+    public Statement visitBlock(Block block) {
+        var countedLoop = countedLoop(block);
+        if(countedLoop != null) {
+            return countedLoop;
+        }
+        return optimizeBlock(block);
+    }
+
+    @Override
+    public Statement visitBreakStmt(BreakStmt stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Statement visitReturnStmt(ReturnStmt stmt) {
+        if(stmt.value == null) {
+            return stmt;
+        }
+
+        var value = optimize(stmt.value);
+        return value == stmt.value ? stmt : new ReturnStmt(stmt.keyword, value);
+    }
+
+    @Override
+    public Statement visitIfStmt(IfStmt stmt) {
+        var condition = optimize(stmt.condition);
+        var trueBranch = optimize(stmt.trueBranch);
+        var falseBranch = stmt.falseBranch == null ? null : optimize(stmt.falseBranch);
+
+        // Only the branch that will be taken is kept, which may be none at all
+        if(condition instanceof LiteralExpr literal) {
+            return Interpreter.isTruthy(literal.literal) ? trueBranch : falseBranch;
+        }
+
+        if(condition == stmt.condition && trueBranch == stmt.trueBranch && falseBranch == stmt.falseBranch) {
+            return stmt;
+        }
+        return new IfStmt(condition, orEmpty(trueBranch), falseBranch);
+    }
+
+    @Override
+    public Statement visitWhileStmt(WhileStmt stmt) {
+        var condition = optimize(stmt.condition);
+        if(condition instanceof LiteralExpr literal && !Interpreter.isTruthy(literal.literal)) {
+            return null;
+        }
+
+        var body = optimize(stmt.body);
+        if(condition == stmt.condition && body == stmt.body) {
+            return stmt;
+        }
+        return new WhileStmt(condition, orEmpty(body));
+    }
+
+    @Override
+    public Statement visitCountedLoopStmt(CountedLoopStmt stmt) {
+        var start = optimize(stmt.start);
+        var limit = optimize(stmt.limit);
+        var body = optimize(stmt.body);
+        if(start == stmt.start && limit == stmt.limit && body == stmt.body) {
+            return stmt;
+        }
+        return new CountedLoopStmt(stmt.variable, start, stmt.comparison, limit, stmt.step, orEmpty(body), stmt.counter);
+    }
+
+    @Override
+    public Statement visitExpressionStmt(ExpressionStmt stmt) {
+        var expr = optimize(stmt.expr);
+
+        // A literal on its own doesn't do anything
+        if(expr instanceof LiteralExpr) {
+            return null;
+        }
+        return expr == stmt.expr ? stmt : new ExpressionStmt(expr);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Expression visitors
+
+    @Override
+    public Expression visitBinaryExpr(BinaryExpr binaryExpr) {
+        var left = optimize(binaryExpr.leftSide);
+        var right = optimize(binaryExpr.rightSide);
+
+        if(left instanceof LiteralExpr leftLiteral && right instanceof LiteralExpr rightLiteral) {
+            try {
+                var result = Interpreter.binaryOperation(binaryExpr.operator, leftLiteral.literal, rightLiteral.literal);
+                return new LiteralExpr(result);
+            } catch(RuntimeError error) {
+                // Keep the operation, so that it fails when (and if) it's run
+            }
+        }
+
+        if(left == binaryExpr.leftSide && right == binaryExpr.rightSide) {
+            return binaryExpr;
+        }
+        return new BinaryExpr(left, binaryExpr.operator, right);
+    }
+
+    @Override
+    public Expression visitLiteralExpr(LiteralExpr literalExpr) {
+        return literalExpr;
+    }
+
+    @Override
+    public Expression visitLogicalExpr(LogicalExpr logicalExpr) {
+        var left = optimize(logicalExpr.leftSide);
+        var right = optimize(logicalExpr.rightSide);
+
+        // With a known left operand, it's known whether the operator short-circuits,
+        // in which case the result is the left operand, or the right one otherwise
+        if(left instanceof LiteralExpr literal) {
+            var isOr = logicalExpr.operator.getType() == OR;
+            return Interpreter.isTruthy(literal.literal) == isOr ? left : right;
+        }
+
+        if(left == logicalExpr.leftSide && right == logicalExpr.rightSide) {
+            return logicalExpr;
+        }
+        return new LogicalExpr(left, logicalExpr.operator, right);
+    }
+
+    @Override
+    public Expression visitUnaryExpr(UnaryExpr unaryExpr) {
+        var right = optimize(unaryExpr.rightSide);
+
+        if(right instanceof LiteralExpr literal) {
+            try {
+                return new LiteralExpr(Interpreter.unaryOperation(unaryExpr.operator, literal.literal));
+            } catch(RuntimeError error) {
+                // Keep the operation, so that it fails when (and if) it's run
+            }
+        }
+
+        return right == unaryExpr.rightSide ? unaryExpr : new UnaryExpr(unaryExpr.operator, right);
+    }
+
+    @Override
+    public Expression visitGrouping(GroupExpr groupExpr) {
+        // Groupings only matter for parsing, the tree already reflects them
+        return optimize(groupExpr.expr);
+    }
+
+    @Override
+    public Expression visitVariableExpr(VariableExpr varExpr) {
+        var decl = varExpr.declaration;
+        if(decl != null && constants.containsKey(decl)) {
+            return new LiteralExpr(constants.get(decl));
+        } else if(decl != null && counters.containsKey(decl)) {
+            return new CounterExpr(varExpr.identifier, counters.get(decl));
+        }
+        return varExpr;
+    }
+
+    @Override
+    public Expression visitAssignmentExpr(AssignmentExpr assignExpr) {
+        var value = optimize(assignExpr.rightSide);
+        return value == assignExpr.rightSide ? assignExpr : new AssignmentExpr(assignExpr.target, value);
+    }
+
+    @Override
+    public Expression visitCounterExpr(CounterExpr counterExpr) {
+        return counterExpr;
+    }
+
+    @Override
+    public Expression visitCallExpr(CallExpr callExpr) {
+        var callee = optimize(callExpr.callee);
+        var changed = callee != callExpr.callee;
+
+        var args = new ArrayList<Expression>(callExpr.args.size());
+        for(Expression arg : callExpr.args) {
+            var optimized = optimize(arg);
+            changed |= optimized != arg;
+            args.add(optimized);
+        }
+
+        var call = changed ? new CallExpr(callee, args, callExpr.closingParens) : callExpr;
+        var inlined = inliner.inline(call, this::isLocalName);
+        if(inlined == null) {
+            return call;
+        }
+
+        // With the arguments in place, the inlined body may be simplified further
+        return new InlinedCallExpr(call, inlined.function, optimize(inlined.body));
+    }
+
+    @Override
+    public Expression visitInlinedCallExpr(InlinedCallExpr inlinedCallExpr) {
+        return inlinedCallExpr;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Auxiliary private methods
+
+    private Block optimizeBlock(Block block) {
+        scopes.push(new HashSet<>());
+        var decls = optimize(block.decls);
+        scopes.pop();
+
+        if(decls.equals(block.decls)) {
+            return block;
+        }
+        return new Block(decls);
+    }
+
+    /**
+     * Recognizes the block that the parser produces for a for loop, when it counts over a number:
+     *   { let i = start; while(i < limit) { body; i = i + step; } }
+     * The comparison can be any of < <= > >=, the step must be a number added or subtracted
+     * to the variable, and the variable can't be assigned anywhere else or used by any function.
+     * Returns the equivalent CountedLoopStmt, or null if the block doesn't have this shape.
+     */
+    private CountedLoopStmt countedLoop(Block block) {
+        if(block.decls.size() != 2
+                || !(block.decls.get(0) instanceof VariableDecl variable)
+                || !(block.decls.get(1) instanceof StatementDecl loopDecl)
+                || !(loopDecl.stmt instanceof WhileStmt loop)) {
+            return null;
+        }
+
+        if(variable.value == null || variable.assignments != 1 || variable.isCaptured) {
+            return null;
+        }
+
+        // The condition compares the variable against the limit
+        if(!(loop.condition instanceof BinaryExpr condition)
+                || !isComparison(condition.operator.getType())
+                || !isRead(condition.leftSide, variable)) {
+            return null;
+        }
+
+        // The body of the while is the body of the for, which doesn't declare anything, and the update
+        if(!(loop.body instanceof Block whileBody)
+                || whileBody.decls.size() != 2
+                || !(whileBody.decls.get(0) instanceof StatementDecl bodyDecl)
+                || !(whileBody.decls.get(1) instanceof StatementDecl updateDecl)
+                || !(updateDecl.stmt instanceof ExpressionStmt update)) {
+            return null;
+        }
+
+        // Since the variable is assigned only once, this is the assignment if the target matches
+        if(!(update.expr instanceof AssignmentExpr assignment)
+                || assignment.target.getSymbol() != variable.identifier.getSymbol()
+                || !(assignment.rightSide instanceof BinaryExpr increment)
+                || !isRead(increment.leftSide, variable)
+                || !(increment.rightSide instanceof LiteralExpr stepLiteral)
+                || !(stepLiteral.literal instanceof Double step)) {
+            return null;
+        }
+
+        var opType = increment.operator.getType();
+        if(opType != PLUS && opType != MINUS) {
+            return null;
+        }
+
+        var start = optimize(variable.value);
+        var counter = new LoopCounter();
+        counters.put(variable, counter);
+
+        var limit = optimize(condition.rightSide);
+        var body = orEmpty(optimize(bodyDecl.stmt));
+        var signedStep = opType == PLUS ? step : -step;
+
+        return new CountedLoopStmt(variable.identifier, start, condition.operator, limit, signedStep, body, counter);
+    }
+
+    private static boolean isComparison(TokenType type) {
+        return type == LESS || type == LESS_EQUAL || type == GREATER || type == GREATER_EQUAL;
+    }
+
+    private static boolean isRead(Expression expr, VariableDecl variable) {
+        return expr instanceof VariableExpr varExpr && varExpr.declaration == variable;
+    }
+
+    // Keeps track of a new declaration: local names are recorded in the current scope,
+    // while global ones are handed to the Inliner, along with the function if it's one
+    private void declared(Symbol name, int slot, FunctionDecl function) {
+        if(slot >= 0) {
+            scopes.peek().add(name);
+        } else {
+            inliner.declareGlobal(name, function);
+        }
+    }
+
+    private boolean isLocalName(Symbol name) {
+        for(Set<Symbol> scope : scopes) {
+            if(scope.contains(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Statements that were removed become empty blocks where a statement is still required
+    private static Statement orEmpty(Statement stmt) {
+        return stmt != null ? stmt : new Block(new ArrayList<>());
+    }
+}
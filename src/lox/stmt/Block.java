@@ -8,6 +8,11 @@ import java.util.List;
 public class Block extends Statement {
 
     public final List<Declaration> decls;
+    // Number of local variable slots needed by this block, set by the Analyzer.
+    // For function bodies, this also accounts for the parameters.
+    public int scopeSize = 0;
+    // Whether the block declares anything, and thus needs its own environment. Set by the Analyzer.
+    public boolean hasScope = true;
 
     public Block(List<Declaration> decls) {
         this.decls = decls;
@@ -0,0 +1,43 @@
+package lox.stmt;
+
+import lox.LoopCounter;
+import lox.expr.Expression;
+import lox.jit.CompiledLoop;
+import lox.tokens.Token;
+import lox.visitors.StatementVisitor;
+
+/**
+ * A loop over a number that starts at a given value and changes by a fixed step
+ * after every iteration, for as long as it compares favorably against a limit.
+ * It's created by the Optimizer from for loops such as "for(let i = 0; i < n; i += 1)",
+ * when the variable isn't assigned anywhere else and no function uses it.
+ */
+public class CountedLoopStmt extends Statement {
+    public final Token variable;
+    public final Expression start;
+    // The comparison operator, which also reports errors if the start or the limit aren't numbers
+    public final Token comparison;
+    public final Expression limit;
+    public final double step;
+    public final Statement body;
+    public final LoopCounter counter;
+    // Number of iterations run by the interpreter, and the code the loop was compiled to once hot
+    public int backEdges = 0;
+    public CompiledLoop compiled;
+
+    public CountedLoopStmt(Token variable, Expression start, Token comparison, Expression limit,
+                           double step, Statement body, LoopCounter counter) {
+        this.variable = variable;
+        this.start = start;
+        this.comparison = comparison;
+        this.limit = limit;
+        this.step = step;
+        this.body = body;
+        this.counter = counter;
+    }
+
+    @Override
+    public <T> T accept(StatementVisitor<T> visitor) {
+        return visitor.visitCountedLoopStmt(this);
+    }
+}
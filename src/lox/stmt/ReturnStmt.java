@@ -8,6 +8,9 @@ public class ReturnStmt extends Statement {
 
     public final Token keyword;
     public final Expression value;
+    // Whether the returned value is a call, which can then be made in place of this function's own call.
+    // Set by the Analyzer.
+    public boolean isTailCall = false;
 
     public ReturnStmt(Token keyword, Expression value) {
         this.keyword = keyword;
@@ -1,11 +1,15 @@
 package lox.stmt;
 
 import lox.expr.Expression;
+import lox.jit.CompiledLoop;
 import lox.visitors.StatementVisitor;
 
 public class WhileStmt extends Statement {
     public final Expression condition;
     public final Statement body;
+    // Number of iterations run by the interpreter, and the code the loop was compiled to once hot
+    public int backEdges = 0;
+    public CompiledLoop compiled;
 
     public WhileStmt(Expression condition, Statement body) {
         this.condition = condition;
@@ -0,0 +1,125 @@
+package lox.tokens;
+
+/**
+ * An interned name. The scanner interns every identifier and keyword it finds, so each name
+ * is a single Symbol no matter how many times it appears in the source, and name lookups
+ * can compare them by identity, with a hash that is computed only once. Symbols are never
+ * removed, and they're shared by every piece of code that is run, like the globals.
+ *
+ * Modules are scanned in parallel, so the table is shared by several threads. Names that are
+ * already in it are found without locking: symbols only have final fields, so any thread that
+ * sees one in the table sees all of it. Only adding a new name takes the lock, which looks for
+ * it again in case another thread has just added it.
+ */
+public final class Symbol {
+    // Replaced by a bigger copy when it grows, which is only published once it's complete
+    private static volatile Symbol[] table = new Symbol[1024];
+    // Only used while holding the lock
+    private static int count = 0;
+
+    public final String name;
+    // Unique number of the symbol, in order of creation
+    public final int id;
+    private final int hash;
+
+    private Symbol(String name, int id, int hash) {
+        this.name = name;
+        this.id = id;
+        this.hash = hash;
+    }
+
+    public static Symbol of(String name) {
+        return intern(name.toCharArray(), 0, name.length());
+    }
+
+    /**
+     * Interns the name found in a range of the source code. The name is
+     * only copied out of the source the first time it's seen.
+     */
+    public static Symbol intern(char[] source, int start, int end) {
+        // Same hash as String.hashCode()
+        var hash = 0;
+        for(int i = start; i < end; i++) {
+            hash = 31 * hash + source[i];
+        }
+
+        var symbol = find(table, hash, source, start, end);
+        return symbol != null ? symbol : add(hash, source, start, end);
+    }
+
+    // Looks for the name in the table, returning null if it's not there. Without the lock,
+    // a symbol that another thread is adding may not be found yet, but that's all that can happen.
+    private static Symbol find(Symbol[] table, int hash, char[] source, int start, int end) {
+        var length = end - start;
+        var mask = table.length - 1;
+        var index = spread(hash) & mask;
+        for(var symbol = table[index]; symbol != null; symbol = table[index]) {
+            if(symbol.hash == hash && symbol.name.length() == length && matches(symbol.name, source, start)) {
+                return symbol;
+            }
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    private static synchronized Symbol add(int hash, char[] source, int start, int end) {
+        var current = table;
+        var existing = find(current, hash, source, start, end);
+        if(existing != null) {
+            return existing;
+        }
+
+        var mask = current.length - 1;
+        var index = spread(hash) & mask;
+        while(current[index] != null) {
+            index = (index + 1) & mask;
+        }
+
+        var symbol = new Symbol(new String(source, start, end - start), count++, hash);
+        current[index] = symbol;
+        if(count * 2 > current.length) {
+            grow(current);
+        }
+        return symbol;
+    }
+
+    // The table uses open addressing with linear probing, and is kept at most half full
+    private static void grow(Symbol[] current) {
+        var newTable = new Symbol[current.length * 2];
+        var mask = newTable.length - 1;
+        for(Symbol symbol : current) {
+            if(symbol != null) {
+                var index = spread(symbol.hash) & mask;
+                while(newTable[index] != null) {
+                    index = (index + 1) & mask;
+                }
+                newTable[index] = symbol;
+            }
+        }
+        table = newTable;
+    }
+
+    private static boolean matches(String name, char[] source, int start) {
+        for(int i = 0; i < name.length(); i++) {
+            if(name.charAt(i) != source[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    // Symbols are unique, so they're compared by identity, which is what equals() does by default
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
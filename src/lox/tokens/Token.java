@@ -5,6 +5,8 @@ public class Token {
     private String lexeme;
     private Object literal;
     private int line;
+    // Interned lexeme of identifiers and keywords, as found by the scanner
+    private Symbol symbol;
 
     public Token(TokenType type, String lexeme, Object literal, int line) {
         this.type = type;
@@ -13,11 +15,9 @@ public class Token {
         this.line = line;
     }
 
-    public Token(TokenType type) {
-        this.type = type;
-        this.lexeme = null;
-        this.literal = null;
-        this.line = 0;
+    public Token(TokenType type, Symbol symbol, int line) {
+        this(type, symbol.name, null, line);
+        this.symbol = symbol;
     }
 
     public TokenType getType() {
@@ -36,6 +36,14 @@ public class Token {
         return this.lexeme;
     }
 
+    /** The interned lexeme, which is only looked up here for tokens that weren't created by the scanner */
+    public Symbol getSymbol() {
+        if(this.symbol == null) {
+            this.symbol = Symbol.of(this.lexeme);
+        }
+        return this.symbol;
+    }
+
     public String toString() {
         return String.format("[%s] %s %s (line %s)", this.type, this.lexeme, this.literal, this.line);
     }
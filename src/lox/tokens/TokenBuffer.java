@@ -0,0 +1,119 @@
+package lox.tokens;
+
+import java.util.Arrays;
+
+/**
+ * The tokens found by the scanner, stored as parallel arrays instead of one object per token:
+ * the type, where it starts in the source, how long it is, and the line where it is. Only
+ * identifiers and literals have a value, which is their Symbol, String or Double, so most
+ * tokens allocate nothing at all. The parser asks for a Token object only for the tokens
+ * that it keeps in the tree, or that it reports errors at.
+ *
+ * When the source is streamed, the buffer is filled as the parser moves forward,
+ * and the tokens that the parser is done with can be discarded along with their source.
+ */
+public class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final TokenScanner scanner;
+    private byte[] types = new byte[256];
+    private int[] starts = new int[256];
+    private int[] lengths = new int[256];
+    private int[] lines = new int[256];
+    private Object[] values = new Object[256];
+    private int size = 0;
+    // Whether the EOF token has been added
+    private boolean complete = false;
+
+    TokenBuffer(TokenScanner scanner) {
+        this.scanner = scanner;
+    }
+
+    void add(TokenType type, int start, int end, int line, Object value) {
+        if(size == types.length) {
+            var capacity = size * 2;
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        types[size] = (byte) type.ordinal();
+        starts[size] = start;
+        lengths[size] = end - start;
+        lines[size] = line;
+        values[size] = value;
+        size++;
+        complete = type == TokenType.EOF;
+    }
+
+    /** Makes sure that the token at the given position has been scanned, if the end hasn't been reached before it */
+    public void ensureScanned(int index) {
+        while(index >= size && !complete) {
+            scanner.scanMore();
+        }
+    }
+
+    /**
+     * Drops the tokens before the given position, which become unavailable along with their
+     * source. The remaining tokens are moved to the front, so the given position becomes 0.
+     */
+    public void discardBefore(int index) {
+        var remaining = size - index;
+        System.arraycopy(types, index, types, 0, remaining);
+        System.arraycopy(starts, index, starts, 0, remaining);
+        System.arraycopy(lengths, index, lengths, 0, remaining);
+        System.arraycopy(lines, index, lines, 0, remaining);
+        System.arraycopy(values, index, values, 0, remaining);
+        Arrays.fill(values, remaining, size, null);
+        size = remaining;
+
+        if(size > 0) {
+            scanner.release(starts[0]);
+        }
+    }
+
+    // The source before the tokens has been dropped by the scanner, and the rest moved back
+    void rebase(int shift) {
+        for(int i = 0; i < size; i++) {
+            starts[i] -= shift;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public TokenType type(int index) {
+        return TYPES[types[index]];
+    }
+
+    /** The ordinal of the type of a token, to be used as an index in tables */
+    public int typeOrdinal(int index) {
+        return types[index];
+    }
+
+    public int line(int index) {
+        return lines[index];
+    }
+
+    /** The Symbol of an identifier or keyword, or the value of a literal */
+    public Object value(int index) {
+        return values[index];
+    }
+
+    /** Builds a Token object for the token at the given position, with its lexeme copied from the source */
+    public Token token(int index) {
+        var type = type(index);
+        var value = values[index];
+        if(value instanceof Symbol symbol) {
+            return new Token(type, symbol, lines[index]);
+        } else if(type == TokenType.EOF) {
+            return new Token(type, null, null, lines[index]);
+        }
+
+        var start = starts[index];
+        return new Token(type, scanner.text(start, start + lengths[index]), value, lines[index]);
+    }
+}
@@ -2,37 +2,94 @@ package lox.tokens;
 
 import static lox.tokens.TokenType.*;
 import lox.Lox;
-import java.util.ArrayList;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 public class TokenScanner {
-    private static final Map<String, TokenType> keywords;
-    private final String source;
-    private final ArrayList<Token> tokens;
+    private static final Map<Symbol, TokenType> keywords;
+    // Characters read from a stream at once, and tokens scanned at once when they're requested
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int BATCH_SIZE = 256;
+
+    // Where the rest of the source is read from, or null if it's all in memory already
+    private final Reader reader;
+    // The source that has been read and not dropped yet, up to the given length
+    private char[] source;
+    private int length;
+    // The source before this position belongs to tokens that have been discarded
+    private int keepFrom;
+    private final TokenBuffer tokens;
     private int start;
     private int current;
     private int line;
 
     public TokenScanner(String source) {
+        this(null, source.toCharArray());
+    }
+
+    /** A scanner that reads the source from a channel as it goes, see streamTokens() */
+    public TokenScanner(ReadableByteChannel channel, Charset charset) {
+        this(Channels.newReader(channel, charset), new char[CHUNK_SIZE]);
+        this.length = 0;
+    }
+
+    private TokenScanner(Reader reader, char[] source) {
+        this.reader = reader;
         this.source = source;
-        this.tokens = new ArrayList<>();
+        this.length = source.length;
+        this.tokens = new TokenBuffer(this);
         start = 0;
         current = 0;
         line = 1;
     }
 
-    public List<Token> scanTokens() {
+    public TokenBuffer scanTokens() {
+        scan(Integer.MAX_VALUE);
+        return tokens;
+    }
+
+    /**
+     * Returns the buffer without scanning anything yet. The tokens are scanned as they're
+     * requested, so a stream is only read as far as the parser has gone.
+     */
+    public TokenBuffer streamTokens() {
+        return tokens;
+    }
+
+    void scanMore() {
+        scan(tokens.size() + BATCH_SIZE);
+    }
+
+    // Scans until the buffer has the given number of tokens, or the EOF has been added
+    private void scan(int targetSize) {
         while(!isAtEnd()) {
+            if(tokens.size() >= targetSize) {
+                return;
+            }
+
             // The next token begins here
             start = current;
             scanNextToken();
         }
 
-        var eofToken = new Token(EOF, null, null, line);
-        tokens.add(eofToken);
-        return tokens;
+        tokens.add(EOF, current, current, line, null);
+    }
+
+    // The source before the given position is not needed anymore
+    void release(int position) {
+        keepFrom = position;
+    }
+
+    String text(int start, int end) {
+        return new String(source, start, end - start);
     }
 
     private void scanNextToken() {
@@ -100,10 +157,10 @@ public class TokenScanner {
             consumeNextChar();
         }
 
-        var identifier = source.substring(start, current);
+        var symbol = Symbol.intern(source, start, current);
         // Is the identifier a language keyword?
-        var tokenType = keywords.getOrDefault(identifier, IDENTIFIER);
-        addToken(tokenType, identifier);
+        var tokenType = keywords.getOrDefault(symbol, IDENTIFIER);
+        tokens.add(tokenType, start, current, line, symbol);
     }
 
     // Parses a literal number matching the pattern \d+(\.\d+)?
@@ -121,7 +178,7 @@ public class TokenScanner {
         }
 
         // Parse the resulting floating number
-        var number = Double.parseDouble(source.substring(start, current));
+        var number = Double.parseDouble(text(start, current));
         addToken(NUMBER, number);
     }
 
@@ -163,23 +220,66 @@ public class TokenScanner {
     }
 
     private boolean isAtEnd() {
-        return this.current >= this.source.length();
+        return !isAvailable(1);
+    }
+
+    // Whether there are at least the given number of characters left, reading more if needed
+    private boolean isAvailable(int count) {
+        while(current + count > length) {
+            if(!readMore()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Reads the next chunk of the stream, if any. The source that isn't needed anymore,
+    // up to the start of the token being scanned, is dropped first to make room for it.
+    private boolean readMore() {
+        if(reader == null) {
+            return false;
+        }
+
+        var dropped = Math.min(keepFrom, start);
+        if(dropped > 0) {
+            System.arraycopy(source, dropped, source, 0, length - dropped);
+            length -= dropped;
+            keepFrom -= dropped;
+            start -= dropped;
+            current -= dropped;
+            tokens.rebase(dropped);
+        }
+
+        if(length == source.length) {
+            source = Arrays.copyOf(source, source.length * 2);
+        }
+
+        try {
+            var read = reader.read(source, length, source.length - length);
+            if(read < 0) {
+                return false;
+            }
+            length += read;
+            return true;
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     private char consumeNextChar() {
-        return this.source.charAt(this.current++);
+        return this.source[this.current++];
     }
 
     private char peekNextChar() {
-        return isAtEnd() ? '\0' : source.charAt(current);
+        return isAtEnd() ? '\0' : source[current];
     }
 
     private char peekTwoForward() {
-        return current > source.length() - 2 ? '\0' : source.charAt(current + 1);
+        return isAvailable(2) ? source[current + 1] : '\0';
     }
 
     private boolean match(char expected) {
-        if(isAtEnd() || source.charAt(current) != expected) {
+        if(isAtEnd() || source[current] != expected) {
             return false;
         }
 
@@ -191,10 +291,9 @@ public class TokenScanner {
         addToken(type, null);
     }
 
+    // Only the position of the token is stored, its lexeme stays in the source
     private void addToken(TokenType type, Object literal) {
-        var text = source.substring(start, current);
-        var token = new Token(type, text, literal, line);
-        tokens.add(token);
+        tokens.add(type, start, current, line, literal);
     }
 
     private TokenType tokenIfNextEquals(TokenType ifAlone, TokenType ifEquals) {
@@ -228,21 +327,22 @@ public class TokenScanner {
 
     static {
         keywords = new HashMap<>();
-        keywords.put("if", IF);
-        keywords.put("else", ELSE);
-        keywords.put("or", OR);
-        keywords.put("and", AND);
-        keywords.put("for", FOR);
-        keywords.put("while", WHILE);
-        keywords.put("null", NULL);
-        keywords.put("class", CLASS);
-        keywords.put("fn", FN);
-        keywords.put("let", LET);
-        keywords.put("true", TRUE);
-        keywords.put("false", FALSE);
-        keywords.put("return", RETURN);
-        keywords.put("this", THIS);
-        keywords.put("super", SUPER);
-        keywords.put("break", BREAK);
+        keywords.put(Symbol.of("if"), IF);
+        keywords.put(Symbol.of("else"), ELSE);
+        keywords.put(Symbol.of("or"), OR);
+        keywords.put(Symbol.of("and"), AND);
+        keywords.put(Symbol.of("for"), FOR);
+        keywords.put(Symbol.of("while"), WHILE);
+        keywords.put(Symbol.of("null"), NULL);
+        keywords.put(Symbol.of("class"), CLASS);
+        keywords.put(Symbol.of("fn"), FN);
+        keywords.put(Symbol.of("let"), LET);
+        keywords.put(Symbol.of("true"), TRUE);
+        keywords.put(Symbol.of("false"), FALSE);
+        keywords.put(Symbol.of("return"), RETURN);
+        keywords.put(Symbol.of("this"), THIS);
+        keywords.put(Symbol.of("super"), SUPER);
+        keywords.put(Symbol.of("break"), BREAK);
+        keywords.put(Symbol.of("import"), IMPORT);
     }
 }
@@ -15,7 +15,7 @@ public enum TokenType {
 
     // Keywords
     IF, ELSE, OR, AND, FOR, WHILE, NULL, CLASS, FN, LET,
-    TRUE, FALSE, RETURN, THIS, SUPER, BREAK,
+    TRUE, FALSE, RETURN, THIS, SUPER, BREAK, IMPORT,
 
     // Assorted literals
     IDENTIFIER, STRING, NUMBER,
@@ -1,6 +1,7 @@
 package lox.visitors;
 
 import lox.decl.FunctionDecl;
+import lox.decl.ImportDecl;
 import lox.decl.StatementDecl;
 import lox.decl.VariableDecl;
 
@@ -8,4 +9,10 @@ public interface DeclarationVisitor<T> {
     T visitVariableDecl(VariableDecl decl);
     T visitStatementDecl(StatementDecl decl);
     T visitFunctionDecl(FunctionDecl decl);
+
+    // Top-level imports are replaced by the declarations of their modules before the program
+    // is run, so only the front end gets to see them
+    default T visitImportDecl(ImportDecl decl) {
+        throw new IllegalStateException("Unresolved import of " + decl.path.getLexeme());
+    }
 }
@@ -11,4 +11,6 @@ public interface ExpressionVisitor<T> {
     T visitVariableExpr(VariableExpr varExpr);
     T visitAssignmentExpr(AssignmentExpr assignExpr);
     T visitCallExpr(CallExpr callExpr);
+    T visitCounterExpr(CounterExpr counterExpr);
+    T visitInlinedCallExpr(InlinedCallExpr inlinedCallExpr);
 }
@@ -9,5 +9,6 @@ public interface StatementVisitor<T> {
     T visitExpressionStmt(ExpressionStmt stmt);
     T visitIfStmt(IfStmt stmt);
     T visitWhileStmt(WhileStmt stmt);
+    T visitCountedLoopStmt(CountedLoopStmt stmt);
     T visitBlock(Block block);
 }
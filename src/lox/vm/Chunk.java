@@ -0,0 +1,83 @@
+package lox.vm;
+
+import lox.tokens.Symbol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Growable buffer of bytecode used by the Compiler while emitting a function.
+ * Every byte is tagged with the source line it comes from, so that runtime errors
+ * can be reported on the same line as in the tree-walking interpreter.
+ */
+class Chunk {
+    private byte[] code = new byte[64];
+    private int[] lines = new int[64];
+    private int count = 0;
+
+    private final List<Object> constants = new ArrayList<>();
+    // Numbers and strings are deduplicated in the constant pool
+    private final Map<Object, Integer> constantIndexes = new HashMap<>();
+
+    int size() {
+        return count;
+    }
+
+    void write(int b, int line) {
+        if(count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = (byte) b;
+        lines[count] = line;
+        count++;
+    }
+
+    void writeShort(int value, int line) {
+        write((value >> 8) & 0xff, line);
+        write(value & 0xff, line);
+    }
+
+    byte byteAt(int offset) {
+        return code[offset];
+    }
+
+    void patchByte(int offset, int value) {
+        code[offset] = (byte) value;
+    }
+
+    void patchShort(int offset, int value) {
+        code[offset] = (byte) ((value >> 8) & 0xff);
+        code[offset + 1] = (byte) (value & 0xff);
+    }
+
+    int addConstant(Object value) {
+        if(value instanceof Double || value instanceof String || value instanceof Symbol) {
+            var existing = constantIndexes.get(value);
+            if(existing != null) return existing;
+            constantIndexes.put(value, constants.size());
+        }
+
+        constants.add(value);
+        return constants.size() - 1;
+    }
+
+    int constantCount() {
+        return constants.size();
+    }
+
+    byte[] getCode() {
+        return Arrays.copyOf(code, count);
+    }
+
+    int[] getLines() {
+        return Arrays.copyOf(lines, count);
+    }
+
+    Object[] getConstants() {
+        return constants.toArray();
+    }
+}
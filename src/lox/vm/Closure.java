@@ -0,0 +1,17 @@
+package lox.vm;
+
+/** A function value in the VM: a FunctionProto paired with the variables it captured */
+public class Closure {
+    final FunctionProto proto;
+    final Upvalue[] upvalues;
+
+    Closure(FunctionProto proto) {
+        this.proto = proto;
+        this.upvalues = new Upvalue[proto.upvalueCount];
+    }
+
+    @Override
+    public String toString() {
+        return proto.toString();
+    }
+}
@@ -0,0 +1,710 @@
+package lox.vm;
+
+import lox.Lox;
+import lox.decl.Declaration;
+import lox.decl.FunctionDecl;
+import lox.decl.StatementDecl;
+import lox.decl.VariableDecl;
+import lox.expr.*;
+import lox.stmt.*;
+import lox.tokens.Symbol;
+import lox.tokens.Token;
+import lox.tokens.TokenType;
+import lox.visitors.DeclarationVisitor;
+import lox.visitors.ExpressionVisitor;
+import lox.visitors.StatementVisitor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static lox.vm.OpCode.*;
+
+/**
+ * Compiles a resolved program into bytecode for the VM. The program must have gone
+ * through the Analyzer beforehand: the compiler relies on it to tell apart local and
+ * global variables, and to have rejected invalid returns and breaks.
+ *
+ * Local variables live in stack slots relative to the frame of the function they belong to,
+ * slot 0 being the function itself. Locals of enclosing functions are accessed via upvalues.
+ */
+public class Compiler implements DeclarationVisitor<Void>, StatementVisitor<Void>, ExpressionVisitor<Void> {
+
+    private static class Local {
+        final Symbol name;
+        final int depth;
+        boolean isCaptured = false;
+
+        Local(Symbol name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    // Upvalue descriptor: whether it captures a local of the enclosing function
+    // or one of the enclosing function's own upvalues, and its index there
+    private record UpvalueRef(boolean isLocal, int index) { }
+
+    // Keeps track of the jumps emitted by break statements inside a loop,
+    // to be patched once the end of the loop is known
+    private static class Loop {
+        final int scopeDepth;
+        final List<Integer> breakJumps = new ArrayList<>();
+
+        Loop(int scopeDepth) {
+            this.scopeDepth = scopeDepth;
+        }
+    }
+
+    // Compilation state of the function being compiled
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final FunctionDecl decl;
+        final String name;
+        final int arity;
+        final Chunk chunk = new Chunk();
+        final List<Local> locals = new ArrayList<>();
+        final List<UpvalueRef> upvalues = new ArrayList<>();
+        final List<Loop> loops = new ArrayList<>();
+        int scopeDepth = 0;
+        int stackHeight = 0;
+        int maxStack = 0;
+
+        FunctionState(FunctionState enclosing, FunctionDecl decl, String name, int arity) {
+            this.enclosing = enclosing;
+            this.decl = decl;
+            this.name = name;
+            this.arity = arity;
+            // Slot 0 holds the function being called
+            this.locals.add(new Local(null, 0));
+            adjustStack(1);
+        }
+
+        void adjustStack(int delta) {
+            stackHeight += delta;
+            maxStack = Math.max(maxStack, stackHeight);
+        }
+
+        FunctionProto toProto() {
+            return new FunctionProto(decl, name, arity, chunk, upvalues.size(), maxStack);
+        }
+    }
+
+    private static final int MAX_SHORT = 0xffff;
+    private static final int MAX_ARGS = 0xff;
+
+    private FunctionState current;
+    // Line of the last token seen, used for instructions that can't fail at runtime
+    private int line = 1;
+
+    /**
+     * Compiles a list of top-level declarations into the prototype of a script function,
+     * which takes no arguments and returns null.
+     * Compilation errors are reported through Lox.error().
+     */
+    public FunctionProto compile(List<Declaration> decls) {
+        this.current = new FunctionState(null, null, "script", 0);
+
+        for(Declaration decl : decls) {
+            compile(decl);
+        }
+
+        emitReturnNull();
+        return this.current.toProto();
+    }
+
+    private void compile(Declaration decl) {
+        decl.accept(this);
+    }
+
+    private void compile(Statement stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expression expr) {
+        expr.accept(this);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Declaration visitors
+
+    @Override
+    public Void visitVariableDecl(VariableDecl decl) {
+        this.line = decl.identifier.getLine();
+        if(decl.value != null) {
+            compile(decl.value);
+        } else {
+            emitOp(NULL, 1);
+        }
+
+        if(decl.slot >= 0) {
+            // The value is already on top of the stack, which is the slot of the new local
+            declareLocal(decl.identifier);
+        } else {
+            emitOp(DEFINE_GLOBAL, -1);
+            emitShort(makeConstant(decl.identifier.getSymbol()));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionDecl(FunctionDecl decl) {
+        this.line = decl.identifier.getLine();
+
+        // Local functions are declared before their body is compiled so that they can call themselves
+        var redeclaredSlot = decl.slot >= 0 ? redeclaredSlot(decl.identifier.getSymbol()) : -1;
+        if(decl.slot >= 0 && redeclaredSlot < 0) {
+            addLocal(decl.identifier);
+        }
+
+        compileFunction(decl);
+
+        if(redeclaredSlot >= 0) {
+            emitOp(SET_LOCAL_POP, -1);
+            emitShort(redeclaredSlot);
+        } else if(decl.slot < 0) {
+            emitOp(DEFINE_GLOBAL, -1);
+            emitShort(makeConstant(decl.identifier.getSymbol()));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitStatementDecl(StatementDecl decl) {
+        compile(decl.stmt);
+        return null;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Statement visitors
+
+    @Override
+    public Void visitBlock(Block block) {
+        startScope();
+        for(Declaration decl : block.decls) {
+            compile(decl);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(BreakStmt stmt) {
+        this.line = stmt.keyword.getLine();
+        var loop = current.loops.get(current.loops.size() - 1);
+
+        // Discard the locals declared inside the loop, but keep them in the compiler
+        // state since the code following the break is still in their scope
+        var previousHeight = current.stackHeight;
+        popLocalsAbove(loop.scopeDepth);
+        emitOp(JUMP, 0);
+        loop.breakJumps.add(emitPlaceholder());
+        current.stackHeight = previousHeight;
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(ReturnStmt stmt) {
+        this.line = stmt.keyword.getLine();
+        if(stmt.value != null) {
+            compile(stmt.value);
+        } else {
+            emitOp(NULL, 1);
+        }
+        emitOp(RETURN, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(ExpressionStmt stmt) {
+        compile(stmt.expr);
+
+        // If the statement is an assignment, fuse the POP into the assignment instruction
+        var code = current.chunk;
+        var lastOp = code.size() - 3;
+        var fused = lastOp < 0 || !(stmt.expr instanceof AssignmentExpr) ? -1 : switch(code.byteAt(lastOp)) {
+            case SET_LOCAL -> SET_LOCAL_POP;
+            case SET_GLOBAL -> SET_GLOBAL_POP;
+            case SET_UPVALUE -> SET_UPVALUE_POP;
+            default -> -1;
+        };
+
+        if(fused >= 0) {
+            code.patchByte(lastOp, fused);
+            current.adjustStack(-1);
+        } else {
+            emitOp(POP, -1);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(IfStmt stmt) {
+        compile(stmt.condition);
+        emitOp(POP_JUMP_IF_FALSE, -1);
+        var elseJump = emitPlaceholder();
+        compile(stmt.trueBranch);
+
+        if(stmt.falseBranch != null) {
+            emitOp(JUMP, 0);
+            var endJump = emitPlaceholder();
+            patchJump(elseJump);
+            compile(stmt.falseBranch);
+            patchJump(endJump);
+        } else {
+            patchJump(elseJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(WhileStmt stmt) {
+        var loopStart = current.chunk.size();
+        compile(stmt.condition);
+        emitOp(POP_JUMP_IF_FALSE, -1);
+        var exitJump = emitPlaceholder();
+
+        var loop = new Loop(current.scopeDepth);
+        current.loops.add(loop);
+        compile(stmt.body);
+        current.loops.remove(current.loops.size() - 1);
+        emitLoop(loopStart);
+
+        patchJump(exitJump);
+        for(int breakJump : loop.breakJumps) {
+            patchJump(breakJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCountedLoopStmt(CountedLoopStmt stmt) {
+        // The counter is a local that the body reads but never assigns, so it stays
+        // unboxed in its slot, and is only tested and stepped by the loop instructions
+        startScope();
+        compile(stmt.start);
+        addLocal(stmt.variable);
+        var slot = resolveLocal(current, stmt.variable.getSymbol());
+
+        var loopStart = current.chunk.size();
+        compile(stmt.limit);
+        this.line = stmt.comparison.getLine();
+        emitOp(LOOP_TEST, -1);
+        emitByte(comparisonOp(stmt.comparison));
+        emitShort(slot);
+        var exitJump = emitPlaceholder();
+
+        var loop = new Loop(current.scopeDepth);
+        current.loops.add(loop);
+        compile(stmt.body);
+        current.loops.remove(current.loops.size() - 1);
+
+        emitOp(LOOP_STEP, 0);
+        emitShort(slot);
+        emitShort(makeConstant(stmt.step));
+        emitLoopOffset(loopStart);
+
+        patchJump(exitJump);
+        for(int breakJump : loop.breakJumps) {
+            patchJump(breakJump);
+        }
+        endScope();
+        return null;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Expression visitors
+
+    @Override
+    public Void visitBinaryExpr(BinaryExpr binaryExpr) {
+        compile(binaryExpr.leftSide);
+        compile(binaryExpr.rightSide);
+        emitBinaryOp(binaryExpr.operator);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(LiteralExpr literalExpr) {
+        var literal = literalExpr.literal;
+        if(literal == null) {
+            emitOp(NULL, 1);
+        } else if(literal instanceof Boolean bool) {
+            emitOp(bool ? TRUE : FALSE, 1);
+        } else if(literal instanceof Double) {
+            emitOp(CONSTANT_NUMBER, 1);
+            emitShort(makeConstant(literal));
+        } else {
+            emitOp(CONSTANT, 1);
+            emitShort(makeConstant(literal));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(LogicalExpr logicalExpr) {
+        // The left operand is the result if it short-circuits,
+        // otherwise it's discarded and the right operand is the result
+        compile(logicalExpr.leftSide);
+        var jumpOp = logicalExpr.operator.getType() == TokenType.OR ? JUMP_IF_TRUE : JUMP_IF_FALSE;
+        emitOp(jumpOp, 0);
+        var endJump = emitPlaceholder();
+        emitOp(POP, -1);
+        compile(logicalExpr.rightSide);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(UnaryExpr unaryExpr) {
+        compile(unaryExpr.rightSide);
+        this.line = unaryExpr.operator.getLine();
+        switch(unaryExpr.operator.getType()) {
+            case MINUS -> emitOp(NEGATE, 0);
+            case NOT -> emitOp(NOT, 0);
+            default -> throw new IllegalStateException("Unsupported unary operator: " + unaryExpr.operator);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGrouping(GroupExpr groupExpr) {
+        compile(groupExpr.expr);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(VariableExpr varExpr) {
+        emitGet(varExpr.identifier, varExpr.depth);
+        return null;
+    }
+
+    @Override
+    public Void visitInlinedCallExpr(InlinedCallExpr inlinedCallExpr) {
+        // Like in the Interpreter, the inlined body only runs while the callee is still the
+        // function that was inlined, otherwise the callee stays on the stack for the regular call
+        var call = inlinedCallExpr.call;
+        if(call.args.size() > MAX_ARGS) {
+            Lox.error(call.closingParens, "Can't have more than " + MAX_ARGS + " arguments.");
+            return null;
+        }
+
+        compile(call.callee);
+        this.line = call.closingParens.getLine();
+        emitOp(INLINED_CALL, -1);
+        emitShort(makeConstant(inlinedCallExpr.function));
+        var callJump = emitPlaceholder();
+
+        compile(inlinedCallExpr.body);
+        emitOp(JUMP, 0);
+        var endJump = emitPlaceholder();
+
+        // The result of the body takes the place of the callee, so both paths have the same height
+        patchJump(callJump);
+        emitCall(call);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitCounterExpr(CounterExpr counterExpr) {
+        // The counter is a local of the loop, see visitCountedLoopStmt()
+        emitGet(counterExpr.identifier, 0);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignmentExpr(AssignmentExpr assignExpr) {
+        compile(assignExpr.rightSide);
+        emitSet(assignExpr.target, assignExpr.depth);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(CallExpr callExpr) {
+        var nArgs = callExpr.args.size();
+        if(nArgs > MAX_ARGS) {
+            Lox.error(callExpr.closingParens, "Can't have more than " + MAX_ARGS + " arguments.");
+            return null;
+        }
+
+        compile(callExpr.callee);
+        emitCall(callExpr);
+        return null;
+    }
+
+    // Emits the instructions of a call whose callee is already on the stack
+    private void emitCall(CallExpr callExpr) {
+        var nArgs = callExpr.args.size();
+
+        // The callee is validated before evaluating the arguments, like the Interpreter does
+        this.line = callExpr.closingParens.getLine();
+        emitOp(CHECK_CALL, 0);
+        emitByte(nArgs);
+
+        for(Expression arg : callExpr.args) {
+            compile(arg);
+        }
+
+        this.line = callExpr.closingParens.getLine();
+        emitOp(CALL, -nArgs);
+        emitByte(nArgs);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Functions and variables
+
+    private void compileFunction(FunctionDecl decl) {
+        var name = decl.identifier.getLexeme();
+        var state = new FunctionState(this.current, decl, name, decl.parameters.size());
+        this.current = state;
+
+        // Parameters and body share the same scope, like in the Analyzer
+        startScope();
+        for(Token param : decl.parameters) {
+            addLocal(param);
+            current.adjustStack(1);
+        }
+        for(Declaration bodyDecl : decl.body.decls) {
+            compile(bodyDecl);
+        }
+        emitReturnNull();
+
+        // No need to end the scope, returning discards the whole frame
+        this.current = state.enclosing;
+        this.line = decl.identifier.getLine();
+
+        emitOp(CLOSURE, 1);
+        emitShort(makeConstant(state.toProto()));
+        for(UpvalueRef upvalue : state.upvalues) {
+            emitByte(upvalue.isLocal() ? 1 : 0);
+            emitShort(upvalue.index());
+        }
+    }
+
+    private void emitGet(Token identifier, int depth) {
+        this.line = identifier.getLine();
+        if(depth < 0) {
+            emitOp(GET_GLOBAL, 1);
+            emitShort(makeConstant(new GlobalRef(identifier)));
+            return;
+        }
+
+        var slot = resolveLocal(current, identifier.getSymbol());
+        if(slot >= 0) {
+            emitOp(GET_LOCAL, 1);
+            emitShort(slot);
+        } else {
+            emitOp(GET_UPVALUE, 1);
+            emitShort(resolveUpvalueOrFail(identifier));
+        }
+    }
+
+    private void emitSet(Token identifier, int depth) {
+        this.line = identifier.getLine();
+        if(depth < 0) {
+            emitOp(SET_GLOBAL, 0);
+            emitShort(makeConstant(new GlobalRef(identifier)));
+            return;
+        }
+
+        var slot = resolveLocal(current, identifier.getSymbol());
+        if(slot >= 0) {
+            emitOp(SET_LOCAL, 0);
+            emitShort(slot);
+        } else {
+            emitOp(SET_UPVALUE, 0);
+            emitShort(resolveUpvalueOrFail(identifier));
+        }
+    }
+
+    // Like the Analyzer, re-declaring a name in the same scope assigns the value on top of the stack
+    // to the local that already has it, instead of keeping it in a new slot
+    private void declareLocal(Token identifier) {
+        var slot = redeclaredSlot(identifier.getSymbol());
+        if(slot >= 0) {
+            emitOp(SET_LOCAL_POP, -1);
+            emitShort(slot);
+        } else {
+            addLocal(identifier);
+        }
+    }
+
+    // Slot of the local with the given name declared in the current scope, or -1 if there's none
+    private int redeclaredSlot(Symbol name) {
+        var locals = current.locals;
+        for(int i = locals.size() - 1; i > 0 && locals.get(i).depth == current.scopeDepth; i--) {
+            if(locals.get(i).name == name) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void addLocal(Token identifier) {
+        if(current.locals.size() > MAX_SHORT) {
+            Lox.error(identifier, "Too many local variables in function.");
+            return;
+        }
+        current.locals.add(new Local(identifier.getSymbol(), current.scopeDepth));
+    }
+
+    // Finds the slot of a local variable in the given function, searching from the
+    // innermost scope outwards. Returns -1 if it's not a local of that function.
+    private static int resolveLocal(FunctionState state, Symbol name) {
+        for(int i = state.locals.size() - 1; i > 0; i--) {
+            if(state.locals.get(i).name == name) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Finds or creates the upvalue that captures the given variable from an enclosing function.
+    // Returns -1 if no enclosing function declares it.
+    private static int resolveUpvalue(FunctionState state, Symbol name) {
+        if(state.enclosing == null) return -1;
+
+        var local = resolveLocal(state.enclosing, name);
+        if(local >= 0) {
+            state.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(state, true, local);
+        }
+
+        var upvalue = resolveUpvalue(state.enclosing, name);
+        if(upvalue >= 0) {
+            return addUpvalue(state, false, upvalue);
+        }
+
+        return -1;
+    }
+
+    private static int addUpvalue(FunctionState state, boolean isLocal, int index) {
+        var ref = new UpvalueRef(isLocal, index);
+        var existing = state.upvalues.indexOf(ref);
+        if(existing >= 0) return existing;
+
+        state.upvalues.add(ref);
+        return state.upvalues.size() - 1;
+    }
+
+    private int resolveUpvalueOrFail(Token identifier) {
+        var upvalue = resolveUpvalue(current, identifier.getSymbol());
+        if(upvalue < 0) {
+            // Unreachable, the Analyzer resolved this variable as a local one
+            throw new IllegalStateException("Unresolved local variable: " + identifier.getLexeme());
+        }
+        return upvalue;
+    }
+
+    private void startScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope() {
+        popLocalsAbove(current.scopeDepth - 1);
+        current.scopeDepth--;
+
+        var locals = current.locals;
+        while(locals.size() > 1 && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            locals.remove(locals.size() - 1);
+        }
+    }
+
+    // Emits the instructions to discard the locals declared deeper than the given scope depth,
+    // closing the ones that have been captured by a closure
+    private void popLocalsAbove(int scopeDepth) {
+        var locals = current.locals;
+        for(int i = locals.size() - 1; i > 0 && locals.get(i).depth > scopeDepth; i--) {
+            emitOp(locals.get(i).isCaptured ? CLOSE_UPVALUE : POP, -1);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Aux emission methods
+
+    private void emitBinaryOp(Token operator) {
+        this.line = operator.getLine();
+        var op = switch(operator.getType()) {
+            case EQUAL_EQUAL -> EQUAL;
+            case NOT_EQUAL -> NOT_EQUAL;
+            case PLUS -> ADD;
+            case MINUS -> SUBTRACT;
+            case ASTERISK -> MULTIPLY;
+            case SLASH -> DIVIDE;
+            case PERCENT -> MODULO;
+            case LESS -> LESS;
+            case LESS_EQUAL -> LESS_EQUAL;
+            case GREATER -> GREATER;
+            case GREATER_EQUAL -> GREATER_EQUAL;
+            default -> throw new IllegalStateException("Unsupported binary operator: " + operator);
+        };
+        emitOp(op, -1);
+    }
+
+    // Opcode of the comparison of a counted loop, which is an operand of LOOP_TEST
+    private static byte comparisonOp(Token comparison) {
+        return switch(comparison.getType()) {
+            case LESS -> LESS;
+            case LESS_EQUAL -> LESS_EQUAL;
+            case GREATER -> GREATER;
+            case GREATER_EQUAL -> GREATER_EQUAL;
+            default -> throw new IllegalStateException("Unsupported comparison operator: " + comparison);
+        };
+    }
+
+    private void emitReturnNull() {
+        emitOp(NULL, 1);
+        emitOp(RETURN, -1);
+    }
+
+    // Emits an opcode, along with its effect on the height of the stack
+    private void emitOp(byte op, int stackEffect) {
+        current.chunk.write(op, line);
+        current.adjustStack(stackEffect);
+    }
+
+    private void emitByte(int b) {
+        current.chunk.write(b, line);
+    }
+
+    private void emitShort(int value) {
+        current.chunk.writeShort(value, line);
+    }
+
+    // Emits a placeholder for a forward jump offset, and returns its position to patch it later
+    private int emitPlaceholder() {
+        emitShort(MAX_SHORT);
+        return current.chunk.size() - 2;
+    }
+
+    private void patchJump(int offset) {
+        var jump = current.chunk.size() - offset - 2;
+        if(jump > MAX_SHORT) {
+            Lox.error(line, "Too much code to jump over.");
+            return;
+        }
+        current.chunk.patchShort(offset, jump);
+    }
+
+    private void emitLoop(int loopStart) {
+        emitOp(LOOP, 0);
+        emitLoopOffset(loopStart);
+    }
+
+    // Emits the offset of a jump backwards to the given position, as the last operand of an instruction
+    private void emitLoopOffset(int loopStart) {
+        var offset = current.chunk.size() - loopStart + 2;
+        if(offset > MAX_SHORT) {
+            Lox.error(line, "Loop body too large.");
+        }
+        emitShort(offset);
+    }
+
+    private int makeConstant(Object value) {
+        var index = current.chunk.addConstant(value);
+        if(index > MAX_SHORT) {
+            Lox.error(line, "Too many constants in one function.");
+            return 0;
+        }
+        return index;
+    }
+}
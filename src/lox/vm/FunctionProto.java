@@ -0,0 +1,46 @@
+package lox.vm;
+
+import lox.decl.FunctionDecl;
+
+/**
+ * The compiled form of a function: its bytecode and constant pool, along with the
+ * information the VM needs to set up a call frame for it. Prototypes are immutable,
+ * and a Closure is created from one every time the function declaration is executed.
+ */
+public class FunctionProto {
+    // Declaration the function was compiled from, which is null for scripts
+    final FunctionDecl decl;
+    final String name;
+    final int arity;
+    final byte[] code;
+    final int[] lines;
+    final Object[] constants;
+    // Values of the numbers in the constant pool, at the same indexes, for CONSTANT_NUMBER
+    final double[] numbers;
+    final int upvalueCount;
+    // Maximum number of stack slots used by a frame of this function, including
+    // the callee and its arguments
+    final int maxStack;
+
+    FunctionProto(FunctionDecl decl, String name, int arity, Chunk chunk, int upvalueCount, int maxStack) {
+        this.decl = decl;
+        this.name = name;
+        this.arity = arity;
+        this.code = chunk.getCode();
+        this.lines = chunk.getLines();
+        this.constants = chunk.getConstants();
+        this.numbers = new double[constants.length];
+        for(int i = 0; i < constants.length; i++) {
+            if(constants[i] instanceof Double number) {
+                numbers[i] = number;
+            }
+        }
+        this.upvalueCount = upvalueCount;
+        this.maxStack = maxStack;
+    }
+
+    @Override
+    public String toString() {
+        return "<fn '" + name + "'>";
+    }
+}
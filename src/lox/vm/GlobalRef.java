@@ -0,0 +1,17 @@
+package lox.vm;
+
+import lox.GlobalCell;
+import lox.tokens.Token;
+
+/**
+ * Constant pool entry for an access to a global variable. It keeps the identifier token
+ * to report undefined variables, and caches the variable's cell after the first lookup.
+ */
+class GlobalRef {
+    final Token identifier;
+    GlobalCell cell;
+
+    GlobalRef(Token identifier) {
+        this.identifier = identifier;
+    }
+}
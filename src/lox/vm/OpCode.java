@@ -0,0 +1,86 @@
+package lox.vm;
+
+/**
+ * Instruction set of the bytecode VM. Each instruction is a single opcode byte,
+ * optionally followed by its operands. Unless stated otherwise, operands are
+ * unsigned 16-bit big-endian integers.
+ */
+public final class OpCode {
+    private OpCode() { }
+
+    // Pushes constants[operand]
+    public static final byte CONSTANT = 0;
+    public static final byte NULL = 1;
+    public static final byte TRUE = 2;
+    public static final byte FALSE = 3;
+    public static final byte POP = 4;
+
+    // Local variables, the operand is the slot relative to the frame base
+    public static final byte GET_LOCAL = 5;
+    public static final byte SET_LOCAL = 6;
+
+    // Global variables, the operand is the index of a GlobalRef in the constant pool
+    public static final byte GET_GLOBAL = 7;
+    public static final byte SET_GLOBAL = 8;
+    public static final byte DEFINE_GLOBAL = 9;
+
+    // Captured variables, the operand is the index in the current closure's upvalues
+    public static final byte GET_UPVALUE = 10;
+    public static final byte SET_UPVALUE = 11;
+
+    // Operators, which pop their operands and push the result
+    public static final byte EQUAL = 12;
+    public static final byte NOT_EQUAL = 13;
+    public static final byte GREATER = 14;
+    public static final byte GREATER_EQUAL = 15;
+    public static final byte LESS = 16;
+    public static final byte LESS_EQUAL = 17;
+    public static final byte ADD = 18;
+    public static final byte SUBTRACT = 19;
+    public static final byte MULTIPLY = 20;
+    public static final byte DIVIDE = 21;
+    public static final byte MODULO = 22;
+    public static final byte NOT = 23;
+    public static final byte NEGATE = 24;
+
+    // Jumps, the operand is an unsigned offset forward (JUMP*) or backwards (LOOP).
+    // JUMP_IF_FALSE and JUMP_IF_TRUE peek at the condition and leave it on the stack,
+    // used by logical operators. POP_JUMP_IF_FALSE discards it, used by statements.
+    public static final byte JUMP = 25;
+    public static final byte JUMP_IF_FALSE = 26;
+    public static final byte JUMP_IF_TRUE = 27;
+    public static final byte POP_JUMP_IF_FALSE = 34;
+    public static final byte LOOP = 28;
+
+    // Calls, with a single-byte operand for the argument count. CHECK_CALL validates
+    // the callee before the arguments are evaluated, and CALL performs the call.
+    public static final byte CHECK_CALL = 29;
+    public static final byte CALL = 30;
+
+    // Creates a closure from the FunctionProto at constants[operand], followed by
+    // an (isLocal byte, index short) pair for each of its upvalues
+    public static final byte CLOSURE = 31;
+    public static final byte CLOSE_UPVALUE = 32;
+    public static final byte RETURN = 33;
+
+    // Assignments used as statements, which discard the assigned value afterwards
+    public static final byte SET_LOCAL_POP = 35;
+    public static final byte SET_GLOBAL_POP = 36;
+    public static final byte SET_UPVALUE_POP = 37;
+
+    // Pushes the number at constants[operand] without boxing it
+    public static final byte CONSTANT_NUMBER = 38;
+
+    // Counted loops, whose counter is a local that only these instructions change.
+    // LOOP_TEST pops the limit and compares the counter against it, with a byte for the comparison
+    // (LESS, LESS_EQUAL, GREATER or GREATER_EQUAL), the slot of the counter, and the offset forward
+    // to jump to if it fails. LOOP_STEP adds the number at constants[second operand] to the counter
+    // in the slot of its first operand, and then jumps backwards by the offset of its third one.
+    public static final byte LOOP_TEST = 39;
+    public static final byte LOOP_STEP = 40;
+
+    // Peeks at the callee of an inlined call. If it's still the function that was inlined, whose
+    // FunctionDecl is at constants[first operand], it's discarded to run the inlined body that follows.
+    // Otherwise it jumps forward by the second operand, to the regular call.
+    public static final byte INLINED_CALL = 41;
+}
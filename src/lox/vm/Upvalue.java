@@ -0,0 +1,19 @@
+package lox.vm;
+
+/**
+ * A variable captured by a closure. While the variable is still alive on the VM stack
+ * the upvalue is open and refers to its stack slot. When the variable goes out of scope,
+ * the upvalue is closed and the value is moved into the upvalue itself.
+ */
+class Upvalue {
+    // Stack slot of the captured variable, or -1 once the upvalue is closed
+    int slot;
+    Object closed;
+    // Next open upvalue in the VM's list, sorted by decreasing slot
+    Upvalue next;
+
+    Upvalue(int slot, Upvalue next) {
+        this.slot = slot;
+        this.next = next;
+    }
+}
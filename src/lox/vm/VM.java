@@ -0,0 +1,614 @@
+package lox.vm;
+
+import lox.Environment;
+import lox.Interpreter;
+import lox.Lox;
+import lox.Rope;
+import lox.RuntimeError;
+import lox.builtins.PrintFunc;
+import lox.builtins.RandomFunc;
+import lox.builtins.StrFunc;
+import lox.builtins.TimeFunc;
+import lox.callables.LoxCallable;
+import lox.tokens.Symbol;
+
+import java.util.Arrays;
+
+import static lox.vm.OpCode.*;
+
+/**
+ * Stack-based virtual machine that runs the bytecode produced by the Compiler.
+ * Values are kept in a single stack shared by all call frames, where each frame starts
+ * at the slot holding the closure being called, followed by its arguments and local
+ * variables. Globals persist across calls to interpret(), like in the Interpreter.
+ *
+ * Numbers are kept unboxed: a slot that holds a number has the UNBOXED marker in the
+ * Object[] stack, and its value at the same index of the double[] one. Values are only
+ * boxed when they leave the stack, such as when they're stored in a global, captured by a
+ * closure that outlives them, or given to a builtin. Boxed numbers that come back, like the
+ * values of globals, are unboxed again, although every instruction still accepts them.
+ */
+public class VM {
+
+    private static final int INITIAL_STACK = 1024;
+    private static final int INITIAL_FRAMES = 64;
+    // Marks the slots whose value is the number at the same index of the numbers stack
+    private static final Object UNBOXED = new Object();
+
+    private final Environment globals = new Environment();
+
+    private Object[] stack = new Object[INITIAL_STACK];
+    private double[] numbers = new double[INITIAL_STACK];
+
+    // Call frames, stored as parallel arrays to avoid allocating a frame object per call
+    private Closure[] frameClosures = new Closure[INITIAL_FRAMES];
+    private int[] frameIps = new int[INITIAL_FRAMES];
+    private int[] frameBases = new int[INITIAL_FRAMES];
+    private int frameCount = 0;
+
+    // Upvalues that still point to a live stack slot, sorted by decreasing slot
+    private Upvalue openUpvalues = null;
+
+    public VM() {
+        globals.declare(Symbol.of("print"), new PrintFunc());
+        globals.declare(Symbol.of("time"), new TimeFunc());
+        globals.declare(Symbol.of("str"), new StrFunc());
+        globals.declare(Symbol.of("random"), new RandomFunc());
+    }
+
+    public void interpret(FunctionProto script) {
+        try {
+            var closure = new Closure(script);
+            pushFrame(closure, 0);
+            stack[0] = closure;
+            run();
+        } catch(RuntimeError error) {
+            Lox.runtimeError(error);
+        } finally {
+            Arrays.fill(stack, null);
+            frameCount = 0;
+            openUpvalues = null;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Dispatch loop
+
+    private void run() {
+        // The state of the current frame is cached in local variables,
+        // and only written back to the frame arrays when a call is made
+        var closure = frameClosures[frameCount - 1];
+        var code = closure.proto.code;
+        var constants = closure.proto.constants;
+        var ip = 0;
+        var base = frameBases[frameCount - 1];
+        var sp = base + 1;
+        var stack = this.stack;
+        var numbers = this.numbers;
+
+        while(true) {
+            switch(code[ip++]) {
+                case CONSTANT -> {
+                    stack[sp++] = constants[readShort(code, ip)];
+                    ip += 2;
+                }
+                case CONSTANT_NUMBER -> {
+                    stack[sp] = UNBOXED;
+                    numbers[sp++] = closure.proto.numbers[readShort(code, ip)];
+                    ip += 2;
+                }
+                case NULL -> stack[sp++] = null;
+                case TRUE -> stack[sp++] = Boolean.TRUE;
+                case FALSE -> stack[sp++] = Boolean.FALSE;
+                case POP -> sp--;
+
+                case GET_LOCAL -> {
+                    var slot = base + readShort(code, ip);
+                    ip += 2;
+                    stack[sp] = stack[slot];
+                    numbers[sp++] = numbers[slot];
+                }
+                case SET_LOCAL -> {
+                    var slot = base + readShort(code, ip);
+                    ip += 2;
+                    stack[slot] = stack[sp - 1];
+                    numbers[slot] = numbers[sp - 1];
+                }
+                case SET_LOCAL_POP -> {
+                    var slot = base + readShort(code, ip);
+                    ip += 2;
+                    sp--;
+                    stack[slot] = stack[sp];
+                    numbers[slot] = numbers[sp];
+                }
+
+                case GET_GLOBAL -> {
+                    var ref = (GlobalRef) constants[readShort(code, ip)];
+                    ip += 2;
+                    if(ref.cell == null) {
+                        ref.cell = globals.getCell(ref.identifier);
+                    }
+                    push(stack, numbers, sp++, ref.cell.value);
+                }
+                case SET_GLOBAL -> {
+                    var ref = (GlobalRef) constants[readShort(code, ip)];
+                    ip += 2;
+                    if(ref.cell == null) {
+                        ref.cell = globals.getCell(ref.identifier);
+                    }
+                    ref.cell.value = valueAt(stack, numbers, sp - 1);
+                }
+                case SET_GLOBAL_POP -> {
+                    var ref = (GlobalRef) constants[readShort(code, ip)];
+                    ip += 2;
+                    if(ref.cell == null) {
+                        ref.cell = globals.getCell(ref.identifier);
+                    }
+                    ref.cell.value = valueAt(stack, numbers, --sp);
+                }
+                case DEFINE_GLOBAL -> {
+                    var name = (Symbol) constants[readShort(code, ip)];
+                    ip += 2;
+                    globals.declare(name, valueAt(stack, numbers, --sp));
+                }
+
+                case GET_UPVALUE -> {
+                    var upvalue = closure.upvalues[readShort(code, ip)];
+                    ip += 2;
+                    if(upvalue.slot >= 0) {
+                        stack[sp] = stack[upvalue.slot];
+                        numbers[sp++] = numbers[upvalue.slot];
+                    } else {
+                        push(stack, numbers, sp++, upvalue.closed);
+                    }
+                }
+                case SET_UPVALUE -> {
+                    var upvalue = closure.upvalues[readShort(code, ip)];
+                    ip += 2;
+                    setUpvalue(upvalue, sp - 1);
+                }
+                case SET_UPVALUE_POP -> {
+                    var upvalue = closure.upvalues[readShort(code, ip)];
+                    ip += 2;
+                    setUpvalue(upvalue, --sp);
+                }
+
+                case EQUAL -> {
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] == UNBOXED && stack[sp] == UNBOXED ?
+                            sameNumber(numbers[sp - 1], numbers[sp]) :
+                            valuesAreEqual(valueAt(stack, numbers, sp - 1), valueAt(stack, numbers, sp));
+                }
+                case NOT_EQUAL -> {
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] == UNBOXED && stack[sp] == UNBOXED ?
+                            !sameNumber(numbers[sp - 1], numbers[sp]) :
+                            !valuesAreEqual(valueAt(stack, numbers, sp - 1), valueAt(stack, numbers, sp));
+                }
+                case ADD -> {
+                    sp--;
+                    if(stack[sp - 1] == UNBOXED && stack[sp] == UNBOXED) {
+                        numbers[sp - 1] += numbers[sp];
+                    } else {
+                        binaryOperation(ADD, sp - 1, lineAt(closure, ip));
+                    }
+                }
+                case SUBTRACT -> {
+                    sp--;
+                    if(stack[sp - 1] == UNBOXED && stack[sp] == UNBOXED) {
+                        numbers[sp - 1] -= numbers[sp];
+                    } else {
+                        binaryOperation(SUBTRACT, sp - 1, lineAt(closure, ip));
+                    }
+                }
+                case MULTIPLY -> {
+                    sp--;
+                    if(stack[sp - 1] == UNBOXED && stack[sp] == UNBOXED) {
+                        numbers[sp - 1] *= numbers[sp];
+                    } else {
+                        binaryOperation(MULTIPLY, sp - 1, lineAt(closure, ip));
+                    }
+                }
+                case DIVIDE -> {
+                    sp--;
+                    if(stack[sp - 1] == UNBOXED && stack[sp] == UNBOXED) {
+                        numbers[sp - 1] /= numbers[sp];
+                    } else {
+                        binaryOperation(DIVIDE, sp - 1, lineAt(closure, ip));
+                    }
+                }
+                case MODULO -> {
+                    sp--;
+                    if(stack[sp - 1] == UNBOXED && stack[sp] == UNBOXED) {
+                        numbers[sp - 1] = Interpreter.modulo(numbers[sp - 1], numbers[sp]);
+                    } else {
+                        binaryOperation(MODULO, sp - 1, lineAt(closure, ip));
+                    }
+                }
+                case LESS -> {
+                    sp--;
+                    if(stack[sp - 1] == UNBOXED && stack[sp] == UNBOXED) {
+                        stack[sp - 1] = numbers[sp - 1] < numbers[sp];
+                    } else {
+                        binaryOperation(LESS, sp - 1, lineAt(closure, ip));
+                    }
+                }
+                case LESS_EQUAL -> {
+                    sp--;
+                    if(stack[sp - 1] == UNBOXED && stack[sp] == UNBOXED) {
+                        stack[sp - 1] = numbers[sp - 1] <= numbers[sp];
+                    } else {
+                        binaryOperation(LESS_EQUAL, sp - 1, lineAt(closure, ip));
+                    }
+                }
+                case GREATER -> {
+                    sp--;
+                    if(stack[sp - 1] == UNBOXED && stack[sp] == UNBOXED) {
+                        stack[sp - 1] = numbers[sp - 1] > numbers[sp];
+                    } else {
+                        binaryOperation(GREATER, sp - 1, lineAt(closure, ip));
+                    }
+                }
+                case GREATER_EQUAL -> {
+                    sp--;
+                    if(stack[sp - 1] == UNBOXED && stack[sp] == UNBOXED) {
+                        stack[sp - 1] = numbers[sp - 1] >= numbers[sp];
+                    } else {
+                        binaryOperation(GREATER_EQUAL, sp - 1, lineAt(closure, ip));
+                    }
+                }
+                case NOT -> stack[sp - 1] = !isTruthy(stack[sp - 1]);
+                case NEGATE -> {
+                    if(stack[sp - 1] == UNBOXED) {
+                        numbers[sp - 1] = -numbers[sp - 1];
+                    } else if(stack[sp - 1] instanceof Double value) {
+                        stack[sp - 1] = UNBOXED;
+                        numbers[sp - 1] = -value;
+                    } else {
+                        throw notNumberError(stack[sp - 1], lineAt(closure, ip));
+                    }
+                }
+
+                case JUMP -> ip += readShort(code, ip) + 2;
+                case JUMP_IF_FALSE -> {
+                    if(isTruthy(stack[sp - 1])) {
+                        ip += 2;
+                    } else {
+                        ip += readShort(code, ip) + 2;
+                    }
+                }
+                case JUMP_IF_TRUE -> {
+                    if(isTruthy(stack[sp - 1])) {
+                        ip += readShort(code, ip) + 2;
+                    } else {
+                        ip += 2;
+                    }
+                }
+                case POP_JUMP_IF_FALSE -> {
+                    if(isTruthy(stack[--sp])) {
+                        ip += 2;
+                    } else {
+                        ip += readShort(code, ip) + 2;
+                    }
+                }
+                case LOOP -> ip -= readShort(code, ip) - 2;
+
+                case LOOP_TEST -> {
+                    var comparison = code[ip];
+                    var slot = base + readShort(code, ip + 1);
+                    ip += 3;
+                    sp--;
+                    var passed = stack[slot] == UNBOXED && stack[sp] == UNBOXED ?
+                            compare(comparison, numbers[slot], numbers[sp]) :
+                            testCounter(comparison, slot, sp, lineAt(closure, ip));
+                    if(passed) {
+                        ip += 2;
+                    } else {
+                        ip += readShort(code, ip) + 2;
+                    }
+                }
+                case LOOP_STEP -> {
+                    // The counter has been unboxed by LOOP_TEST already
+                    var slot = base + readShort(code, ip);
+                    numbers[slot] += closure.proto.numbers[readShort(code, ip + 2)];
+                    ip += 4;
+                    ip -= readShort(code, ip) - 2;
+                }
+
+                case INLINED_CALL -> {
+                    var function = constants[readShort(code, ip)];
+                    ip += 2;
+                    if(stack[sp - 1] instanceof Closure callee && callee.proto.decl == function) {
+                        sp--;
+                        ip += 2;
+                    } else {
+                        ip += readShort(code, ip) + 2;
+                    }
+                }
+
+                case CHECK_CALL -> {
+                    var nArgs = code[ip++] & 0xff;
+                    var callee = stack[sp - 1];
+                    int arity;
+                    if(callee instanceof Closure calleeClosure) {
+                        arity = calleeClosure.proto.arity;
+                    } else if(callee instanceof LoxCallable callable) {
+                        arity = callable.getArity();
+                    } else {
+                        throw new RuntimeError("The object is not callable", lineAt(closure, ip));
+                    }
+
+                    if(arity != nArgs) {
+                        throw new RuntimeError("Expected " + arity + " arguments, got " + nArgs + ".", lineAt(closure, ip));
+                    }
+                }
+                case CALL -> {
+                    var nArgs = code[ip++] & 0xff;
+                    var calleeSlot = sp - nArgs - 1;
+
+                    if(stack[calleeSlot] instanceof Closure calleeClosure) {
+                        // Save the state of the current frame and switch to the new one
+                        frameIps[frameCount - 1] = ip;
+                        pushFrame(calleeClosure, calleeSlot);
+                        stack = this.stack;
+                        numbers = this.numbers;
+
+                        closure = calleeClosure;
+                        code = closure.proto.code;
+                        constants = closure.proto.constants;
+                        ip = 0;
+                        base = calleeSlot;
+                    } else {
+                        var callable = (LoxCallable) stack[calleeSlot];
+                        var result = callNative(callable, calleeSlot + 1, nArgs);
+                        Arrays.fill(stack, calleeSlot + 1, sp, null);
+                        push(stack, numbers, calleeSlot, result);
+                        sp = calleeSlot + 1;
+                    }
+                }
+
+                case CLOSURE -> {
+                    var proto = (FunctionProto) constants[readShort(code, ip)];
+                    ip += 2;
+                    var newClosure = new Closure(proto);
+                    for(int i = 0; i < proto.upvalueCount; i++) {
+                        var isLocal = code[ip] == 1;
+                        var index = readShort(code, ip + 1);
+                        ip += 3;
+                        newClosure.upvalues[i] = isLocal ? captureUpvalue(base + index) : closure.upvalues[index];
+                    }
+                    stack[sp++] = newClosure;
+                }
+                case CLOSE_UPVALUE -> {
+                    closeUpvalues(sp - 1);
+                    sp--;
+                }
+                case RETURN -> {
+                    var result = stack[sp - 1];
+                    var number = numbers[sp - 1];
+                    closeUpvalues(base);
+                    frameCount--;
+
+                    if(frameCount == 0) {
+                        return;
+                    }
+
+                    // Restore the state of the caller, replacing the callee with the result
+                    sp = base + 1;
+                    stack[base] = result;
+                    numbers[base] = number;
+                    closure = frameClosures[frameCount - 1];
+                    code = closure.proto.code;
+                    constants = closure.proto.constants;
+                    ip = frameIps[frameCount - 1];
+                    base = frameBases[frameCount - 1];
+                }
+
+                default -> throw new IllegalStateException("Unknown opcode: " + code[ip - 1]);
+            }
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Frames and upvalues
+
+    // Pushes a new call frame whose callee is at the given slot,
+    // making sure that the stack has enough room for it
+    private void pushFrame(Closure closure, int base) {
+        if(frameCount == frameClosures.length) {
+            var newSize = frameCount * 2;
+            frameClosures = Arrays.copyOf(frameClosures, newSize);
+            frameIps = Arrays.copyOf(frameIps, newSize);
+            frameBases = Arrays.copyOf(frameBases, newSize);
+        }
+
+        var needed = base + closure.proto.maxStack;
+        if(needed > stack.length) {
+            var newSize = Math.max(needed, stack.length * 2);
+            stack = Arrays.copyOf(stack, newSize);
+            numbers = Arrays.copyOf(numbers, newSize);
+        }
+
+        frameClosures[frameCount] = closure;
+        frameIps[frameCount] = 0;
+        frameBases[frameCount] = base;
+        frameCount++;
+    }
+
+    // Returns the open upvalue for the given stack slot, creating it if it doesn't exist yet
+    private Upvalue captureUpvalue(int slot) {
+        Upvalue previous = null;
+        var upvalue = openUpvalues;
+        while(upvalue != null && upvalue.slot > slot) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+
+        if(upvalue != null && upvalue.slot == slot) {
+            return upvalue;
+        }
+
+        var created = new Upvalue(slot, upvalue);
+        if(previous == null) {
+            openUpvalues = created;
+        } else {
+            previous.next = created;
+        }
+        return created;
+    }
+
+    private void setUpvalue(Upvalue upvalue, int valueSlot) {
+        if(upvalue.slot >= 0) {
+            stack[upvalue.slot] = stack[valueSlot];
+            numbers[upvalue.slot] = numbers[valueSlot];
+        } else {
+            upvalue.closed = valueAt(stack, numbers, valueSlot);
+        }
+    }
+
+    // Closes all the open upvalues that point to the given slot or above it
+    private void closeUpvalues(int lastSlot) {
+        while(openUpvalues != null && openUpvalues.slot >= lastSlot) {
+            var upvalue = openUpvalues;
+            upvalue.closed = valueAt(stack, numbers, upvalue.slot);
+            upvalue.slot = -1;
+            openUpvalues = upvalue.next;
+            upvalue.next = null;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /// Auxiliary methods, mirroring the semantics of the Interpreter
+
+    /**
+     * Calls a builtin with the arguments that are on the stack starting at the given slot.
+     * Builtins don't depend on the interpreter, so none is provided.
+     */
+    private Object callNative(LoxCallable callable, int firstArg, int nArgs) {
+        return switch(nArgs) {
+            case 0 -> callable.call0(null);
+            case 1 -> callable.call1(null, valueAt(stack, numbers, firstArg));
+            case 2 -> callable.call2(null, valueAt(stack, numbers, firstArg), valueAt(stack, numbers, firstArg + 1));
+            case 3 -> callable.call3(null, valueAt(stack, numbers, firstArg), valueAt(stack, numbers, firstArg + 1),
+                    valueAt(stack, numbers, firstArg + 2));
+            default -> {
+                var args = new Object[nArgs];
+                for(int i = 0; i < nArgs; i++) {
+                    args[i] = valueAt(stack, numbers, firstArg + i);
+                }
+                yield callable.call(null, args);
+            }
+        };
+    }
+
+    // Value in a slot of the stack, boxing it if it's a number
+    private static Object valueAt(Object[] stack, double[] numbers, int slot) {
+        var value = stack[slot];
+        return value == UNBOXED ? (Object) numbers[slot] : value;
+    }
+
+    // Stores a value in a slot of the stack, unboxing it if it's a number
+    private static void push(Object[] stack, double[] numbers, int slot, Object value) {
+        if(value instanceof Double number) {
+            stack[slot] = UNBOXED;
+            numbers[slot] = number;
+        } else {
+            stack[slot] = value;
+        }
+    }
+
+    /**
+     * Runs a binary operator on the values at the given slot and the next one, when they're not both
+     * unboxed numbers, and leaves the result in the first slot. Anything but two numbers is an error,
+     * except for comparing values for equality, which is done elsewhere, and concatenating strings.
+     */
+    private void binaryOperation(byte op, int slot, int line) {
+        var left = valueAt(stack, numbers, slot);
+        var right = valueAt(stack, numbers, slot + 1);
+        if(left instanceof Double l && right instanceof Double r) {
+            switch(op) {
+                case LESS, LESS_EQUAL, GREATER, GREATER_EQUAL -> stack[slot] = compare(op, l, r);
+                default -> {
+                    stack[slot] = UNBOXED;
+                    numbers[slot] = arithmetic(op, l, r);
+                }
+            }
+        } else if(op == ADD && left instanceof CharSequence l && right instanceof CharSequence r) {
+            stack[slot] = Rope.concat(l, r);
+        } else if(op == ADD) {
+            throw new RuntimeError("Operators for sum must be two numbers or two strings", line);
+        } else {
+            throw notNumbersError(left, right, line);
+        }
+    }
+
+    // Compares the counter of a loop with its limit, when they're not both unboxed numbers.
+    // The counter is unboxed if it's a number, so that LOOP_STEP can add to it.
+    private boolean testCounter(byte comparison, int counterSlot, int limitSlot, int line) {
+        var counter = valueAt(stack, numbers, counterSlot);
+        var limit = valueAt(stack, numbers, limitSlot);
+        if(!(counter instanceof Double c) || !(limit instanceof Double l)) {
+            throw notNumbersError(counter, limit, line);
+        }
+
+        push(stack, numbers, counterSlot, counter);
+        return compare(comparison, c, l);
+    }
+
+    private static double arithmetic(byte op, double left, double right) {
+        return switch(op) {
+            case ADD -> left + right;
+            case SUBTRACT -> left - right;
+            case MULTIPLY -> left * right;
+            case DIVIDE -> left / right;
+            case MODULO -> Interpreter.modulo(left, right);
+            default -> throw new IllegalStateException("Not an arithmetic opcode: " + op);
+        };
+    }
+
+    private static boolean compare(byte op, double left, double right) {
+        return switch(op) {
+            case LESS -> left < right;
+            case LESS_EQUAL -> left <= right;
+            case GREATER -> left > right;
+            case GREATER_EQUAL -> left >= right;
+            default -> throw new IllegalStateException("Not a comparison opcode: " + op);
+        };
+    }
+
+    // Numbers are equal like boxed ones are, so NaN is equal to itself and 0 is not equal to -0
+    private static boolean sameNumber(double left, double right) {
+        return Double.doubleToLongBits(left) == Double.doubleToLongBits(right);
+    }
+
+    private static int readShort(byte[] code, int offset) {
+        return ((code[offset] & 0xff) << 8) | (code[offset + 1] & 0xff);
+    }
+
+    // Line of the instruction that has just been read, given the ip right after it
+    private static int lineAt(Closure closure, int ip) {
+        return closure.proto.lines[ip - 1];
+    }
+
+    private static boolean isTruthy(Object o) {
+        if(o == null) return false;
+        if(o instanceof Boolean) return (boolean) o;
+        return true;
+    }
+
+    private static boolean valuesAreEqual(Object left, Object right) {
+        if(left == null && right == null) return true;
+        if(left == null) return false;
+        return Rope.flatten(left).equals(Rope.flatten(right));
+    }
+
+    private static RuntimeError notNumberError(Object value, int line) {
+        var name = value == null ? "null" : value.toString();
+        return new RuntimeError("Value is not a number: " + name, line);
+    }
+
+    // Reports the first of both values that is not a number
+    private static RuntimeError notNumbersError(Object left, Object right, int line) {
+        return notNumberError(left instanceof Double ? right : left, line);
+    }
+}
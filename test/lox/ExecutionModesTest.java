@@ -0,0 +1,44 @@
+package lox;
+
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.TestFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Runs every script in test/scripts in each execution mode, checking that all of them print what's
+ * in the .out file next to it.
+ */
+class ExecutionModesTest {
+    private static final List<List<String>> MODES = List.of(
+            List.of(),
+            List.of("--no-optimize"),
+            List.of("--vm"),
+            List.of("--closures"),
+            List.of("--specialize"),
+            List.of("--memo"),
+            List.of("--jit", "--jit-threshold=1"),
+            List.of("--stream"));
+
+    @TestFactory
+    Stream<DynamicTest> scriptsPrintTheSameInEveryMode() throws IOException {
+        var scripts = new ArrayList<Path>();
+        try(var files = Files.newDirectoryStream(LoxRunner.SCRIPTS, "*.lox")) {
+            files.forEach(scripts::add);
+        }
+
+        return scripts.stream().sorted().flatMap(script -> MODES.stream().map(mode ->
+                DynamicTest.dynamicTest(script.getFileName() + " " + String.join(" ", mode), () -> {
+                    var args = new ArrayList<>(mode);
+                    args.add(script.toString());
+                    assertEquals(LoxRunner.expectedOutputOf(script), LoxRunner.run(args));
+                })));
+    }
+}
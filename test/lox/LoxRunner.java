@@ -0,0 +1,42 @@
+package lox;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs jlox in its own process, since Lox keeps its state in statics, for the tests that check
+ * what a script prints. The expected output of test/scripts/name.lox is in test/scripts/name.out.
+ */
+final class LoxRunner {
+    static final Path SCRIPTS = Path.of("test", "scripts");
+
+    private LoxRunner() { }
+
+    static Path script(String name) {
+        return SCRIPTS.resolve(name + ".lox");
+    }
+
+    static String expectedOutputOf(Path script) throws IOException {
+        var name = script.getFileName().toString();
+        return Files.readString(script.resolveSibling(name.substring(0, name.length() - ".lox".length()) + ".out"));
+    }
+
+    /** Output and errors of running jlox with the given arguments */
+    static String run(List<String> args) throws IOException, InterruptedException {
+        var command = new ArrayList<String>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("Main");
+        command.addAll(args);
+
+        var process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        var output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        process.waitFor();
+        return output;
+    }
+}
@@ -0,0 +1,119 @@
+package lox;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Runs a script with the cache of analyzed programs, checking that it prints the same when it's
+ * read from the cache, and that damaged or stale entries are replaced instead of making it fail.
+ */
+class ProgramCacheTest {
+    private static final Path SCRIPT = LoxRunner.script("cached_program");
+    // Offsets in a cache entry: version, hash of the contents, and contents
+    private static final int VERSION_OFFSET = 4, BODY_HASH_OFFSET = 40, BODY_OFFSET = 72;
+
+    @TempDir
+    Path cacheDir;
+
+    @Test
+    void cachedProgramPrintsTheSame() throws Exception {
+        var expected = LoxRunner.expectedOutputOf(SCRIPT);
+        assertEquals(expected, run());
+        var stored = Files.readAllBytes(entry());
+
+        assertEquals(expected, run());
+        assertArrayEquals(stored, Files.readAllBytes(entry()));
+    }
+
+    @Test
+    void cachedTreeIsTheOneThatRunsAfterOptimizing() throws Exception {
+        var compiled = run("--dump-tree");
+        assertEquals(compiled, run("--dump-tree"));
+    }
+
+    @Test
+    void optionsThatChangeTheTreeHaveTheirOwnEntries() throws Exception {
+        run();
+        run("--no-optimize");
+        run("--inline-budget=0");
+        try(var files = Files.list(cacheDir)) {
+            assertEquals(3, files.count());
+        }
+    }
+
+    @Test
+    void damagedEntryIsReplaced() throws Exception {
+        run();
+        var stored = Files.readAllBytes(entry());
+        // A huge number of declarations
+        writeBody(stored, new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07 }, false);
+
+        assertEquals(LoxRunner.expectedOutputOf(SCRIPT), run());
+        assertArrayEquals(stored, Files.readAllBytes(entry()));
+    }
+
+    @Test
+    void damagedEntryWithMatchingHashIsReplaced() throws Exception {
+        run();
+        var stored = Files.readAllBytes(entry());
+        writeBody(stored, new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07 }, true);
+
+        assertEquals(LoxRunner.expectedOutputOf(SCRIPT), run());
+        assertArrayEquals(stored, Files.readAllBytes(entry()));
+    }
+
+    @Test
+    void entryFromAnotherVersionIsReplaced() throws Exception {
+        run();
+        var stored = Files.readAllBytes(entry());
+        var stale = stored.clone();
+        stale[VERSION_OFFSET + 3]--;
+        Files.write(entry(), stale);
+
+        assertEquals(LoxRunner.expectedOutputOf(SCRIPT), run());
+        assertArrayEquals(stored, Files.readAllBytes(entry()));
+    }
+
+    private String run(String... options) throws IOException, InterruptedException {
+        var args = new ArrayList<>(List.of(options));
+        args.add("--cache-dir=" + cacheDir);
+        args.add(SCRIPT.toString());
+        return LoxRunner.run(args);
+    }
+
+    private Path entry() throws IOException {
+        try(var files = Files.list(cacheDir)) {
+            var entries = files.filter(file -> file.toString().endsWith(".loxc")).toList();
+            assertEquals(1, entries.size());
+            return entries.get(0);
+        }
+    }
+
+    // Overwrites the start of the contents of the entry, updating their hash if asked to
+    private void writeBody(byte[] stored, byte[] start, boolean updateHash) throws Exception {
+        var damaged = stored.clone();
+        System.arraycopy(start, 0, damaged, BODY_OFFSET, start.length);
+        if(updateHash) {
+            var hash = sha256(damaged, BODY_OFFSET);
+            System.arraycopy(hash, 0, damaged, BODY_HASH_OFFSET, hash.length);
+        }
+        Files.write(entry(), damaged);
+    }
+
+    private static byte[] sha256(byte[] data, int offset) throws NoSuchAlgorithmException {
+        var digest = MessageDigest.getInstance("SHA-256");
+        digest.update(data, offset, data.length - offset);
+        return digest.digest();
+    }
+}
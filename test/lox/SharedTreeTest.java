@@ -0,0 +1,37 @@
+package lox;
+
+import lox.decl.Declaration;
+import lox.tokens.Symbol;
+import lox.tokens.TokenScanner;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that a tree can be run by several interpreters, each one with its own globals,
+ * even though the tree caches the cells of the globals it uses.
+ */
+class SharedTreeTest {
+
+    @Test
+    void interpretersRunningTheSameTreeHaveTheirOwnGlobals() {
+        List<Declaration> program = new ASTParser(new TokenScanner(
+                "let count = 0; fn bump() { count = count + 1; return count; } let result = bump();"
+        ).scanTokens()).parseTokens();
+        new Analyzer().resolve(program);
+
+        var first = new Interpreter();
+        var second = new Interpreter();
+        first.interpret(program);
+        second.interpret(program);
+
+        assertEquals(1.0, resultOf(first));
+        assertEquals(1.0, resultOf(second));
+    }
+
+    private static Object resultOf(Interpreter interpreter) {
+        return interpreter.getGlobals().findCell(Symbol.of("result")).value;
+    }
+}
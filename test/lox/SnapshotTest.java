@@ -0,0 +1,49 @@
+package lox;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Writes a snapshot of test/scripts/snapshot/prelude.lox and runs main.lox from it, checking that
+ * the closures of the prelude still share the variables they captured once they're read back.
+ */
+class SnapshotTest {
+    private static final Path PRELUDE = LoxRunner.script("snapshot/prelude");
+    private static final Path SCRIPT = LoxRunner.script("snapshot/main");
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void closuresKeepTheirCapturedVariables() throws Exception {
+        var snapshot = writeSnapshot();
+        assertEquals(LoxRunner.expectedOutputOf(SCRIPT), runFrom(snapshot));
+    }
+
+    @Test
+    void runningFromASnapshotDoesNotChangeIt() throws Exception {
+        var snapshot = writeSnapshot();
+        var written = Files.readAllBytes(snapshot);
+
+        runFrom(snapshot);
+        assertArrayEquals(written, Files.readAllBytes(snapshot));
+        assertEquals(LoxRunner.expectedOutputOf(SCRIPT), runFrom(snapshot));
+    }
+
+    private Path writeSnapshot() throws Exception {
+        var snapshot = dir.resolve("prelude.snap");
+        assertEquals("", LoxRunner.run(List.of("--snapshot", PRELUDE.toString(), snapshot.toString())));
+        return snapshot;
+    }
+
+    private static String runFrom(Path snapshot) throws Exception {
+        return LoxRunner.run(List.of("--from-snapshot", snapshot.toString(), SCRIPT.toString()));
+    }
+}
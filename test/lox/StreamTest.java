@@ -0,0 +1,20 @@
+package lox;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Runs the scripts in test/scripts/stream with --stream, which print what only a streamed script
+ * would. The scripts in test/scripts are run streamed as well, in ExecutionModesTest.
+ */
+class StreamTest {
+
+    @Test
+    void declarationsBeforeASyntaxErrorHaveRun() throws Exception {
+        var script = LoxRunner.script("stream/syntax_error");
+        assertEquals(LoxRunner.expectedOutputOf(script), LoxRunner.run(List.of("--stream", script.toString())));
+    }
+}
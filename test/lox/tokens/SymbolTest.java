@@ -0,0 +1,57 @@
+package lox.tokens;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Checks that threads interning the same names at the same time, like the scanners of modules
+ * loaded in parallel, get a single Symbol for each name, while the table grows under them.
+ */
+class SymbolTest {
+    private static final int THREADS = 4, NAMES = 20_000;
+
+    @Test
+    void concurrentInterningGivesOneSymbolPerName() throws Exception {
+        var executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            var tasks = new ArrayList<Callable<Symbol[]>>();
+            for(int t = 0; t < THREADS; t++) {
+                tasks.add(() -> {
+                    var symbols = new Symbol[NAMES];
+                    for(int i = 0; i < NAMES; i++) {
+                        var name = ("concurrent_" + i).toCharArray();
+                        symbols[i] = Symbol.intern(name, 0, name.length);
+                    }
+                    return symbols;
+                });
+            }
+
+            var results = new ArrayList<Symbol[]>();
+            for(Future<Symbol[]> result : executor.invokeAll(tasks)) {
+                results.add(result.get());
+            }
+
+            var ids = new HashSet<Integer>();
+            for(int i = 0; i < NAMES; i++) {
+                var symbol = results.get(0)[i];
+                assertEquals("concurrent_" + i, symbol.name);
+                assertSame(symbol, Symbol.of("concurrent_" + i));
+                for(Symbol[] other : results) {
+                    assertSame(symbol, other[i]);
+                }
+                ids.add(symbol.id);
+            }
+            assertEquals(NAMES, ids.size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}